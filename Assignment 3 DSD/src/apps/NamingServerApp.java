@@ -1,5 +1,7 @@
 package apps;
 
+import java.io.*;
+
 import rmi.*;
 
 import naming.NamingServer;
@@ -7,9 +9,11 @@ import naming.NamingServer;
 /** Naming server application.
 
     <p>
-    The naming server application does not take any arguments. It starts a
-    naming server listening on the default client and registration ports for
-    clients and storage servers, respectively.
+    The naming server application takes an optional argument: the directory in
+    which the naming server keeps its edit log. It starts a naming server
+    listening on the default client and registration ports for clients and
+    storage servers, respectively. Without the argument, the naming server
+    keeps its state in memory only.
  */
 public class NamingServerApp extends ServerApplication
 {
@@ -32,17 +36,37 @@ public class NamingServerApp extends ServerApplication
     /** Starts the naming server.
 
         @param arguments Command line arguments.
-        @throws BadUsageException If there are any command line arguments.
+        @throws BadUsageException If there is more than one command line
+                                  argument, or the argument is not a
+                                  directory.
         @throws RMIException If the naming server cannot be started.
+        @throws IOException If the edit log cannot be read or created.
      */
     @Override
     protected void startServer(String[] arguments)
-        throws BadUsageException, RMIException
+        throws BadUsageException, RMIException, IOException
     {
-        if(arguments.length != 0)
-            throw new BadUsageException("naming server expects no arguments");
+        if(arguments.length > 1)
+        {
+            throw new BadUsageException("naming server expects at most one " +
+                                        "argument: state directory");
+        }
+
+        if(arguments.length == 0)
+            server = new StoppingNamingServer();
+        else
+        {
+            File    directory = new File(arguments[0]);
+
+            if(!directory.isDirectory())
+            {
+                throw new BadUsageException(arguments[0] +
+                                            " is not a directory");
+            }
+
+            server = new StoppingNamingServer(directory);
+        }
 
-        server = new StoppingNamingServer();
         server.start();
     }
 
@@ -56,6 +80,18 @@ public class NamingServerApp extends ServerApplication
     /** Application naming server. */
     private class StoppingNamingServer extends NamingServer
     {
+        /** Creates a naming server keeping its state in memory. */
+        StoppingNamingServer()
+        {
+        }
+
+        /** Creates a naming server keeping its state in the given
+            directory. */
+        StoppingNamingServer(File directory) throws IOException
+        {
+            super(directory);
+        }
+
         /** Schedules a timeout before attempting to stop the server
             gracefully. */
         @Override
@@ -15,7 +15,10 @@ import storage.StorageServer;
     <p>
     The storage server application expects three arguments: in order, the
     local hostname, the hostname of the remote naming server, and the directory
-    that the storage server will use as its local storage for files.
+    that the storage server will use as its local storage for files. An
+    optional fourth argument names a file, outside that directory, in which the
+    storage server records the files it registered, so that when it is started
+    again it reports only the files added and removed since.
 
     <p>
     The directory can be given as an absolute or a relative path. The current
@@ -54,8 +57,8 @@ public class StorageServerApp extends ServerApplication
     /** Starts the storage server.
 
         @param arguments The command line arguments.
-        @throws BadUsageException If there are not three arguments on the
-                                  command line.
+        @throws BadUsageException If there are not three or four arguments on
+                                  the command line.
         @throws UnknownHostException If a storage server stub cannot be created
                                      due to an unassigned address.
         @throws FileNotFoundException If the directory in which the storage
@@ -74,16 +77,22 @@ public class StorageServerApp extends ServerApplication
                RMIException, RemoteException
     {
         // Check the command line arguments.
-        if(arguments.length != 3)
+        if(arguments.length != 3 && arguments.length != 4)
         {
             throw new BadUsageException("arguments: hostname naming-server " +
-                                        "local-path");
+                                        "local-path [manifest]");
         }
 
         // Create the storage server object using the absolute version of the
         // given path.
         File            local_root = new File(arguments[2]).getAbsoluteFile();
-        server = new StoppingStorageServer(local_root);
+        if(arguments.length == 3)
+            server = new StoppingStorageServer(local_root);
+        else
+        {
+            server = new StoppingStorageServer(local_root,
+                new File(arguments[3]).getAbsoluteFile());
+        }
 
         // Start and register the storage server.
         server.start(arguments[0], NamingStubs.registration(arguments[1]));
@@ -105,6 +114,13 @@ public class StorageServerApp extends ServerApplication
             super(root);
         }
 
+        /** Creates the storage server, recording its registrations in the
+            given manifest. */
+        StoppingStorageServer(File root, File manifest) throws RemoteException
+        {
+            super(root, manifest);
+        }
+
         /** Schedules a timeout before attempting to stop the server
             gracefully. */
         @Override
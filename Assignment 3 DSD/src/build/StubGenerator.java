@@ -0,0 +1,215 @@
+package build;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.NestingKind;
+import javax.lang.model.element.PackageElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.tools.Diagnostic;
+
+/** Annotation processor generating stub classes for remote interfaces.
+
+    <p>
+    The processor runs as part of the <code>javac</code> step in the Makefile.
+    It examines every top-level interface being compiled. An interface is
+    treated as remote if each of its methods, including inherited ones, is
+    marked as throwing <code>RMIException</code> - the same rule applied by
+    <code>Stub.create</code>. For each remote interface <code>I</code>, the
+    class <code>I_Stub</code> is written to the same package. It extends
+    <code>rmi.GeneratedStub</code> and implements each method of
+    <code>I</code> by calling the method on the server object directly.
+
+    <p>
+    Calls through a generated stub avoid <code>Method.invoke</code>, the
+    argument array and the boxing of primitive arguments and results that a
+    dynamic proxy requires, and can be inlined by the JIT compiler. Generic
+    interfaces and interfaces with generic methods are skipped; stubs for them
+    remain dynamic proxies.
+ */
+@SupportedAnnotationTypes("*")
+public class StubGenerator extends AbstractProcessor
+{
+    /** Fully-qualified name of the exception marking remote methods. */
+    private static final String RMI_EXCEPTION = "rmi.RMIException";
+    /** Fully-qualified name of the generated stub base class. */
+    private static final String BASE_CLASS = "rmi.GeneratedStub";
+    /** Suffix of generated class names; matches
+        <code>GeneratedStub.SUFFIX</code>. */
+    private static final String SUFFIX = "_Stub";
+
+    @Override
+    public SourceVersion getSupportedSourceVersion()
+    {
+        return SourceVersion.latestSupported();
+    }
+
+    /** Generates stubs for the remote interfaces among the root elements.
+
+        <p>
+        The processor is registered for every annotation type, so that it is
+        run whether or not the sources use annotations. It is the only
+        processor the build runs, and claims the annotations it is given so
+        that <code>javac</code> does not warn that none was claimed.
+
+        @return <code>true</code>, claiming the annotations.
+     */
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations,
+                           RoundEnvironment environment)
+    {
+        for(Element element : environment.getRootElements())
+        {
+            if(element.getKind() != ElementKind.INTERFACE)
+                continue;
+
+            TypeElement     type = (TypeElement)element;
+
+            if(type.getNestingKind() != NestingKind.TOP_LEVEL ||
+               !type.getTypeParameters().isEmpty())
+            {
+                continue;
+            }
+
+            List<ExecutableElement> methods = remoteMethods(type);
+
+            if(methods != null)
+                generate(type, methods);
+        }
+
+        return true;
+    }
+
+    /** Returns the methods a stub for the given interface must implement.
+
+        @return The list of abstract methods, or <code>null</code> if the
+                interface is not a remote interface or cannot be handled.
+     */
+    private List<ExecutableElement> remoteMethods(TypeElement type)
+    {
+        List<ExecutableElement> methods = new ArrayList<>();
+
+        for(ExecutableElement method : ElementFilter.methodsIn(
+                processingEnv.getElementUtils().getAllMembers(type)))
+        {
+            if(!method.getModifiers().contains(Modifier.ABSTRACT))
+                continue;
+
+            if(!method.getTypeParameters().isEmpty())
+                return null;
+
+            boolean     remote = false;
+
+            for(TypeMirror thrown : method.getThrownTypes())
+            {
+                if(thrown.toString().equals(RMI_EXCEPTION))
+                    remote = true;
+            }
+
+            if(!remote)
+                return null;
+
+            methods.add(method);
+        }
+
+        return methods;
+    }
+
+    /** Writes the stub class for a remote interface. */
+    private void generate(TypeElement type, List<ExecutableElement> methods)
+    {
+        PackageElement  pkg =
+            processingEnv.getElementUtils().getPackageOf(type);
+        String          interfaceName = type.getQualifiedName().toString();
+        String          stubName = type.getSimpleName() + SUFFIX;
+        String          qualifiedStubName = pkg.isUnnamed() ? stubName :
+            pkg.getQualifiedName() + "." + stubName;
+
+        try(PrintWriter out = new PrintWriter(processingEnv.getFiler()
+                .createSourceFile(qualifiedStubName, type).openWriter()))
+        {
+            if(!pkg.isUnnamed())
+                out.println("package " + pkg.getQualifiedName() + ";");
+
+            out.println();
+            out.println("/** Stub for <code>" + interfaceName + "</code>, " +
+                        "generated by <code>build.StubGenerator</code>. */");
+            out.println("public final class " + stubName + " extends " +
+                        BASE_CLASS + " implements " + interfaceName);
+            out.println("{");
+            out.println("    public " + stubName + "(rmi.Skeleton<?> skeleton, " +
+                        "java.net.InetSocketAddress address, String client)");
+            out.println("    {");
+            out.println("        super(skeleton, address, client);");
+            out.println("    }");
+
+            for(ExecutableElement method : methods)
+                generateMethod(out, interfaceName, method);
+
+            out.println("}");
+        }
+        catch(IOException e)
+        {
+            processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR,
+                "cannot write stub for " + interfaceName + ": " + e, type);
+        }
+    }
+
+    /** Writes one forwarding method of a stub class. */
+    private void generateMethod(PrintWriter out, String interfaceName,
+                                ExecutableElement method)
+    {
+        StringBuilder   parameters = new StringBuilder();
+        StringBuilder   arguments = new StringBuilder();
+        int             index = 0;
+
+        for(VariableElement parameter : method.getParameters())
+        {
+            if(index > 0)
+            {
+                parameters.append(", ");
+                arguments.append(", ");
+            }
+
+            parameters.append(parameter.asType()).append(" arg").append(index);
+            arguments.append("arg").append(index);
+            ++index;
+        }
+
+        StringBuilder   thrown = new StringBuilder();
+
+        for(TypeMirror exception : method.getThrownTypes())
+        {
+            thrown.append(thrown.length() == 0 ? " throws " : ", ");
+            thrown.append(exception);
+        }
+
+        TypeMirror      result = method.getReturnType();
+        String          call = "((" + interfaceName + ")server())." +
+            method.getSimpleName() + "(" + arguments + ");";
+
+        out.println();
+        out.println("    @Override");
+        out.println("    public " + result + " " + method.getSimpleName() +
+                    "(" + parameters + ")" + thrown);
+        out.println("    {");
+        out.println("        " +
+                    (result.getKind() == TypeKind.VOID ? "" : "return ") + call);
+        out.println("    }");
+    }
+}
@@ -24,8 +24,9 @@ public class DFSInputStream extends InputStream
 {
     /** Path to the file. */
     private final Path      path;
-    /** Storage server hosting the file. */
-    private final Storage   storage_server;
+    /** Storage server hosting the file. Replaced if the server becomes
+        unreachable while the stream is open. */
+    private Storage         storage_server;
     /** Naming server used to find the storage server hosting the file. */
     private final Service   naming_server;
 
@@ -224,7 +225,19 @@ public class DFSInputStream extends InputStream
 
         try
         {
-            result = storage_server.read(path, offset, read_length);
+            try
+            {
+                result = storage_server.read(path, offset, read_length);
+            }
+            catch(RMIException e)
+            {
+                // The storage server held by this stream is unreachable. Stubs
+                // report this immediately, so ask the naming server where the
+                // file is now and retry once there.
+                storage_server = relocate(e);
+                result = storage_server.read(path, offset, read_length);
+            }
+
             offset += read_length;
         }
         catch(FileNotFoundException e)
@@ -245,6 +258,31 @@ public class DFSInputStream extends InputStream
         return read_length;
     }
 
+    /** Obtains a new stub for the storage server hosting the file.
+
+        @param cause The error that made the current storage server unusable.
+        @return A stub for the storage server now listed for the file.
+        @throws IOException If the naming server cannot be contacted or no
+                            longer lists the file.
+     */
+    private Storage relocate(RMIException cause) throws IOException
+    {
+        try
+        {
+            return naming_server.getStorage(path);
+        }
+        catch(FileNotFoundException e)
+        {
+            throw new IOException("file no longer listed by naming server",
+                                  cause);
+        }
+        catch(RMIException e)
+        {
+            throw new IOException("unable to contact storage server or " +
+                                  "naming server", cause);
+        }
+    }
+
     /** Reads a single byte from the input stream.
 
         @return The value of the byte read, as an integer between <code>0</code>
@@ -0,0 +1,208 @@
+package common;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.Consumer;
+
+/** Parallel walk of a directory tree on the local filesystem, used by
+    <code>Path.list</code>.
+
+    <p>
+    Each directory is read by its own fork-join task, so wide and deep trees
+    are read by several threads. Paths are built by appending each entry name
+    to the path of its directory, without string manipulation. Files found
+    are handed to a consumer in batches as the walk proceeds, rather than
+    collected into one list at the end.
+
+    <p>
+    The tasks run in a pool of their own, and pass full batches to the thread
+    that called <code>walk</code> through a short queue. The consumer runs on
+    that thread, so a consumer that blocks, for example on a remote call,
+    holds up only this walk: once the queue is full, the walk's threads wait
+    for it, and the common pool is not used.
+ */
+class DirectoryWalker
+{
+	/** Number of batches found and not yet taken by the consumer that the
+	    walk may hold before its threads wait. */
+	private static final int QUEUED_BATCHES = 4;
+	/** Marks the end of the walk in the queue. */
+	private static final Path[] END = new Path[0];
+
+	private final int batchSize;
+	private final Consumer<Path[]> consumer;
+	/** Files left over from tasks that finished with a partial batch. */
+	private final List<Path> pending = new ArrayList<>();
+	/** Batches waiting for the consumer, followed by <code>END</code>. */
+	private final BlockingQueue<Path[]> batches =
+			new ArrayBlockingQueue<>(QUEUED_BATCHES);
+	/** Error that ended the walk, if any. Set before <code>END</code> is
+	    queued. */
+	private volatile RuntimeException failure;
+
+	/** Creates a walker.
+
+	    @param batchSize Maximum number of paths passed to the consumer at
+	                     once.
+	    @param consumer Receives the batches, on the thread that calls
+	                    <code>walk</code>.
+	 */
+	DirectoryWalker(int batchSize, Consumer<Path[]> consumer)
+	{
+		this.batchSize = batchSize;
+		this.consumer = consumer;
+	}
+
+	/** Walks the tree under <code>directory</code>, reporting each file
+	    relative to <code>prefix</code>.
+
+	    @throws UncheckedIOException If a directory in the tree cannot be read,
+	                                 or the calling thread is interrupted.
+	 */
+	void walk(File directory, Path prefix)
+	{
+		ForkJoinPool pool = new ForkJoinPool(
+				Runtime.getRuntime().availableProcessors());
+
+		try {
+			pool.execute(() -> {
+				try {
+					new WalkTask(directory, prefix).invoke();
+
+					Path[] rest;
+					synchronized(this) {
+						rest = pending.toArray(new Path[pending.size()]);
+						pending.clear();
+					}
+					if(rest.length > 0) {
+						enqueue(rest);
+					}
+				} catch(RuntimeException e) {
+					failure = e;
+				} finally {
+					// Never blocks for long: the caller takes batches until
+					// it sees the end, unless it has given up, and then the
+					// pool is shut down and this thread interrupted.
+					try {
+						batches.put(END);
+					} catch(InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+				}
+			});
+
+			while(true) {
+				Path[] batch = batches.take();
+				if(batch == END) {
+					break;
+				}
+				consumer.accept(batch);
+			}
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new UncheckedIOException(new InterruptedIOException(
+					"interrupted while listing files"));
+		} finally {
+			pool.shutdownNow();
+		}
+
+		if(failure != null) {
+			throw failure;
+		}
+	}
+
+	/** Queues a batch for the consumer, waiting while the queue is full.
+
+	    @throws CancellationException If the thread is interrupted because
+	                                  the walk was abandoned.
+	 */
+	private void enqueue(Path[] batch)
+	{
+		try {
+			batches.put(batch);
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new CancellationException("directory walk abandoned");
+		}
+	}
+
+	/** Merges a partial batch into the shared one, queueing full batches. */
+	private void merge(List<Path> partial)
+	{
+		List<Path[]> full = new ArrayList<>();
+
+		synchronized(this) {
+			for(Path path : partial) {
+				pending.add(path);
+				if(pending.size() == batchSize) {
+					full.add(pending.toArray(new Path[pending.size()]));
+					pending.clear();
+				}
+			}
+		}
+
+		for(Path[] batch : full) {
+			enqueue(batch);
+		}
+	}
+
+	// Serializable only as a ForkJoinTask; never serialized.
+	@SuppressWarnings("serial")
+	private class WalkTask extends RecursiveAction
+	{
+		private final File directory;
+		private final Path path;
+
+		WalkTask(File directory, Path path)
+		{
+			this.directory = directory;
+			this.path = path;
+		}
+
+		@Override
+		protected void compute()
+		{
+			List<WalkTask> subdirectories = new ArrayList<>();
+			List<Path> files = new ArrayList<>();
+
+			try(DirectoryStream<java.nio.file.Path> entries =
+					Files.newDirectoryStream(directory.toPath())) {
+
+				for(java.nio.file.Path entry : entries) {
+					Path child = new Path(path, entry.getFileName().toString());
+
+					if(Files.isDirectory(entry)) {
+						WalkTask task = new WalkTask(entry.toFile(), child);
+						task.fork();
+						subdirectories.add(task);
+					} else {
+						files.add(child);
+						if(files.size() == batchSize) {
+							enqueue(files.toArray(new Path[files.size()]));
+							files.clear();
+						}
+					}
+				}
+			} catch(IOException e) {
+				throw new UncheckedIOException(e);
+			}
+
+			merge(files);
+
+			for(WalkTask task : subdirectories) {
+				task.join();
+			}
+		}
+	}
+}
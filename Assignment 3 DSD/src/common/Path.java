@@ -2,6 +2,7 @@ package common;
 
 import java.io.*;
 import java.util.*;
+import java.util.function.Consumer;
 
 /** Distributed filesystem paths.
 
@@ -19,16 +20,29 @@ import java.util.*;
     not permitted within path components. The forward slash is the delimeter,
     and the colon is reserved as a delimeter for application use.
  */
-public class Path implements Iterable<String>, Serializable
+public class Path implements Iterable<String>, Comparable<Path>, Serializable
 {
 	
-	private String pathVar = "";
-	private final String ROOT = "/";
+	private static final String ROOT = "/";
+	
+	/** Path components, interned. Only the first <code>depth</code> entries
+	    belong to this path: a path and its ancestors created while parsing the
+	    same string share one array. */
+	private final String[] components;
+	/** Number of components; zero for the root. */
+	private final int depth;
+	/** Parent path, or <code>null</code> for the root. Kept so that
+	    <code>parent</code> neither parses nor allocates. */
+	private final Path parent;
+	/** Hash code, computed from the parent's hash and the last component. */
+	private final int hash;
+	/** String form, built on first use. */
+	private transient String pathString;
 	
     /** Creates a new path which represents the root directory. */
     public Path()
     {
-    	pathVar = ROOT;
+    	this(new String[0], 0, null);
     }
 
     /** Creates a new path by appending the given component to an existing path.
@@ -42,23 +56,7 @@ public class Path implements Iterable<String>, Serializable
     */
     public Path(Path path, String component)
     {
-        if(component.isEmpty()) {
-        	throw new IllegalArgumentException("Component is empty. Please pass valid component.");
-        } 
-        if(component.contains("/")) {
-        	throw new IllegalArgumentException("Invalid character '/'. Please pass valid component.");
-        } 
-        if(component.contains(":")) {
-        	throw new IllegalArgumentException("Invalid character ':'. Please pass valid component.");
-        }
-        
-        if(path.pathVar.equals(ROOT)) {
-        	pathVar = ROOT + component;
-        } else {
-        	pathVar = path.pathVar + "/" + component;
-        }
-
-        
+        this(append(path, checkComponent(component)), path.depth + 1, path);
     }
 
     /** Creates a new path from a path string.
@@ -75,30 +73,164 @@ public class Path implements Iterable<String>, Serializable
      */
     public Path(String path)
     {
-        if(!path.startsWith("/")) {
+        this(parse(path));
+    }
+    
+    /** Creates the last path of a chain built by <code>parse</code>. */
+    private Path(Path parsed)
+    {
+    	this(parsed.components, parsed.depth, parsed.parent);
+    }
+    
+    private Path(String[] components, int depth, Path parent)
+    {
+    	this.components = components;
+    	this.depth = depth;
+    	this.parent = parent;
+    	this.hash = parent == null ? 1 : 31 * parent.hash + components[depth - 1].hashCode();
+    }
+    
+    private static String checkComponent(String component)
+    {
+        if(component.isEmpty()) {
+        	throw new IllegalArgumentException("Component is empty. Please pass valid component.");
+        } 
+        if(component.indexOf('/') >= 0) {
+        	throw new IllegalArgumentException("Invalid character '/'. Please pass valid component.");
+        } 
+        if(component.indexOf(':') >= 0) {
+        	throw new IllegalArgumentException("Invalid character ':'. Please pass valid component.");
+        }
+        
+        return component;
+    }
+    
+    private static String[] append(Path path, String component)
+    {
+    	String[] components = Arrays.copyOf(path.components, path.depth + 1);
+    	components[path.depth] = component.intern();
+    	return components;
+    }
+    
+    /** Splits a path string into a chain of paths sharing one component
+        array, and returns the last of them. Components consisting only of
+        whitespace are dropped, as are empty ones. */
+    private static Path parse(String path)
+    {
+        if(!path.startsWith(ROOT)) {
         	throw new IllegalArgumentException("Path should begin with '/'. Please enter valid path.");
         } 
 
-        if (path.contains(":")) {
+        if (path.indexOf(':') >= 0) {
         	throw new IllegalArgumentException("Invalid character ':'. Please enter valid path.");
         }
         
-        
-        if(!path.isEmpty()) {
-        	String[] components = path.split("/");
-        	if(components.length > 0) {
-        	for(String comp: components) {
-        		if(!comp.trim().isEmpty()) {
-        			pathVar += "/" + comp;
-        		}
+        List<String> parts = new ArrayList<>();
+        int start = 1;
+        while(start <= path.length()) {
+        	int end = path.indexOf('/', start);
+        	if(end < 0) {
+        		end = path.length();
         	}
-        	} else {
-        		pathVar = ROOT;
+        	
+        	String comp = path.substring(start, end);
+        	if(!comp.trim().isEmpty()) {
+        		parts.add(comp.intern());
         	}
-        } else {
-        	pathVar = ROOT;
+        	start = end + 1;
+        }
+        
+        String[] components = parts.toArray(new String[parts.size()]);
+        Path current = new Path(components, 0, null);
+        for(int i = 1; i <= components.length; i++) {
+        	current = new Path(components, i, current);
         }
         
+        return current;
+    }
+
+    /** Canonical paths returned by <code>intern</code>. */
+    private static final PathTable canonical = new PathTable();
+    
+    /** Returns a canonical representation of the path.
+
+        <p>
+        Like <code>String.intern</code>, this returns the same object for all
+        equal paths, as long as the canonical object remains in use. The
+        parent of a canonical path is canonical as well, so interned paths
+        share their common prefixes. Servers that hold many paths should
+        intern them before storing them: equal paths then occupy memory once,
+        and comparisons between them succeed on the first reference check.
+
+        @return A path equal to this one and shared with all other interned
+                paths equal to it.
+     */
+    public Path intern()
+    {
+    	Path existing = canonical.get(this);
+    	if(existing != null) {
+    		return existing;
+    	}
+    	
+    	if(isRoot()) {
+    		return canonical.putIfAbsent(this);
+    	}
+    	
+    	Path canonicalParent = parent.intern();
+    	Path candidate = canonicalParent == parent ? this
+    			: new Path(append(canonicalParent, components[depth - 1]), depth, canonicalParent);
+    	
+    	return canonical.putIfAbsent(candidate);
+    }
+    
+    /** Returns the number of paths currently held in canonical form by
+        <code>intern</code>. */
+    public static int internedCount()
+    {
+    	return canonical.size();
+    }
+    
+    /** Serializes the path in the compact form described in
+        <code>PathCodec</code>. Deserialized paths are interned. */
+    private Object writeReplace()
+    {
+    	return new PathCodec.SerialForm(this);
+    }
+    
+    /** Paths are only ever serialized through their serial form. */
+    private void readObject(ObjectInputStream in) throws InvalidObjectException
+    {
+    	throw new InvalidObjectException("Serial form required");
+    }
+    
+    /** Writes an array of paths in a compact binary form.
+
+        <p>
+        Each path is encoded relative to the one before it, as the number of
+        leading components the two share followed by the remaining components
+        in UTF-8. Arrays in which neighbouring paths share directories, such as
+        those returned by <code>list</code>, therefore encode to little more
+        than the names of their files. Sorting the array first maximizes the
+        sharing.
+
+        @param out The output to write to.
+        @param paths The paths to write.
+        @throws IOException If the output cannot be written.
+     */
+    public static void writeArray(DataOutput out, Path[] paths) throws IOException
+    {
+    	PathCodec.writeArray(out, paths);
+    }
+    
+    /** Reads an array of paths written by <code>writeArray</code>.
+
+        @param in The input to read from.
+        @return The paths, in the order in which they were written.
+        @throws IOException If the input cannot be read or is malformed.
+     */
+    public static Path[] readArray(DataInput in) throws IOException
+    {
+    	return PathCodec.readArray(in);
     }
 
     /** Returns an iterator over the components of the path.
@@ -112,22 +244,12 @@ public class Path implements Iterable<String>, Serializable
     @Override
     public Iterator<String> iterator()
     {
-    	String[] components =  pathVar.split("/");
-    	
-    	List<String> componentsList = new ArrayList<>();
-    	for(int i = 0; i < components.length; i++) {
-    		if(!components[i].isEmpty()) {
-    			componentsList.add(components[i]);
-    		}
-    	}
-
-        Iterator<String> iterator = new Iterator<String>() {
+        return new Iterator<String>() {
 			private int i = 0;
 			@Override
 			public String next() {
-				// TODO Auto-generated method stub
-				if(i < componentsList.size() ) {
-					return componentsList.get(i++);
+				if(i < depth) {
+					return components[i++];
 
 				} else {
 					throw new NoSuchElementException();
@@ -136,33 +258,62 @@ public class Path implements Iterable<String>, Serializable
 			
 			@Override
 			public boolean hasNext() {
-				// TODO Auto-generated method stub
-				return componentsList.size() > i;
+				return i < depth;
 			}
-
-		/*	@Override
-			public void remove() {
-				// TODO Auto-generated method stub
-				throw new UnsupportedOperationException("Remove operation is not supported.");
-			}*/
-			
-			
 		};
-		
-		return iterator;
     }
 
     /** Lists the paths of all files in a directory tree on the local
         filesystem.
 
+        <p>
+        Subdirectories are read in parallel. For very large trees, consider
+        <code>list(File, int, Consumer)</code>, which does not hold all the
+        paths in memory at once.
+
         @param directory The root directory of the directory tree.
         @return An array of relative paths, one for each file in the directory
                 tree.
         @throws FileNotFoundException If the root directory does not exist.
         @throws IllegalArgumentException If <code>directory</code> exists but
                                          does not refer to a directory.
+        @throws UncheckedIOException If a directory in the tree cannot be read.
      */
     public static Path[] list(File directory) throws FileNotFoundException
+    {
+        List<Path> listOfPaths = new ArrayList<>();
+        list(directory, LIST_BATCH_SIZE, batch -> listOfPaths.addAll(Arrays.asList(batch)));
+        return listOfPaths.toArray(new Path[listOfPaths.size()]);
+    }
+    
+    /** Batch size used by <code>list(File)</code>. */
+    private static final int LIST_BATCH_SIZE = 4096;
+    
+    /** Lists the paths of all files in a directory tree on the local
+        filesystem, delivering them in batches as they are found.
+
+        <p>
+        Subdirectories are read in parallel. The consumer is called with
+        batches of at most <code>batchSize</code> paths, in no particular
+        order, on the thread that called this method. The directory reads stay
+        a few batches ahead of the consumer, so a consumer that blocks slows
+        the walk rather than piling up paths. The method returns once every
+        batch has been delivered.
+
+        @param directory The root directory of the directory tree.
+        @param batchSize Maximum number of paths in one batch.
+        @param consumer Receives the relative paths of the files found.
+        @throws FileNotFoundException If the root directory does not exist.
+        @throws IllegalArgumentException If <code>directory</code> exists but
+                                         does not refer to a directory, or if
+                                         <code>batchSize</code> is not
+                                         positive.
+        @throws UncheckedIOException If a directory in the tree cannot be read,
+                                     or the calling thread is interrupted.
+     */
+    public static void list(File directory, int batchSize,
+                            Consumer<Path[]> consumer)
+        throws FileNotFoundException
     {
         if(!directory.exists()) {
         	throw new FileNotFoundException("Root directory does not exist.");
@@ -170,33 +321,22 @@ public class Path implements Iterable<String>, Serializable
         if(!directory.isDirectory()) {
         	throw new IllegalArgumentException("File is not a directory.");
         }
-
-        List<Path> listOfPaths = getRelativePaths(directory, directory);
-        return (Path[]) listOfPaths.toArray(new Path[listOfPaths.size()]);
+        if(batchSize <= 0) {
+        	throw new IllegalArgumentException("Batch size must be positive.");
+        }
         
+        new DirectoryWalker(batchSize, consumer).walk(directory, new Path());
     }
     
     public static List<Path> getRelativePaths(File root, File directory) {
-    	List<Path> pathList= new ArrayList<>();
-    	
-        File[] files = directory.listFiles();
-
-    	for (File f: files) {
-        	if(f.isDirectory()) {
-        		//call a recursive method here
-        		pathList.addAll(getRelativePaths(root, f));
-        	} else {
-        		String path = f.getAbsolutePath().substring(root.getAbsolutePath().length());
-        		path = path.replaceAll("\\\\", "/");
-        		Path p = new Path(path);
-        		pathList.add(p);
-        	}
-        }
+    	String relative = directory.getAbsolutePath().substring(root.getAbsolutePath().length());
+    	Path prefix = new Path("/" + relative.replace(File.separatorChar, '/'));
     	
+    	List<Path> pathList = new ArrayList<>();
+    	new DirectoryWalker(LIST_BATCH_SIZE, batch -> pathList.addAll(Arrays.asList(batch)))
+    			.walk(directory, prefix);
     	return pathList;
     }
-    
-   
 
     /** Determines whether the path represents the root directory.
 
@@ -205,7 +345,7 @@ public class Path implements Iterable<String>, Serializable
      */
     public boolean isRoot()
     {
-        return pathVar.equals(ROOT);
+        return depth == 0;
     }
 
     /** Returns the path to the parent of this path.
@@ -216,16 +356,11 @@ public class Path implements Iterable<String>, Serializable
      */
     public Path parent()
     {
-        if(pathVar.equals(ROOT)) {
+        if(isRoot()) {
         	throw new IllegalArgumentException("Path has no parent.");
         }
         
-        String[] components= pathVar.split("/");
-        StringBuilder parentPath = new StringBuilder();
-        for(int i = 0; i < components.length - 1; i++) {
-        	parentPath.append("/").append(components[i]);
-        }
-        return new Path(parentPath.toString());
+        return parent;
     }
 
     /** Returns the last component in the path.
@@ -236,11 +371,11 @@ public class Path implements Iterable<String>, Serializable
      */
     public String last()
     {
-    	  if(pathVar.equals("/")) {
+    	  if(isRoot()) {
           	throw new IllegalArgumentException("Path has no last component.");
           }
     	  
-    	  return pathVar.split("/")[pathVar.split("/").length - 1];
+    	  return components[depth - 1];
     }
 
     /** Determines if the given path is a subpath of this path.
@@ -255,7 +390,106 @@ public class Path implements Iterable<String>, Serializable
      */
     public boolean isSubpath(Path other)
     {
-        return pathVar.startsWith(other.pathVar);
+        if(other.depth > depth) {
+        	return false;
+        }
+        
+        return ancestor(other.depth).equals(other);
+    }
+    
+    /** Returns the number of components in the path. The root has depth
+        zero. */
+    public int depth()
+    {
+    	return depth;
+    }
+    
+    /** Returns the deepest path of which both this path and the given path are
+        subpaths.
+
+        @param other The other path.
+        @return The common ancestor. This is one of the two paths if one is a
+                subpath of the other, and the root if they share no components.
+     */
+    public Path commonAncestor(Path other)
+    {
+    	int limit = Math.min(depth, other.depth);
+    	int shared = 0;
+    	
+    	while(shared < limit && sameComponent(other, shared)) {
+    		shared++;
+    	}
+    	
+    	return ancestor(shared);
+    }
+    
+    /** Returns the given path relative to this path.
+
+        <p>
+        The result is rooted where this path ends: for this path
+        <code>/a</code> and the argument <code>/a/b/c</code>, the result is
+        <code>/b/c</code>.
+
+        @param descendant A path which has this path as a subpath.
+        @return The components of <code>descendant</code> following those of
+                this path, as a path.
+        @throws IllegalArgumentException If this path is not a subpath of
+                                         <code>descendant</code>.
+     */
+    public Path relativize(Path descendant)
+    {
+    	if(!descendant.isSubpath(this)) {
+    		throw new IllegalArgumentException(descendant + " is not under " + this);
+    	}
+    	
+    	Path result = new Path();
+    	for(int i = depth; i < descendant.depth; i++) {
+    		result = new Path(result, descendant.components[i]);
+    	}
+    	return result;
+    }
+    
+    /** Compares two paths component by component.
+
+        <p>
+        Components are compared as strings. A path sorts before every path of
+        which it is a subpath, so in a sorted sequence each directory is
+        immediately followed by all of its descendants. This allows a sorted
+        collection of paths to find a subtree with a range scan.
+
+        @param other The path to compare with.
+        @return A negative number, zero or a positive number as this path sorts
+                before, equal to or after the other.
+     */
+    @Override
+    public int compareTo(Path other)
+    {
+    	int limit = Math.min(depth, other.depth);
+    	
+    	for(int i = 0; i < limit; i++) {
+    		if(!sameComponent(other, i)) {
+    			return components[i].compareTo(other.components[i]);
+    		}
+    	}
+    	
+    	return Integer.compare(depth, other.depth);
+    }
+    
+    /** Returns the ancestor of this path with the given depth, walking parent
+        links without allocating. */
+    private Path ancestor(int ancestorDepth)
+    {
+    	Path current = this;
+    	while(current.depth > ancestorDepth) {
+    		current = current.parent;
+    	}
+    	return current;
+    }
+    
+    private boolean sameComponent(Path other, int index)
+    {
+    	String mine = components[index], theirs = other.components[index];
+    	return mine == theirs || mine.equals(theirs);
     }
 
     /** Converts the path to <code>File</code> object.
@@ -266,7 +500,7 @@ public class Path implements Iterable<String>, Serializable
      */
     public File toFile(File root)
     {
-        String path = root.getAbsolutePath() + "/" + pathVar;
+        String path = root.getAbsolutePath() + "/" + toString();
         return new File(path);
     }
 
@@ -281,14 +515,34 @@ public class Path implements Iterable<String>, Serializable
     @Override
     public boolean equals(Object other)
     {
-        return pathVar.equals(((Path)other).pathVar);
+        if(this == other) {
+        	return true;
+        }
+        if(!(other instanceof Path)) {
+        	return false;
+        }
+        
+        Path that = (Path) other;
+        if(depth != that.depth || hash != that.hash) {
+        	return false;
+        }
+        
+        // Components are interned, so equal components are usually the same
+        // object. Compare from the end, where paths sharing a prefix differ.
+        for(int i = depth - 1; i >= 0; i--) {
+        	if(!sameComponent(that, i)) {
+        		return false;
+        	}
+        }
+        
+        return true;
     }
 
     /** Returns the hash code of the path. */
     @Override
     public int hashCode()
     {
-        return pathVar.hashCode();
+        return hash;
     }
 
     /** Converts the path to a string.
@@ -302,6 +556,19 @@ public class Path implements Iterable<String>, Serializable
     @Override
     public String toString()
     {
-       return pathVar;
+    	String result = pathString;
+    	if(result == null) {
+    		if(isRoot()) {
+    			result = ROOT;
+    		} else {
+    			StringBuilder builder = new StringBuilder();
+    			for(int i = 0; i < depth; i++) {
+    				builder.append('/').append(components[i]);
+    			}
+    			result = builder.toString();
+    		}
+    		pathString = result;
+    	}
+    	return result;
     }
 }
@@ -0,0 +1,219 @@
+package common;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.io.ObjectStreamException;
+import java.io.StreamCorruptedException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/** Binary encoding of paths.
+
+    <p>
+    A path is written as the number of its components followed by each
+    component, and a component as its length in bytes followed by its UTF-8
+    encoding. All counts and lengths are unsigned variable-length integers:
+    seven bits per byte, least significant group first, with the high bit set
+    on all bytes but the last.
+
+    <p>
+    An array of paths is written as its length followed by each path in
+    order. Each path is written relative to the one before it: first the number
+    of leading components it shares with the previous path, then the number of
+    remaining components, then those components. Files listed from one
+    directory tree share long prefixes, so most paths cost little more than
+    their last component.
+
+    <p>
+    Counts and lengths read from a stream are not trusted to size arrays: a
+    damaged count could otherwise allocate far more memory than the stream
+    holds. Arrays start small and grow as their contents are read, so a
+    damaged stream ends in an <code>EOFException</code> instead.
+ */
+class PathCodec
+{
+	/** Largest array allocated before any of its contents has been read. */
+	private static final int INITIAL_CAPACITY = 1024;
+
+	/** Writes one path. */
+	static void write(DataOutput out, Path path) throws IOException
+	{
+		writeVarint(out, path.depth());
+		for(String component : path) {
+			writeComponent(out, component);
+		}
+	}
+
+	/** Reads one path written by <code>write</code>. */
+	static Path read(DataInput in) throws IOException
+	{
+		return readComponents(in, new Path(), readCount(in));
+	}
+
+	/** Writes an array of paths, each relative to the one before it. */
+	static void writeArray(DataOutput out, Path[] paths) throws IOException
+	{
+		writeVarint(out, paths.length);
+
+		Path previous = new Path();
+		for(Path path : paths) {
+			int shared = previous.commonAncestor(path).depth();
+			writeVarint(out, shared);
+			writeVarint(out, path.depth() - shared);
+
+			int index = 0;
+			for(String component : path) {
+				if(index++ >= shared) {
+					writeComponent(out, component);
+				}
+			}
+
+			previous = path;
+		}
+	}
+
+	/** Reads an array of paths written by <code>writeArray</code>. */
+	static Path[] readArray(DataInput in) throws IOException
+	{
+		int count = readCount(in);
+		Path[] paths = new Path[Math.min(count, INITIAL_CAPACITY)];
+
+		Path previous = new Path();
+		for(int i = 0; i < count; i++) {
+			if(i == paths.length) {
+				paths = Arrays.copyOf(paths, (int) Math.min(count, 2L * i));
+			}
+
+			int shared = readCount(in);
+			if(shared > previous.depth()) {
+				throw new StreamCorruptedException("Shared prefix longer than previous path");
+			}
+
+			Path prefix = previous;
+			while(prefix.depth() > shared) {
+				prefix = prefix.parent();
+			}
+
+			paths[i] = readComponents(in, prefix, readCount(in));
+			previous = paths[i];
+		}
+
+		return paths;
+	}
+
+	private static Path readComponents(DataInput in, Path prefix, int count)
+		throws IOException
+	{
+		Path path = prefix;
+
+		for(int i = 0; i < count; i++) {
+			byte[] bytes = readBytes(in, readCount(in));
+
+			try {
+				path = new Path(path, new String(bytes, StandardCharsets.UTF_8));
+			} catch(IllegalArgumentException e) {
+				throw new StreamCorruptedException("Invalid path component: " + e.getMessage());
+			}
+		}
+
+		return path;
+	}
+
+	/** Reads <code>length</code> bytes, growing the array as they arrive. */
+	private static byte[] readBytes(DataInput in, int length) throws IOException
+	{
+		byte[] bytes = new byte[Math.min(length, INITIAL_CAPACITY)];
+		in.readFully(bytes);
+
+		while(bytes.length < length) {
+			int read = bytes.length;
+			bytes = Arrays.copyOf(bytes, (int) Math.min(length, 2L * read));
+			in.readFully(bytes, read, bytes.length - read);
+		}
+
+		return bytes;
+	}
+
+	private static void writeComponent(DataOutput out, String component) throws IOException
+	{
+		byte[] bytes = component.getBytes(StandardCharsets.UTF_8);
+		writeVarint(out, bytes.length);
+		out.write(bytes);
+	}
+
+	private static void writeVarint(DataOutput out, int value) throws IOException
+	{
+		while((value & ~0x7f) != 0) {
+			out.writeByte((value & 0x7f) | 0x80);
+			value >>>= 7;
+		}
+		out.writeByte(value);
+	}
+
+	/** Reads a varint used as a count or length, which must be non-negative. */
+	private static int readCount(DataInput in) throws IOException
+	{
+		int value = 0;
+
+		for(int shift = 0; shift < 32; shift += 7) {
+			int b = in.readUnsignedByte();
+			value |= (b & 0x7f) << shift;
+			if((b & 0x80) == 0) {
+				if(value < 0) {
+					throw new StreamCorruptedException("Negative count");
+				}
+				return value;
+			}
+		}
+
+		throw new StreamCorruptedException("Malformed varint");
+	}
+
+	/** Serialized form of <code>Path</code>.
+
+	    <p>
+	    Default serialization would write the path's fields, including its
+	    parent and the shared component array, for every path. This form
+	    writes only the encoding described above.
+	 */
+	static class SerialForm implements Externalizable
+	{
+		private static final long serialVersionUID = 1L;
+
+		private Path path;
+
+		/** Creates an empty form, for deserialization. */
+		public SerialForm()
+		{
+		}
+
+		SerialForm(Path path)
+		{
+			this.path = path;
+		}
+
+		@Override
+		public void writeExternal(ObjectOutput out) throws IOException
+		{
+			write(out, path);
+		}
+
+		@Override
+		public void readExternal(ObjectInput in) throws IOException
+		{
+			path = read(in);
+		}
+
+		/** Returns the canonical path, so that paths received as arguments or
+		    results of remote calls share memory with the paths already held by
+		    the receiver. */
+		private Object readResolve() throws ObjectStreamException
+		{
+			return path.intern();
+		}
+	}
+}
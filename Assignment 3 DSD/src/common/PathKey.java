@@ -0,0 +1,256 @@
+package common;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/** Binary key identifying a path, for use in compact indexes.
+
+    <p>
+    A key is the UTF-8 encoding of the path's string form together with a
+    64-bit hash of those bytes. Indexes with very many entries can copy the
+    bytes into large shared buffers with <code>copyTo</code> and compare
+    stored keys with <code>matches</code>, and so store each path as an
+    offset and a <code>long</code> hash, rather than as a <code>Path</code>
+    object, its component array and its strings.
+
+    <p>
+    The 64-bit hash is stable across runs and platforms, so it may be stored
+    alongside the key in open-addressing tables and on disk. Two keys are equal
+    if their bytes are equal.
+ */
+public final class PathKey
+{
+	private final byte[] bytes;
+	private final int offset;
+	private final int length;
+	private final long hash;
+
+	PathKey(byte[] bytes, int offset, int length, long hash)
+	{
+		this.bytes = bytes;
+		this.offset = offset;
+		this.length = length;
+		this.hash = hash;
+	}
+
+	/** Creates the key of a path.
+
+	    @param path The path.
+	    @return A key backed by a new array holding exactly the encoded path.
+	 */
+	public static PathKey of(Path path)
+	{
+		byte[] bytes = new byte[encodedLength(path)];
+		encode(path, bytes, 0);
+		return new PathKey(bytes, 0, bytes.length, hash64(bytes, 0, bytes.length));
+	}
+
+	/** Returns the number of bytes <code>encode</code> writes for a path. */
+	static int encodedLength(Path path)
+	{
+		if(path.isRoot()) {
+			return 1;
+		}
+
+		int length = 0;
+		for(String component : path) {
+			length += 1 + utf8Length(component);
+		}
+		return length;
+	}
+
+	/** Writes the encoded path into <code>target</code> at
+	    <code>offset</code>, without building the path's string form.
+
+	    @return The offset just past the bytes written.
+	 */
+	static int encode(Path path, byte[] target, int offset)
+	{
+		if(path.isRoot()) {
+			target[offset] = '/';
+			return offset + 1;
+		}
+
+		for(String component : path) {
+			target[offset++] = '/';
+			offset = encodeUtf8(component, target, offset);
+		}
+		return offset;
+	}
+
+	/** Encodes a string as UTF-8 the way <code>String.getBytes</code> does,
+	    writing directly into <code>target</code>. */
+	private static int encodeUtf8(String s, byte[] target, int offset)
+	{
+		for(int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if(c < 0x80) {
+				target[offset++] = (byte) c;
+			} else if(c < 0x800) {
+				target[offset++] = (byte) (0xc0 | (c >> 6));
+				target[offset++] = (byte) (0x80 | (c & 0x3f));
+			} else if(Character.isHighSurrogate(c) && i + 1 < s.length()
+					&& Character.isLowSurrogate(s.charAt(i + 1))) {
+				int cp = Character.toCodePoint(c, s.charAt(++i));
+				target[offset++] = (byte) (0xf0 | (cp >> 18));
+				target[offset++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+				target[offset++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+				target[offset++] = (byte) (0x80 | (cp & 0x3f));
+			} else if(Character.isSurrogate(c)) {
+				target[offset++] = '?';
+			} else {
+				target[offset++] = (byte) (0xe0 | (c >> 12));
+				target[offset++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+				target[offset++] = (byte) (0x80 | (c & 0x3f));
+			}
+		}
+		return offset;
+	}
+
+	/** Returns the 64-bit hash of a key's bytes.
+
+	    <p>
+	    The hash is FNV-1a over the bytes, followed by a final avalanche step so
+	    that the low bits used to index a table depend on every byte.
+	 */
+	static long hash64(byte[] bytes, int offset, int length)
+	{
+		long h = 0xcbf29ce484222325L;
+		for(int i = offset; i < offset + length; i++) {
+			h ^= bytes[i] & 0xff;
+			h *= 0x100000001b3L;
+		}
+
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+
+	private static int utf8Length(String s)
+	{
+		int length = 0;
+		for(int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if(c < 0x80) {
+				length += 1;
+			} else if(c < 0x800) {
+				length += 2;
+			} else if(Character.isHighSurrogate(c) && i + 1 < s.length()
+					&& Character.isLowSurrogate(s.charAt(i + 1))) {
+				length += 4;
+				i++;
+			} else {
+				// Lone surrogates are encoded as '?' by String.getBytes.
+				length += Character.isSurrogate(c) ? 1 : 3;
+			}
+		}
+		return length;
+	}
+
+	/** Returns the 64-bit hash of the key. */
+	public long hash64()
+	{
+		return hash;
+	}
+
+	/** Returns the length of the encoded key in bytes. */
+	public int length()
+	{
+		return length;
+	}
+
+	/** Returns the path this key was created from.
+
+	    @throws IllegalArgumentException If the key's bytes do not encode a
+	                                     valid path.
+	 */
+	public Path toPath()
+	{
+		Path path = new Path();
+		int start = offset + 1;
+		int end = offset + length;
+
+		while(start < end) {
+			int next = start;
+			while(next < end && bytes[next] != '/') {
+				next++;
+			}
+			path = new Path(path, new String(bytes, start, next - start, StandardCharsets.UTF_8));
+			start = next + 1;
+		}
+
+		return path;
+	}
+
+	/** Determines whether the key's bytes equal the given bytes. */
+	boolean matches(byte[] other, int otherOffset, int otherLength)
+	{
+		if(length != otherLength) {
+			return false;
+		}
+
+		for(int i = 0; i < length; i++) {
+			if(bytes[offset + i] != other[otherOffset + i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/** Copies the key's bytes into <code>target</code> at
+	    <code>targetOffset</code>. */
+	void copyTo(byte[] target, int targetOffset)
+	{
+		System.arraycopy(bytes, offset, target, targetOffset, length);
+	}
+
+	/** Copies the key's bytes into a buffer, starting at the given index. The
+	    buffer's position is not changed. */
+	public void copyTo(ByteBuffer target, int index)
+	{
+		target.put(index, bytes, offset, length);
+	}
+
+	/** Determines whether the key's bytes equal <code>length</code> bytes of
+	    a buffer, starting at the given index. The buffer's position is not
+	    changed. */
+	public boolean matches(ByteBuffer buffer, int index, int length)
+	{
+		if(this.length != length) {
+			return false;
+		}
+
+		for(int i = 0; i < length; i++) {
+			if(bytes[offset + i] != buffer.get(index + i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public boolean equals(Object other)
+	{
+		if(!(other instanceof PathKey)) {
+			return false;
+		}
+
+		PathKey that = (PathKey) other;
+		return hash == that.hash && matches(that.bytes, that.offset, that.length);
+	}
+
+	@Override
+	public int hashCode()
+	{
+		return (int) (hash ^ (hash >>> 32));
+	}
+
+	@Override
+	public String toString()
+	{
+		return new String(bytes, offset, length, StandardCharsets.UTF_8);
+	}
+}
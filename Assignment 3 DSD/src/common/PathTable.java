@@ -0,0 +1,87 @@
+package common;
+
+import java.lang.ref.WeakReference;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/** Table of canonical <code>Path</code> objects, used by
+    <code>Path.intern</code>.
+
+    <p>
+    Entries are held weakly: a canonical path is dropped from the table once
+    nothing else refers to it. The table is split into independently locked
+    stripes selected by hash code, so that threads interning different paths
+    rarely contend.
+ */
+class PathTable
+{
+	private static final int STRIPES = 64;
+
+	private final Stripe[] stripes = new Stripe[STRIPES];
+
+	PathTable()
+	{
+		for(int i = 0; i < STRIPES; i++) {
+			stripes[i] = new Stripe();
+		}
+	}
+
+	/** One independently locked part of the table. A named class, so that
+	    the stripes can be held in an array without a generic array type. */
+	private static final class Stripe extends WeakHashMap<Path, WeakReference<Path>>
+	{
+	}
+
+	/** Returns the canonical path equal to <code>path</code>, or
+	    <code>null</code> if there is none. */
+	Path get(Path path)
+	{
+		Map<Path, WeakReference<Path>> stripe = stripe(path);
+
+		synchronized(stripe) {
+			WeakReference<Path> reference = stripe.get(path);
+			return reference == null ? null : reference.get();
+		}
+	}
+
+	/** Makes <code>path</code> canonical unless another equal path already is.
+
+	    @return The canonical path.
+	 */
+	Path putIfAbsent(Path path)
+	{
+		Map<Path, WeakReference<Path>> stripe = stripe(path);
+
+		synchronized(stripe) {
+			WeakReference<Path> reference = stripe.get(path);
+			Path existing = reference == null ? null : reference.get();
+
+			if(existing != null) {
+				return existing;
+			}
+
+			stripe.put(path, new WeakReference<>(path));
+			return path;
+		}
+	}
+
+	/** Returns the number of canonical paths currently held. */
+	int size()
+	{
+		int size = 0;
+
+		for(Stripe stripe : stripes) {
+			synchronized(stripe) {
+				size += stripe.size();
+			}
+		}
+
+		return size;
+	}
+
+	private Stripe stripe(Path path)
+	{
+		int h = path.hashCode();
+		return stripes[(h ^ (h >>> 16)) & (STRIPES - 1)];
+	}
+}
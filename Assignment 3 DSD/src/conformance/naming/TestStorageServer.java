@@ -186,6 +186,49 @@ class TestStorageServer implements Storage, Command
                                                 "implemented");
     }
 
+    /** Throws <code>UnsupportedOperationException</code>. */
+    @Override
+    public boolean copy(Path file, Storage server)
+    {
+        test.failure(new TestFailed("unexpected call to copy method in " +
+                                    "storage server"));
+
+        throw new UnsupportedOperationException("copy method not implemented");
+    }
+
+    /** Throws <code>UnsupportedOperationException</code>. */
+    @Override
+    public void addFollower(Path file, Command follower)
+    {
+        test.failure(new TestFailed("unexpected call to addFollower method " +
+                                    "in storage server"));
+
+        throw new UnsupportedOperationException("addFollower method not " +
+                                                "implemented");
+    }
+
+    /** Throws <code>UnsupportedOperationException</code>. */
+    @Override
+    public void removeFollower(Path file, Command follower)
+    {
+        test.failure(new TestFailed("unexpected call to removeFollower " +
+                                    "method in storage server"));
+
+        throw new UnsupportedOperationException("removeFollower method not " +
+                                                "implemented");
+    }
+
+    /** Throws <code>UnsupportedOperationException</code>. */
+    @Override
+    public void invalidate(Path file)
+    {
+        test.failure(new TestFailed("unexpected call to invalidate method in " +
+                                    "storage server"));
+
+        throw new UnsupportedOperationException("invalidate method not " +
+                                                "implemented");
+    }
+
     /** Client interface skeleton.
 
         <p>
@@ -133,6 +133,70 @@ class TestNamingServer implements naming.Registration
             return new Path[0];
     }
 
+    /** Fails the test. The storage servers under test have no record of an
+        earlier registration, and so must call <code>register</code>. */
+    @Override
+    public boolean reregister(Storage client_stub, Command command_stub,
+                              long generation)
+    {
+        test.failure(new TestFailed("unexpected call to reregister method " +
+                                    "in naming server"));
+
+        throw new UnsupportedOperationException("reregister method not " +
+                                                "implemented");
+    }
+
+    /** Fails the test. The storage servers under test keep no record of their
+        registration, and so have no use for its generation. */
+    @Override
+    public long generation(Storage client_stub)
+    {
+        test.failure(new TestFailed("unexpected call to generation method " +
+                                    "in naming server"));
+
+        throw new UnsupportedOperationException("generation method not " +
+                                                "implemented");
+    }
+
+    /** Fails the test. The storage servers under test have few enough files
+        to register them all in one call. */
+    @Override
+    public Path[] addFiles(Storage client_stub, Path[] files)
+    {
+        test.failure(new TestFailed("unexpected call to addFiles method in " +
+                                    "naming server"));
+
+        throw new UnsupportedOperationException("addFiles method not " +
+                                                "implemented");
+    }
+
+    /** Fails the test. Only a storage server that has registered again
+        reports removed files. */
+    /** Accepts the end of a registration. Storage servers call it after
+        every call to <code>register</code>. */
+    @Override
+    public void finishRegistration(Storage client_stub)
+    {
+    }
+
+    @Override
+    public void removeFiles(Storage client_stub, Path[] files)
+    {
+        test.failure(new TestFailed("unexpected call to removeFiles method " +
+                                    "in naming server"));
+
+        throw new UnsupportedOperationException("removeFiles method not " +
+                                                "implemented");
+    }
+
+    /** Accepts a heartbeat. The tests do not check heartbeats, which are
+        sent at intervals longer than most tests run. */
+    @Override
+    public boolean heartbeat(Storage client_stub, LoadReport report)
+    {
+        return true;
+    }
+
     /** Retrieves a registration stub for the test server.
 
         @return The stub.
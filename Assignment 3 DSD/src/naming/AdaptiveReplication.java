@@ -0,0 +1,343 @@
+package naming;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import common.Path;
+import rmi.RMIException;
+
+/** Adds replicas to files that many clients ask for, and removes them once
+    demand falls again.
+
+    <p>
+    Every <code>getStorage</code> request is counted in a
+    <code>HotFileSketch</code>. A file whose decayed count reaches the
+    threshold is hot, and from then on is counted exactly, in a counter of
+    its own that many threads can increment without contending. Once per
+    period, each hot file that is still above the threshold gets one more
+    replica, up to a maximum, and each file whose count has fallen below a
+    quarter of the threshold loses the replicas added to it.
+
+    <p>
+    A replica is added by asking the new storage server to copy the file
+    from the file's first replica, so the contents do not pass through the
+    naming server. The first replica is first told to invalidate the copy
+    before each write to the file (see <code>Command.addFollower</code>).
+    A write may reach the first replica alone, through a stub obtained
+    before the replica was added; once the copy is invalidated, its server
+    answers reads from the first replica, so readers never get the old
+    contents. If the file is written while it is copied, or its entry
+    changes, the copy is deleted and the replica is not added. The replicas
+    are meant for files that are read by many clients at once and rarely
+    written, such as programs and configuration read at the start of a
+    job: once written, a file's added replicas no longer take reads off its
+    first replica.
+
+    <p>
+    A removed replica is deleted from its storage server one period after
+    it is removed from the tree, so that clients given it in the meantime
+    can finish reading. It is kept in step with writes until then.
+
+    <p>
+    Which copies to invalidate is known only to the storage servers while
+    they run. The replicas added before the naming server or a storage
+    server restarts are kept as ordinary replicas.
+
+    <p>
+    The threshold is set by the system property
+    <code>naming.hotFiles.threshold</code>, 1000 requests by default, and the
+    largest number of replicas a hot file may reach by
+    <code>naming.hotFiles.maxReplicas</code>, 3 by default.
+ */
+class AdaptiveReplication
+{
+	static final String THRESHOLD_PROPERTY = "naming.hotFiles.threshold";
+	static final String MAX_REPLICAS_PROPERTY = "naming.hotFiles.maxReplicas";
+
+	/** Number of seconds between adjustments. The counts are halved at the
+	    same interval. */
+	private static final long PERIOD = 10;
+	/** Largest number of files counted exactly at the same time. */
+	private static final int MAX_HOT = 1024;
+
+	private final int threshold = Integer.getInteger(THRESHOLD_PROPERTY, 1000);
+	private final int maxReplicas = Integer.getInteger(MAX_REPLICAS_PROPERTY, 3);
+
+	private final HotFileSketch sketch = new HotFileSketch();
+	private final Map<Path, HotFile> hot = new ConcurrentHashMap<>();
+	/** Replicas removed from the tree in the last period. Used only by the
+	    adjusting thread. */
+	private List<Removal> removals = new ArrayList<>();
+
+	private final Namespace namespace;
+	private final List<RegisteredServer> servers;
+	private final PlacementPolicy placement;
+	/** Records the generations forgotten when replicas are removed. */
+	private final Journal journal;
+	/** Makes the journaled changes durable. */
+	private final Runnable sync;
+	private ScheduledExecutorService adjuster;
+
+	AdaptiveReplication(Namespace namespace, List<RegisteredServer> servers,
+			PlacementPolicy placement, Journal journal, Runnable sync)
+	{
+		this.namespace = namespace;
+		this.servers = servers;
+		this.placement = placement;
+		this.journal = journal;
+		this.sync = sync;
+	}
+
+	/** Counts a request for the storage of an existing file. */
+	void requested(Path file)
+	{
+		HotFile entry = hot.get(file);
+		if(entry != null) {
+			entry.requests.increment();
+			return;
+		}
+
+		int estimate = sketch.record(file);
+		if(estimate >= threshold && hot.size() < MAX_HOT) {
+			hot.putIfAbsent(file, new HotFile(estimate));
+		}
+	}
+
+	/** Starts adjusting replicas in the background. */
+	synchronized void start()
+	{
+		adjuster = Executors.newSingleThreadScheduledExecutor(task -> {
+			Thread thread = new Thread(task, "naming-hot-files");
+			thread.setDaemon(true);
+			return thread;
+		});
+		adjuster.scheduleWithFixedDelay(this::adjust, PERIOD, PERIOD,
+				TimeUnit.SECONDS);
+	}
+
+	/** Stops adjusting replicas, interrupting any copy in progress. */
+	synchronized void stop()
+	{
+		if(adjuster != null) {
+			adjuster.shutdownNow();
+		}
+	}
+
+	/** Adds and removes replicas according to the counts of the last period,
+	    then halves the counts. */
+	private void adjust()
+	{
+		deleteRemoved();
+
+		for(Map.Entry<Path, HotFile> entry : hot.entrySet()) {
+			Path file = entry.getKey();
+			HotFile state = entry.getValue();
+
+			state.count = state.count / 2 + state.requests.sumThenReset();
+
+			try {
+				if(state.count >= threshold) {
+					addReplica(file, state);
+				} else if(state.count < threshold / 4) {
+					removeReplicas(file, state);
+					hot.remove(file);
+				}
+			} catch(FileNotFoundException e) {
+				// Deleted, or replaced by a directory.
+				hot.remove(file);
+			}
+		}
+
+		sketch.decay();
+	}
+
+	/** Copies a hot file to one more storage server. */
+	private void addReplica(Path file, HotFile state) throws FileNotFoundException
+	{
+		Node.FileEntry entry = namespace.file(file);
+		if(entry.replicas.length >= maxReplicas) {
+			return;
+		}
+
+		List<RegisteredServer> candidates = new ArrayList<>();
+		for(RegisteredServer server : servers) {
+			if(!server.recovered && !server.isDown() && !entry.isOn(server)) {
+				candidates.add(server);
+			}
+		}
+		if(candidates.isEmpty()) {
+			return;
+		}
+
+		RegisteredServer source = entry.primary();
+		RegisteredServer target = placement.choose(file, candidates);
+
+		RegisteredServer[] replicas = new RegisteredServer[entry.replicas.length + 1];
+		System.arraycopy(entry.replicas, 0, replicas, 0, entry.replicas.length);
+		replicas[entry.replicas.length] = target;
+
+		boolean copied = false;
+		try {
+			// Followed before the copy begins, so that no write to the
+			// source after the copy has read the file goes unnoticed.
+			source.command.addFollower(file, target.command);
+
+			// If the copy is not made, or the file is written meanwhile,
+			// the target deletes what it has copied.
+			copied = target.command.copy(file, source.storage);
+
+			if(copied && namespace.replaceFile(file, entry,
+					new Node.FileEntry(replicas))) {
+				sync.run();
+				state.added.add(target);
+				return;
+			}
+		} catch(RMIException | IOException e) {
+			// Tried again next period, if the file is still hot.
+		}
+
+		// Unless the file was meanwhile created again on the target, a copy
+		// made for an entry that has since changed is removed.
+		try {
+			source.command.removeFollower(file, target.command);
+			if(copied && !Node.isFileOn(namespace.file(file), target)) {
+				target.command.delete(file);
+			}
+		} catch(RMIException e) {
+			// The copy is reported as a duplicate when the target next
+			// registers with every file.
+			target.forgetGeneration(journal);
+			sync.run();
+		}
+	}
+
+	/** Removes the replicas added to a file that is no longer hot. */
+	private void removeReplicas(Path file, HotFile state) throws FileNotFoundException
+	{
+		if(state.added.isEmpty()) {
+			return;
+		}
+
+		Node.FileEntry entry = namespace.file(file);
+		List<RegisteredServer> kept = new ArrayList<>();
+		List<RegisteredServer> removed = new ArrayList<>();
+
+		for(RegisteredServer replica : entry.replicas) {
+			(state.added.contains(replica) && replica != entry.primary()
+					? removed : kept).add(replica);
+		}
+
+		if(removed.isEmpty() || !namespace.replaceFile(file, entry,
+				new Node.FileEntry(kept.toArray(new RegisteredServer[kept.size()])))) {
+			return;
+		}
+
+		// Until their copies are deleted, the servers have files the tree
+		// does not list on them.
+		for(RegisteredServer server : removed) {
+			server.forgetGeneration(journal);
+		}
+		sync.run();
+		state.added.removeAll(removed);
+
+		// The entry as stored, which need not be the one given to
+		// replaceFile; it is compared by identity later.
+		Node.FileEntry replacement = null;
+		try {
+			replacement = namespace.file(file);
+		} catch(FileNotFoundException e) {
+			// Deleted meanwhile.
+		}
+		removals.add(new Removal(file, entry.primary(), replacement, removed));
+	}
+
+	/** Deletes the replicas removed from the tree in the previous period from
+	    their storage servers.
+
+	    <p>
+	    A copy is deleted only if nothing can still refer to it: if the path
+	    no longer exists, or if it is still the same file, with the entry it
+	    was given when the replicas were removed. A path that now names a
+	    directory, or a file that has since been deleted and created again or
+	    given other replicas, is left alone; a copy left behind is reported as
+	    a duplicate when its server next registers.
+	 */
+	private void deleteRemoved()
+	{
+		List<Removal> due = removals;
+		removals = new ArrayList<>();
+
+		for(Removal removal : due) {
+			boolean deleted = !namespace.exists(removal.file);
+			Node.FileEntry current = null;
+			if(!deleted) {
+				try {
+					current = namespace.file(removal.file);
+				} catch(FileNotFoundException e) {
+					// A directory, or deleted just now; left alone.
+				}
+			}
+
+			for(RegisteredServer server : removal.servers) {
+				try {
+					removal.source.command.removeFollower(removal.file,
+							server.command);
+
+					if(deleted || (current != null && current == removal.entry
+							&& !current.isOn(server))) {
+						server.command.delete(removal.file);
+					}
+				} catch(RMIException e) {
+					// The copy is reported as a duplicate when the server
+					// next registers.
+				}
+			}
+		}
+	}
+
+	/** Counts of a hot file and the replicas added to it. */
+	private static class HotFile
+	{
+		/** Requests since the last adjustment. */
+		final LongAdder requests = new LongAdder();
+		/** Decayed count as of the last adjustment. */
+		long count;
+		/** Replicas added because the file is hot. Used only by the
+		    adjusting thread. */
+		final List<RegisteredServer> added = new ArrayList<>();
+
+		HotFile(int count)
+		{
+			this.count = count;
+		}
+	}
+
+	/** Replicas removed from the tree, to be deleted from their servers. */
+	private static class Removal
+	{
+		final Path file;
+		/** Server the replicas were copied from, which invalidates them. */
+		final RegisteredServer source;
+		/** Entry of the file once the replicas were removed, or
+		    <code>null</code> if it could not be read. */
+		final Node.FileEntry entry;
+		final List<RegisteredServer> servers;
+
+		Removal(Path file, RegisteredServer source, Node.FileEntry entry,
+				List<RegisteredServer> servers)
+		{
+			this.file = file;
+			this.source = source;
+			this.entry = entry;
+			this.servers = servers;
+		}
+	}
+}
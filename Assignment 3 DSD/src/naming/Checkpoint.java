@@ -0,0 +1,402 @@
+package naming;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.zip.CRC32;
+
+import common.Path;
+import rmi.Stub;
+import storage.Command;
+import storage.Storage;
+
+/** Binary image of the naming server's directory tree, written in the
+    background and loaded on startup.
+
+    <p>
+    A checkpoint records the registered storage servers and every file and
+    empty directory, together with the number of the first edit log segment
+    that is not covered by it. The log is rolled before the tree is walked,
+    so every change in the older segments is in the image. Changes made
+    during the walk may also be in it; replaying them from the newer segments
+    gives the same tree, since replaying a change that is already present
+    has no effect.
+
+    <p>
+    The tree is written in sections of at most <code>SECTION_ENTRIES</code>
+    entries, each encoded with <code>Path.writeArray</code> and protected by
+    a CRC-32. The offsets of the sections are stored at the end of the file.
+    Loading maps each section into memory and decodes the sections in
+    parallel, so startup time is bounded by reading the file rather than by
+    building paths on one thread.
+
+    <p>
+    The image is written to a temporary file and renamed into place, so a
+    crash while writing leaves the previous checkpoint intact.
+ */
+class Checkpoint
+{
+	/** Name of the image in the naming server's state directory. */
+	static final String FILE_NAME = "namespace.image";
+
+	private static final int MAGIC = 0x4e534931;
+	/** Format written. Version 1 recorded one server per file, and versions
+	    1 and 2 no generation for each server. */
+	private static final int VERSION = 3;
+	/** Largest number of files and empty directories in one section. */
+	private static final int SECTION_ENTRIES = 65536;
+	/** Length of the fixed part at the end of the file: the trailer offset
+	    and the magic number. */
+	private static final int FOOTER_LENGTH = 8 + 4;
+
+	/** Writes a checkpoint of <code>namespace</code>.
+
+	    @param firstSegment Number of the first log segment the checkpoint does
+	                        not cover. The log must have been rolled to this
+	                        segment before the call.
+	    @param servers The registered storage servers. Read after the tree has
+	                   been walked, so that every server the tree refers to is
+	                   included.
+	    @throws IOException If the image cannot be written.
+	 */
+	static void write(File directory, long firstSegment, Namespace namespace,
+			List<RegisteredServer> servers) throws IOException
+	{
+		File temporary = new File(directory, FILE_NAME + ".tmp");
+
+		try(FileChannel channel = FileChannel.open(temporary.toPath(),
+				StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING)) {
+
+			SectionWriter sections = new SectionWriter(channel);
+			namespace.walk(sections);
+			sections.flush();
+
+			// The trailer follows the sections. It lists the storage servers,
+			// which are only read now so that it includes every server the
+			// sections refer to.
+			ByteArrayOutputStream trailer = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(trailer);
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeLong(firstSegment);
+
+			List<RegisteredServer> known = new ArrayList<>(servers);
+			out.writeInt(known.size());
+			for(RegisteredServer server : known) {
+				EditLog.writeAddress(out, Stub.address(server.storage));
+				EditLog.writeAddress(out, Stub.address(server.command));
+				out.writeLong(server.generation);
+			}
+
+			out.writeInt(sections.offsets.size());
+			for(int i = 0; i < sections.offsets.size(); i++) {
+				out.writeLong(sections.offsets.get(i));
+				out.writeInt(sections.lengths.get(i));
+				out.writeInt(sections.crcs.get(i));
+			}
+			out.writeLong(sections.position);
+			out.writeInt(MAGIC);
+
+			writeFully(channel, ByteBuffer.wrap(trailer.toByteArray()));
+			channel.force(true);
+		}
+
+		Files.move(temporary.toPath(), new File(directory, FILE_NAME).toPath(),
+				StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/** Loads the checkpoint in <code>directory</code>, if there is one.
+
+	    <p>
+	    The storage servers it records are recreated from their addresses,
+	    marked as recovered, and added to <code>servers</code>. Its files and
+	    directories are added to <code>namespace</code>.
+
+	    @return The number of the first log segment to replay: the segment
+	            recorded in the checkpoint, or 1 if there is no checkpoint.
+	    @throws IOException If the image cannot be read or is damaged.
+	 */
+	static long load(File directory, Namespace namespace,
+			List<RegisteredServer> servers) throws IOException
+	{
+		File file = new File(directory, FILE_NAME);
+		if(!file.exists()) {
+			return 1;
+		}
+
+		try(FileChannel channel = FileChannel.open(file.toPath(),
+				StandardOpenOption.READ)) {
+
+			long size = channel.size();
+			if(size < FOOTER_LENGTH) {
+				throw new IOException("checkpoint is truncated");
+			}
+
+			ByteBuffer footer = channel.map(FileChannel.MapMode.READ_ONLY,
+					size - FOOTER_LENGTH, FOOTER_LENGTH);
+			long trailerOffset = footer.getLong();
+			if(footer.getInt() != MAGIC || trailerOffset < 0
+					|| trailerOffset > size - FOOTER_LENGTH) {
+				throw new IOException("checkpoint is damaged");
+			}
+
+			DataInputStream trailer = new DataInputStream(new BufferInputStream(
+					channel.map(FileChannel.MapMode.READ_ONLY, trailerOffset,
+							size - FOOTER_LENGTH - trailerOffset)));
+
+			if(trailer.readInt() != MAGIC) {
+				throw new IOException("checkpoint has an unknown format");
+			}
+
+			int version = trailer.readInt();
+			if(version < 1 || version > VERSION) {
+				throw new IOException("checkpoint has an unknown format");
+			}
+
+			long firstSegment = trailer.readLong();
+
+			int serverCount = trailer.readInt();
+			for(int id = 0; id < serverCount; id++) {
+				Storage storage = Stub.create(Storage.class, EditLog.readAddress(trailer));
+				Command command = Stub.create(Command.class, EditLog.readAddress(trailer));
+				RegisteredServer server = new RegisteredServer(id, storage, command, true);
+				if(version >= 3) {
+					server.generation = trailer.readLong();
+				}
+				servers.add(server);
+			}
+
+			int sectionCount = trailer.readInt();
+			List<SectionLoader> loaders = new ArrayList<>();
+			for(int i = 0; i < sectionCount; i++) {
+				long offset = trailer.readLong();
+				int length = trailer.readInt();
+				int crc = trailer.readInt();
+
+				if(offset < 0 || length < 0 || offset + length > trailerOffset) {
+					throw new IOException("checkpoint is damaged");
+				}
+
+				loaders.add(new SectionLoader(channel.map(
+						FileChannel.MapMode.READ_ONLY, offset, length), crc,
+						version, namespace, servers));
+			}
+
+			try {
+				ForkJoinTask.invokeAll(loaders);
+			} catch(UncheckedIOException e) {
+				throw e.getCause();
+			}
+
+			return firstSegment;
+		}
+	}
+
+	private static void writeFully(FileChannel channel, ByteBuffer buffer)
+		throws IOException
+	{
+		while(buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+	}
+
+	/** Collects the entries reported by a walk into sections and writes each
+	    section once it is full. */
+	private static class SectionWriter implements Namespace.Visitor
+	{
+		private final FileChannel channel;
+		/** Where the next section is written. */
+		long position = 0;
+		final List<Long> offsets = new ArrayList<>();
+		final List<Integer> lengths = new ArrayList<>();
+		final List<Integer> crcs = new ArrayList<>();
+
+		private final List<Path> emptyDirectories = new ArrayList<>();
+		/** Files of the current section, by the numbers of the servers
+		    holding their replicas. */
+		private final Map<List<Integer>, List<Path>> files = new HashMap<>();
+		/** An entry for each key of <code>files</code>. */
+		private final Map<List<Integer>, Node.FileEntry> replicaSets = new HashMap<>();
+		private int entries = 0;
+
+		SectionWriter(FileChannel channel)
+		{
+			this.channel = channel;
+		}
+
+		@Override
+		public void file(Path file, Node.FileEntry entry) throws IOException
+		{
+			List<Integer> replicas = new ArrayList<>(entry.replicas.length);
+			for(RegisteredServer replica : entry.replicas) {
+				replicas.add(replica.id);
+			}
+
+			replicaSets.putIfAbsent(replicas, entry);
+			files.computeIfAbsent(replicas, key -> new ArrayList<>()).add(file);
+			added();
+		}
+
+		@Override
+		public void emptyDirectory(Path directory) throws IOException
+		{
+			emptyDirectories.add(directory);
+			added();
+		}
+
+		private void added() throws IOException
+		{
+			if(++entries == SECTION_ENTRIES) {
+				flush();
+			}
+		}
+
+		/** Writes the current section, if it has any entries.
+
+		    <p>
+		    A section is the empty directories, then the number of sets of
+		    replicas of the files in the section, then for each set the
+		    numbers of its servers and its files.
+		 */
+		void flush() throws IOException
+		{
+			if(entries == 0) {
+				return;
+			}
+
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(bytes);
+
+			Path.writeArray(out, emptyDirectories.toArray(new Path[emptyDirectories.size()]));
+			out.writeInt(files.size());
+			for(Map.Entry<List<Integer>, List<Path>> group : files.entrySet()) {
+				EditLog.writeReplicas(out, replicaSets.get(group.getKey()));
+				Path.writeArray(out, group.getValue().toArray(new Path[group.getValue().size()]));
+			}
+
+			byte[] section = bytes.toByteArray();
+			CRC32 crc = new CRC32();
+			crc.update(section);
+
+			offsets.add(position);
+			lengths.add(section.length);
+			crcs.add((int) crc.getValue());
+
+			writeFully(channel, ByteBuffer.wrap(section));
+			position += section.length;
+
+			emptyDirectories.clear();
+			files.clear();
+			replicaSets.clear();
+			entries = 0;
+		}
+	}
+
+	/** Decodes one mapped section and adds its entries to the namespace. */
+	// Serializable only as a ForkJoinTask; never serialized.
+	@SuppressWarnings("serial")
+	private static class SectionLoader extends RecursiveAction
+	{
+		private final MappedByteBuffer section;
+		private final int crc;
+		private final int version;
+		private final Namespace namespace;
+		private final List<RegisteredServer> servers;
+
+		SectionLoader(MappedByteBuffer section, int crc, int version,
+				Namespace namespace, List<RegisteredServer> servers)
+		{
+			this.section = section;
+			this.crc = crc;
+			this.version = version;
+			this.namespace = namespace;
+			this.servers = servers;
+		}
+
+		@Override
+		protected void compute()
+		{
+			try {
+				CRC32 check = new CRC32();
+				check.update(section.duplicate());
+				if((int) check.getValue() != crc) {
+					throw new IOException("checkpoint section is damaged");
+				}
+
+				DataInputStream in = new DataInputStream(new BufferInputStream(section));
+
+				for(Path directory : Path.readArray(in)) {
+					EditLog.createDirectories(namespace, directory);
+				}
+
+				int groups = in.readInt();
+				for(int i = 0; i < groups; i++) {
+					Node.FileEntry entry;
+					if(version == 1) {
+						int id = in.readInt();
+						if(id < 0 || id >= servers.size()) {
+							throw new IOException("checkpoint refers to an unknown storage server");
+						}
+						entry = new Node.FileEntry(servers.get(id));
+					} else {
+						entry = EditLog.readReplicas(in, servers);
+					}
+
+					namespace.add(Path.readArray(in), entry, file -> {});
+				}
+			} catch(IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+	}
+
+	/** Stream reading the remaining bytes of a buffer. */
+	private static class BufferInputStream extends InputStream
+	{
+		private final ByteBuffer buffer;
+
+		BufferInputStream(ByteBuffer buffer)
+		{
+			this.buffer = buffer;
+		}
+
+		@Override
+		public int read()
+		{
+			return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+		}
+
+		@Override
+		public int read(byte[] bytes, int offset, int length)
+		{
+			if(length == 0) {
+				return 0;
+			}
+
+			if(!buffer.hasRemaining()) {
+				return -1;
+			}
+
+			int count = Math.min(length, buffer.remaining());
+			buffer.get(bytes, offset, count);
+			return count;
+		}
+	}
+}
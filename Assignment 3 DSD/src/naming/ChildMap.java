@@ -0,0 +1,340 @@
+package naming;
+
+/** Map from the names of a directory's children to their nodes, for
+    <code>SnapshotNamespace</code>.
+
+    <p>
+    The map is persistent: a change returns a new map and leaves the old one
+    as it was. It is a hash array mapped trie, in which each level is chosen
+    by five bits of the name's hash. A change copies only the trie nodes on
+    the path to the name, and shares every other node with the old map, so
+    changing a directory costs about the same however many children it has.
+
+    <p>
+    A change made with an owner may change in place the trie nodes created
+    by earlier changes with the same owner, instead of copying them again.
+    Such nodes belong to the map being built, which must not be read by
+    other threads, nor kept by its owner, until the owner stops changing
+    it.
+ */
+final class ChildMap
+{
+	static final ChildMap EMPTY = new ChildMap(null, 0);
+
+	private static final int BITS = 5;
+	private static final int MASK = (1 << BITS) - 1;
+
+	/** Root of the trie, or <code>null</code> if the map is empty. */
+	private final Trie root;
+	private final int size;
+
+	private ChildMap(Trie root, int size)
+	{
+		this.root = root;
+		this.size = size;
+	}
+
+	int size()
+	{
+		return size;
+	}
+
+	boolean isEmpty()
+	{
+		return size == 0;
+	}
+
+	/** Returns the node with the given name, or <code>null</code>. */
+	Node get(String name)
+	{
+		return root == null ? null : root.get(name, name.hashCode(), 0);
+	}
+
+	/** Returns a map in which <code>name</code> refers to <code>node</code>.
+
+	    @param owner Owner of the trie nodes that may be changed in place, or
+	                 <code>null</code> to leave this map unchanged.
+	 */
+	ChildMap put(String name, Node node, Object owner)
+	{
+		int hash = name.hashCode();
+
+		if(root == null) {
+			return new ChildMap(new Trie(1 << (hash & MASK),
+					new Object[] {name, node}, owner), 1);
+		}
+
+		int grown = root.get(name, hash, 0) == null ? 1 : 0;
+		Trie changed = root.put(owner, 0, hash, name, node);
+		return changed == root && grown == 0 ? this
+				: new ChildMap(changed, size + grown);
+	}
+
+	/** Returns a map without <code>name</code>.
+
+	    @param owner Owner of the trie nodes that may be changed in place, or
+	                 <code>null</code> to leave this map unchanged.
+	 */
+	ChildMap remove(String name, Object owner)
+	{
+		if(get(name) == null) {
+			return this;
+		}
+
+		Trie changed = root.remove(owner, 0, name.hashCode(), name);
+		return changed == null ? EMPTY : new ChildMap(changed, size - 1);
+	}
+
+	/** Returns the names of the children. */
+	String[] names()
+	{
+		String[] names = new String[size];
+		if(root != null) {
+			root.collect(names, null, 0);
+		}
+		return names;
+	}
+
+	/** Returns the nodes of the children, in the order of
+	    <code>names</code>. */
+	Node[] nodes()
+	{
+		Node[] nodes = new Node[size];
+		if(root != null) {
+			root.collect(null, nodes, 0);
+		}
+		return nodes;
+	}
+
+	/** Node of the trie.
+
+	    <p>
+	    Below the last level of the hash, a node holds the names whose hashes
+	    are all equal, in no order, and its bitmap is unused.
+	 */
+	private static final class Trie
+	{
+		/** Bit <i>i</i> is set if the node holds a name, or a node, for the
+		    five bits of the hash equal to <i>i</i>. */
+		int bitmap;
+		/** Two slots for each set bit, in the order of the bits: a name and
+		    its child, or <code>null</code> and the trie node holding the names
+		    below it. */
+		Object[] slots;
+		final Object owner;
+
+		Trie(int bitmap, Object[] slots, Object owner)
+		{
+			this.bitmap = bitmap;
+			this.slots = slots;
+			this.owner = owner;
+		}
+
+		Node get(String name, int hash, int shift)
+		{
+			Trie trie = this;
+
+			for(;; shift += BITS) {
+				if(shift >= Integer.SIZE) {
+					int index = trie.collision(name);
+					return index < 0 ? null : (Node) trie.slots[index + 1];
+				}
+
+				int bit = 1 << ((hash >>> shift) & MASK);
+				if((trie.bitmap & bit) == 0) {
+					return null;
+				}
+
+				int index = trie.index(bit);
+				Object key = trie.slots[index];
+				if(key != null) {
+					return key.equals(name) ? (Node) trie.slots[index + 1] : null;
+				}
+
+				trie = (Trie) trie.slots[index + 1];
+			}
+		}
+
+		Trie put(Object owner, int shift, int hash, String name, Node node)
+		{
+			if(shift >= Integer.SIZE) {
+				int index = collision(name);
+				if(index >= 0) {
+					return slots[index + 1] == node ? this
+							: set(owner, index, name, node);
+				}
+
+				Object[] grown = new Object[slots.length + 2];
+				System.arraycopy(slots, 0, grown, 0, slots.length);
+				grown[slots.length] = name;
+				grown[slots.length + 1] = node;
+				return replace(owner, bitmap, grown);
+			}
+
+			int bit = 1 << ((hash >>> shift) & MASK);
+			int index = index(bit);
+
+			if((bitmap & bit) == 0) {
+				Object[] grown = new Object[slots.length + 2];
+				System.arraycopy(slots, 0, grown, 0, index);
+				grown[index] = name;
+				grown[index + 1] = node;
+				System.arraycopy(slots, index, grown, index + 2,
+						slots.length - index);
+				return replace(owner, bitmap | bit, grown);
+			}
+
+			Object key = slots[index];
+			if(key == null) {
+				Trie child = (Trie) slots[index + 1];
+				Trie changed = child.put(owner, shift + BITS, hash, name, node);
+				return changed == child ? this : set(owner, index, null, changed);
+			}
+
+			if(key.equals(name)) {
+				return slots[index + 1] == node ? this
+						: set(owner, index, name, node);
+			}
+
+			// Two names for the same bits; both move one level down.
+			Trie pair = pair(owner, shift + BITS, (String) key,
+					slots[index + 1], hash, name, node);
+			return set(owner, index, null, pair);
+		}
+
+		/** Returns the node without <code>name</code>, which it must hold,
+		    or <code>null</code> if that leaves it empty. */
+		Trie remove(Object owner, int shift, int hash, String name)
+		{
+			if(shift >= Integer.SIZE) {
+				if(slots.length == 2) {
+					return null;
+				}
+
+				int index = collision(name);
+				Object[] shrunk = new Object[slots.length - 2];
+				System.arraycopy(slots, 0, shrunk, 0, index);
+				System.arraycopy(slots, index + 2, shrunk, index,
+						slots.length - index - 2);
+				return replace(owner, bitmap, shrunk);
+			}
+
+			int bit = 1 << ((hash >>> shift) & MASK);
+			int index = index(bit);
+
+			if(slots[index] == null) {
+				Trie child = (Trie) slots[index + 1];
+				Trie changed = child.remove(owner, shift + BITS, hash, name);
+				if(changed != null) {
+					return changed == child ? this : set(owner, index, null, changed);
+				}
+			}
+
+			if(bitmap == bit) {
+				return null;
+			}
+
+			Object[] shrunk = new Object[slots.length - 2];
+			System.arraycopy(slots, 0, shrunk, 0, index);
+			System.arraycopy(slots, index + 2, shrunk, index,
+					slots.length - index - 2);
+			return replace(owner, bitmap & ~bit, shrunk);
+		}
+
+		/** Stores the names, the children, or both, from position
+		    <code>at</code> on.
+
+		    @return The position after the last one stored.
+		 */
+		int collect(String[] names, Node[] nodes, int at)
+		{
+			for(int index = 0; index < slots.length; index += 2) {
+				if(slots[index] == null) {
+					at = ((Trie) slots[index + 1]).collect(names, nodes, at);
+					continue;
+				}
+
+				if(names != null) {
+					names[at] = (String) slots[index];
+				}
+				if(nodes != null) {
+					nodes[at] = (Node) slots[index + 1];
+				}
+				at++;
+			}
+
+			return at;
+		}
+
+		/** Returns the first slot of the given bit. */
+		private int index(int bit)
+		{
+			return 2 * Integer.bitCount(bitmap & (bit - 1));
+		}
+
+		/** Returns the slot of a name below the last level of the hash, or
+		    -1. */
+		private int collision(String name)
+		{
+			for(int index = 0; index < slots.length; index += 2) {
+				if(slots[index].equals(name)) {
+					return index;
+				}
+			}
+			return -1;
+		}
+
+		/** Returns the node with the two slots at <code>index</code> set. */
+		private Trie set(Object owner, int index, Object key, Object value)
+		{
+			Object[] changed = isOwnedBy(owner) ? slots : slots.clone();
+			changed[index] = key;
+			changed[index + 1] = value;
+			return replace(owner, bitmap, changed);
+		}
+
+		/** Returns the node with the given bitmap and slots: this node, if
+		    it belongs to <code>owner</code>, or else a new one. */
+		private Trie replace(Object owner, int bitmap, Object[] slots)
+		{
+			if(!isOwnedBy(owner)) {
+				return new Trie(bitmap, slots, owner);
+			}
+
+			this.bitmap = bitmap;
+			this.slots = slots;
+			return this;
+		}
+
+		private boolean isOwnedBy(Object owner)
+		{
+			return owner != null && this.owner == owner;
+		}
+
+		/** Returns a node for the level at <code>shift</code> holding two
+		    different names, with as many levels below it as their hashes
+		    share. */
+		private static Trie pair(Object owner, int shift, String first,
+				Object firstNode, int hash, String second, Object secondNode)
+		{
+			if(shift >= Integer.SIZE) {
+				return new Trie(0, new Object[] {first, firstNode, second,
+						secondNode}, owner);
+			}
+
+			int firstBits = (first.hashCode() >>> shift) & MASK;
+			int secondBits = (hash >>> shift) & MASK;
+
+			if(firstBits == secondBits) {
+				return new Trie(1 << firstBits, new Object[] {null, pair(owner,
+						shift + BITS, first, firstNode, hash, second, secondNode)},
+						owner);
+			}
+
+			Object[] slots = firstBits < secondBits
+					? new Object[] {first, firstNode, second, secondNode}
+					: new Object[] {second, secondNode, first, firstNode};
+			return new Trie((1 << firstBits) | (1 << secondBits), slots, owner);
+		}
+	}
+}
@@ -0,0 +1,690 @@
+package naming;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+
+import common.Path;
+import rmi.Stub;
+import storage.Command;
+import storage.Storage;
+
+/** Append-only log of the changes made to the naming server's namespace.
+
+    <p>
+    The log is a <code>Journal</code>: the namespace reports each change to
+    it while the change is being made, and the record is appended to a buffer
+    in memory. Before answering the client, the naming server calls
+    <code>sync</code>, which writes the buffer to the log file and forces it
+    to disk. Records appended by many threads while one thread is forcing the
+    file are written together by the next call, so a single
+    <code>force</code> makes a whole batch of changes durable.
+
+    <p>
+    Each record is its length, a type byte, the body and a CRC-32 of the
+    type and body. A record cut short by a crash, or damaged, ends the log:
+    <code>recover</code> stops there and the file is truncated to the last
+    complete record.
+
+    <p>
+    The log is kept in numbered segment files. <code>roll</code> starts a new
+    segment; once a checkpoint covering the older segments has been written,
+    they are deleted. Recovery loads the checkpoint and replays only the
+    segments written since.
+ */
+class EditLog implements Journal
+{
+	/** Names of segment files in the naming server's state directory. */
+	private static final Pattern SEGMENT_NAME = Pattern.compile("edits\\.(\\d+)\\.log");
+
+	private static final byte REGISTERED = 1;
+	private static final byte ADDED_FILE = 2;
+	private static final byte ADDED_DIRECTORY = 3;
+	private static final byte DELETED = 4;
+	private static final byte ADDED_REPLICATED_FILE = 5;
+	private static final byte REPLICAS_CHANGED = 6;
+	private static final byte NEW_GENERATION = 7;
+
+	private final File directory;
+	/** The segment being appended to, and its number. Both change only when
+	    the log is rolled, while holding the monitor and with no batch being
+	    written. */
+	private FileChannel channel;
+	private long segment;
+
+	/** Records appended since the last batch was taken for writing. */
+	private ByteArrayOutputStream pending = new ByteArrayOutputStream();
+	/** Number of records appended. */
+	private long appended = 0;
+	/** Number of records written and forced to disk. */
+	private long synced = 0;
+	/** Set while a thread is writing a batch. */
+	private boolean syncing = false;
+	/** Number of records appended when the log was last rolled. */
+	private long appendedAtRoll = 0;
+	/** Set while recovering, so that replayed changes are not logged again. */
+	private boolean replaying = false;
+	/** First error writing the log. Once set, every later change fails. */
+	private IOException failure;
+
+	/** Creates the log for the given state directory. <code>recover</code>
+	    must be called before any change is recorded. */
+	EditLog(File directory)
+	{
+		this.directory = directory;
+	}
+
+	/** Restores the state recorded in the directory.
+
+	    <p>
+	    The latest checkpoint is loaded, and the segments written since are
+	    replayed. Storage servers are recreated from their addresses and added
+	    to <code>servers</code>, marked as recovered. Changes to the tree are
+	    applied to <code>namespace</code> without contacting storage servers.
+	    A damaged tail of the last segment is cut off, and new records are
+	    appended after the last complete one.
+
+	    @throws IOException If the state cannot be read, or a segment other
+	                        than the last is damaged.
+	 */
+	void recover(Namespace namespace, List<RegisteredServer> servers)
+		throws IOException
+	{
+		synchronized(this) {
+			replaying = true;
+		}
+
+		try {
+			long first = Checkpoint.load(directory, namespace, servers);
+			List<Long> segments = segments();
+
+			for(long number : segments) {
+				if(number < first) {
+					// Covered by the checkpoint; left over from a crash
+					// before it was deleted.
+					Files.deleteIfExists(segmentFile(number).toPath());
+				}
+			}
+			segments.removeIf(number -> number < first);
+
+			long last = first - 1;
+			for(long number : segments) {
+				if(number != last + 1) {
+					throw new IOException("edit log segment missing before " + number);
+				}
+				last = number;
+			}
+			if(segments.isEmpty()) {
+				last = first;
+			}
+
+			for(long number : segments) {
+				long end = replay(segmentFile(number), namespace, servers);
+
+				if(end >= 0 && number != last) {
+					throw new IOException("edit log segment " + number + " is damaged");
+				}
+			}
+
+			channel = FileChannel.open(segmentFile(last).toPath(),
+					StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+			channel.position(channel.size());
+			segment = last;
+		} finally {
+			synchronized(this) {
+				replaying = false;
+			}
+		}
+	}
+
+	/** Applies the records of one segment.
+
+	    @return The length of the complete records, if the segment ends with a
+	            damaged or incomplete record, which is then cut off. Otherwise,
+	            -1.
+	 */
+	private long replay(File file, Namespace namespace,
+			List<RegisteredServer> servers) throws IOException
+	{
+		try(FileChannel segmentChannel = FileChannel.open(file.toPath(),
+				StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+
+			long end = 0;
+			long size = segmentChannel.size();
+			DataInputStream in = new DataInputStream(new BufferedInputStream(
+					Channels.newInputStream(segmentChannel)));
+			AddedFiles added = new AddedFiles(namespace);
+
+			while(end < size) {
+				byte[] record;
+				try {
+					int length = in.readInt();
+					// A length reaching past the end of the segment is that
+					// of a record cut short, or is itself damaged.
+					long remaining = size - end - 4;
+					if(length < 1 || length > remaining - 4) {
+						break;
+					}
+
+					record = new byte[length];
+					in.readFully(record);
+
+					CRC32 crc = new CRC32();
+					crc.update(record);
+					if((int) crc.getValue() != in.readInt()) {
+						break;
+					}
+				} catch(EOFException e) {
+					break;
+				}
+
+				apply(record, namespace, servers, added);
+				end += 4 + record.length + 4;
+			}
+
+			added.flush();
+
+			if(end == size) {
+				return -1;
+			}
+
+			segmentChannel.truncate(end);
+			return end;
+		}
+	}
+
+	/** Applies one record. Files added by the record may be left in
+	    <code>added</code>, to be added together with those of the following
+	    records. */
+	private void apply(byte[] record, Namespace namespace,
+			List<RegisteredServer> servers, AddedFiles added) throws IOException
+	{
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+		byte type = in.readByte();
+
+		if(type != ADDED_FILE && type != ADDED_REPLICATED_FILE) {
+			added.flush();
+		}
+
+		switch(type) {
+		case REGISTERED:
+			int id = in.readInt();
+			if(id < servers.size()) {
+				// Registered while the checkpoint was being written, and
+				// already part of it.
+				break;
+			}
+			if(id > servers.size()) {
+				throw new IOException("storage server " + id + " out of order");
+			}
+
+			Storage storage = Stub.create(Storage.class, readAddress(in));
+			Command command = Stub.create(Command.class, readAddress(in));
+			servers.add(new RegisteredServer(id, storage, command, true));
+			break;
+
+		case NEW_GENERATION:
+			int registered = in.readInt();
+			if(registered < 0 || registered >= servers.size()) {
+				throw new IOException("unknown storage server " + registered);
+			}
+
+			servers.get(registered).generation = in.readLong();
+			break;
+
+		case ADDED_FILE:
+			int server = in.readInt();
+			if(server < 0 || server >= servers.size()) {
+				throw new IOException("unknown storage server " + server);
+			}
+
+			added.add(new RegisteredServer[] {servers.get(server)},
+					Path.readArray(in));
+			break;
+
+		case ADDED_REPLICATED_FILE:
+			Node.FileEntry entry = readReplicas(in, servers);
+			added.add(entry.replicas, Path.readArray(in));
+			break;
+
+		case REPLICAS_CHANGED:
+			Node.FileEntry replacement = readReplicas(in, servers);
+			for(Path file : Path.readArray(in)) {
+				try {
+					namespace.replaceFile(file, namespace.file(file), replacement);
+				} catch(FileNotFoundException e) {
+					// Deleted later in the log, or not a file; nothing to
+					// change.
+				}
+			}
+			break;
+
+		case ADDED_DIRECTORY:
+			for(Path directory : Path.readArray(in)) {
+				createDirectories(namespace, directory);
+			}
+			break;
+
+		case DELETED:
+			for(Path path : Path.readArray(in)) {
+				namespace.remove(path);
+			}
+			break;
+
+		default:
+			throw new IOException("unknown edit log record");
+		}
+	}
+
+	/** Files of consecutive records that add files with the same replicas.
+
+	    <p>
+	    Each file created or registered is logged in a record of its own.
+	    Replaying them one at a time would make the namespace find the
+	    file's directory, and for <code>SnapshotNamespace</code> copy it,
+	    once per file; added together, the files of one directory cost one
+	    lookup and one copy.
+	 */
+	private static class AddedFiles
+	{
+		/** Largest number of files added at once. */
+		private static final int BATCH = 1 << 16;
+
+		private final Namespace namespace;
+		private RegisteredServer[] replicas;
+		private final List<Path> files = new ArrayList<>();
+
+		AddedFiles(Namespace namespace)
+		{
+			this.namespace = namespace;
+		}
+
+		/** Adds files with the given replicas, first adding the files
+		    pending with other replicas. */
+		void add(RegisteredServer[] replicas, Path[] paths)
+		{
+			if(this.replicas != null && !Arrays.equals(this.replicas, replicas)) {
+				flush();
+			}
+
+			this.replicas = replicas;
+			Collections.addAll(files, paths);
+
+			if(files.size() >= BATCH) {
+				flush();
+			}
+		}
+
+		/** Adds the pending files to the namespace. */
+		void flush()
+		{
+			if(files.isEmpty()) {
+				return;
+			}
+
+			namespace.add(files.toArray(new Path[files.size()]),
+					new Node.FileEntry(replicas), file -> {});
+			files.clear();
+			replicas = null;
+		}
+	}
+
+	/** Creates a directory and any missing parents. */
+	static void createDirectories(Namespace namespace, Path directory)
+	{
+		if(directory.isRoot() || namespace.exists(directory)) {
+			return;
+		}
+
+		createDirectories(namespace, directory.parent());
+		try {
+			namespace.createDirectory(directory);
+		} catch(FileNotFoundException e) {
+			// A file now stands where a parent was; the directory cannot
+			// exist, as it could not when the change was first made.
+		}
+	}
+
+	@Override
+	public void registered(RegisteredServer server)
+	{
+		append(REGISTERED, out -> {
+			out.writeInt(server.id);
+			writeAddress(out, Stub.address(server.storage));
+			writeAddress(out, Stub.address(server.command));
+		});
+	}
+
+	@Override
+	public void newGeneration(RegisteredServer server)
+	{
+		append(NEW_GENERATION, out -> {
+			out.writeInt(server.id);
+			out.writeLong(server.generation);
+		});
+	}
+
+	@Override
+	public void addedFile(Path file, Node.FileEntry entry)
+	{
+		if(entry.replicas.length == 1) {
+			append(ADDED_FILE, out -> {
+				out.writeInt(entry.primary().id);
+				Path.writeArray(out, new Path[] {file});
+			});
+			return;
+		}
+
+		append(ADDED_REPLICATED_FILE, out -> {
+			writeReplicas(out, entry);
+			Path.writeArray(out, new Path[] {file});
+		});
+	}
+
+	@Override
+	public void addedDirectory(Path directory)
+	{
+		append(ADDED_DIRECTORY, out -> Path.writeArray(out, new Path[] {directory}));
+	}
+
+	@Override
+	public void deleted(Path path)
+	{
+		append(DELETED, out -> Path.writeArray(out, new Path[] {path}));
+	}
+
+	@Override
+	public void replicasChanged(Path file, Node.FileEntry entry)
+	{
+		append(REPLICAS_CHANGED, out -> {
+			writeReplicas(out, entry);
+			Path.writeArray(out, new Path[] {file});
+		});
+	}
+
+	/** Makes every record appended so far durable.
+
+	    <p>
+	    If another thread is writing a batch, the caller waits for it; if its
+	    records were not in that batch, the caller, or another waiting thread,
+	    then writes the next one.
+
+	    @throws UncheckedIOException If the log cannot be written. The log
+	                                 accepts no further changes.
+	 */
+	void sync()
+	{
+		byte[] batch;
+		long batchEnd;
+		FileChannel target;
+
+		synchronized(this) {
+			long wanted = appended;
+
+			while(true) {
+				checkFailure();
+				if(synced >= wanted) {
+					return;
+				}
+				if(!syncing) {
+					break;
+				}
+
+				try {
+					wait();
+				} catch(InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new UncheckedIOException(new InterruptedIOException(
+							"interrupted waiting for the edit log"));
+				}
+			}
+
+			syncing = true;
+			batch = pending.toByteArray();
+			batchEnd = appended;
+			pending = new ByteArrayOutputStream();
+			target = channel;
+		}
+
+		IOException error = null;
+		try {
+			ByteBuffer buffer = ByteBuffer.wrap(batch);
+			while(buffer.hasRemaining()) {
+				target.write(buffer);
+			}
+			target.force(false);
+		} catch(IOException e) {
+			error = e;
+		}
+
+		synchronized(this) {
+			syncing = false;
+			if(error == null) {
+				synced = batchEnd;
+			} else if(failure == null) {
+				failure = error;
+			}
+			notifyAll();
+			checkFailure();
+		}
+	}
+
+	/** Starts a new segment.
+
+	    <p>
+	    Records appended before the call are in the older segments, and
+	    records appended after it in the new one. Appending waits while the
+	    outstanding records of the current segment are written.
+
+	    @return The number of the new segment.
+	    @throws IOException If the current segment cannot be completed or the
+	                        new one cannot be created.
+	 */
+	synchronized long roll() throws IOException
+	{
+		while(syncing) {
+			try {
+				wait();
+			} catch(InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("interrupted waiting for the edit log");
+			}
+		}
+		checkFailure();
+
+		try {
+			ByteBuffer buffer = ByteBuffer.wrap(pending.toByteArray());
+			while(buffer.hasRemaining()) {
+				channel.write(buffer);
+			}
+			channel.force(false);
+		} catch(IOException e) {
+			failure = e;
+			throw e;
+		}
+
+		pending = new ByteArrayOutputStream();
+		synced = appended;
+		appendedAtRoll = appended;
+
+		FileChannel next = FileChannel.open(segmentFile(segment + 1).toPath(),
+				StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING);
+		channel.close();
+		channel = next;
+		segment++;
+		notifyAll();
+
+		return segment;
+	}
+
+	/** Determines whether any record has been appended since the log was
+	    last rolled, or recovered. */
+	synchronized boolean hasRecordsSinceRoll()
+	{
+		return appended > appendedAtRoll;
+	}
+
+	/** Deletes the segments numbered below <code>segment</code>, once they
+	    are covered by a checkpoint. */
+	void deleteSegmentsBefore(long segment) throws IOException
+	{
+		for(long number : segments()) {
+			if(number < segment) {
+				Files.deleteIfExists(segmentFile(number).toPath());
+			}
+		}
+	}
+
+	/** Returns the numbers of the segment files present, in increasing
+	    order. */
+	private List<Long> segments()
+	{
+		List<Long> numbers = new ArrayList<>();
+		String[] names = directory.list();
+
+		if(names != null) {
+			for(String name : names) {
+				Matcher matcher = SEGMENT_NAME.matcher(name);
+				if(matcher.matches()) {
+					numbers.add(Long.parseLong(matcher.group(1)));
+				}
+			}
+		}
+
+		Collections.sort(numbers);
+		return numbers;
+	}
+
+	private File segmentFile(long number)
+	{
+		return new File(directory, "edits." + number + ".log");
+	}
+
+	/** Writes outstanding records and closes the log file. */
+	void close()
+	{
+		try {
+			sync();
+		} catch(UncheckedIOException e) {
+			// Nothing more can be done; the records are lost.
+		}
+
+		try {
+			channel.close();
+		} catch(IOException e) {
+		}
+	}
+
+	private void checkFailure()
+	{
+		if(failure != null) {
+			throw new UncheckedIOException("edit log cannot be written", failure);
+		}
+	}
+
+	/** Writes the body of a record. */
+	private interface Body
+	{
+		void write(DataOutputStream out) throws IOException;
+	}
+
+	private synchronized void append(byte type, Body body)
+	{
+		if(replaying) {
+			return;
+		}
+
+		checkFailure();
+
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(bytes);
+			out.writeByte(type);
+			body.write(out);
+
+			byte[] record = bytes.toByteArray();
+			CRC32 crc = new CRC32();
+			crc.update(record);
+
+			DataOutputStream log = new DataOutputStream(pending);
+			log.writeInt(record.length);
+			log.write(record);
+			log.writeInt((int) crc.getValue());
+		} catch(IOException e) {
+			// Writing to memory does not fail.
+			throw new UncheckedIOException(e);
+		}
+
+		appended++;
+	}
+
+	/** Writes the numbers of the servers holding a file's replicas. */
+	static void writeReplicas(DataOutputStream out, Node.FileEntry entry)
+		throws IOException
+	{
+		out.writeInt(entry.replicas.length);
+		for(RegisteredServer replica : entry.replicas) {
+			out.writeInt(replica.id);
+		}
+	}
+
+	/** Reads the replicas written by <code>writeReplicas</code>.
+
+	    @throws IOException If a server is not in <code>servers</code>.
+	 */
+	static Node.FileEntry readReplicas(DataInputStream in,
+			List<RegisteredServer> servers) throws IOException
+	{
+		int count = in.readInt();
+		if(count < 1 || count > servers.size()) {
+			throw new IOException("bad number of replicas: " + count);
+		}
+
+		RegisteredServer[] replicas = new RegisteredServer[count];
+		for(int i = 0; i < count; i++) {
+			int id = in.readInt();
+			if(id < 0 || id >= servers.size()) {
+				throw new IOException("unknown storage server " + id);
+			}
+			replicas[i] = servers.get(id);
+		}
+
+		return new Node.FileEntry(replicas);
+	}
+
+	static void writeAddress(DataOutputStream out,
+			InetSocketAddress address) throws IOException
+	{
+		out.writeUTF(address.getHostString());
+		out.writeInt(address.getPort());
+	}
+
+	static InetSocketAddress readAddress(DataInputStream in)
+		throws IOException
+	{
+		String host = in.readUTF();
+		return new InetSocketAddress(host, in.readInt());
+	}
+}
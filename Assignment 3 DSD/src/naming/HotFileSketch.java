@@ -0,0 +1,85 @@
+package naming;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import common.Path;
+import common.PathKey;
+
+/** Approximate, decaying count of requests per file.
+
+    <p>
+    The counts are kept in a count-min sketch: <code>DEPTH</code> rows of
+    <code>WIDTH</code> counters, each row indexed by a different hash of the
+    path. A request increments one counter in every row, and the estimate for
+    a file is the smallest of its counters. Other files sharing a counter can
+    only make an estimate too high, never too low. The sketch takes the same
+    256 KB however many files there are.
+
+    <p>
+    <code>decay</code> halves every counter. Called periodically, it makes
+    the estimate track recent requests: a file requested <i>r</i> times in
+    each period settles at an estimate of about <i>2r</i>.
+
+    <p>
+    Sketches are updated without locks and may be used by any number of
+    threads at once.
+ */
+class HotFileSketch
+{
+	private static final int DEPTH = 4;
+	private static final int WIDTH = 1 << 14;
+
+	private final AtomicIntegerArray counters = new AtomicIntegerArray(DEPTH * WIDTH);
+
+	/** Counts a request for a file.
+
+	    @return The estimated count for the file, including this request.
+	 */
+	int record(Path file)
+	{
+		long hash = PathKey.of(file).hash64();
+		int estimate = Integer.MAX_VALUE;
+
+		for(int row = 0; row < DEPTH; row++) {
+			int count = counters.incrementAndGet(slot(hash, row));
+			if(count < 0) {
+				// Saturate rather than wrap around.
+				counters.set(slot(hash, row), Integer.MAX_VALUE);
+				count = Integer.MAX_VALUE;
+			}
+			estimate = Math.min(estimate, count);
+		}
+
+		return estimate;
+	}
+
+	/** Returns the estimated count for a file, without counting a request. */
+	int estimate(Path file)
+	{
+		long hash = PathKey.of(file).hash64();
+		int estimate = Integer.MAX_VALUE;
+
+		for(int row = 0; row < DEPTH; row++) {
+			estimate = Math.min(estimate, counters.get(slot(hash, row)));
+		}
+
+		return estimate;
+	}
+
+	/** Halves every count. Requests counted at the same time may be halved
+	    or not. */
+	void decay()
+	{
+		for(int i = 0; i < counters.length(); i++) {
+			counters.updateAndGet(i, count -> count >>> 1);
+		}
+	}
+
+	/** Returns the counter of a path in a row. The rows use different 16-bit
+	    pieces of the 64-bit path hash, which are independent of each
+	    other. */
+	private static int slot(long hash, int row)
+	{
+		return row * WIDTH + ((int) (hash >>> (16 * row)) & (WIDTH - 1));
+	}
+}
@@ -0,0 +1,67 @@
+package naming;
+
+import common.Path;
+
+/** Receives the changes made to a namespace.
+
+    <p>
+    A namespace reports each change while it still holds the locks that
+    order the change with respect to others, so the changes are reported in
+    an order in which they can be applied again. Implementations must be
+    quick: they are called inside the namespace's critical sections.
+ */
+interface Journal
+{
+	/** Journal that discards every change. */
+	Journal NONE = new Journal() {
+		@Override
+		public void registered(RegisteredServer server)
+		{
+		}
+
+		@Override
+		public void newGeneration(RegisteredServer server)
+		{
+		}
+
+		@Override
+		public void addedFile(Path file, Node.FileEntry entry)
+		{
+		}
+
+		@Override
+		public void addedDirectory(Path directory)
+		{
+		}
+
+		@Override
+		public void deleted(Path path)
+		{
+		}
+
+		@Override
+		public void replicasChanged(Path file, Node.FileEntry entry)
+		{
+		}
+	};
+
+	/** Records that a storage server has registered for the first time. */
+	void registered(RegisteredServer server);
+
+	/** Records the generation a storage server was given when it started
+	    reporting all of its files. */
+	void newGeneration(RegisteredServer server);
+
+	/** Records that a file has been created or registered. Its missing
+	    parent directories are created with it. */
+	void addedFile(Path file, Node.FileEntry entry);
+
+	/** Records that an empty directory has been created. */
+	void addedDirectory(Path directory);
+
+	/** Records that a file or directory has been deleted. */
+	void deleted(Path path);
+
+	/** Records that the replicas of an existing file have changed. */
+	void replicasChanged(Path file, Node.FileEntry entry);
+}
@@ -0,0 +1,404 @@
+package naming;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.Lock;
+import java.util.function.Consumer;
+
+import common.Path;
+import rmi.RMIException;
+import rmi.StacklessExceptions;
+import storage.Command;
+
+/** Directory tree of the naming server, with a read/write lock per directory.
+
+    <p>
+    An operation locks the directories on its path from the root down, and
+    releases them in the opposite order. Every directory above the one the
+    operation reads or changes is only read-locked, so operations in
+    disjoint subtrees run in parallel, and readers never wait for each other.
+    The directory whose children are changed is write-locked; this also
+    excludes every operation below it, since those hold its read lock.
+    Because locks are always taken in root-to-leaf order, operations cannot
+    deadlock.
+ */
+class LockingNamespace implements Namespace
+{
+	private final Node.Directory root = new Node.Directory();
+	private final Journal journal;
+
+	LockingNamespace(Journal journal)
+	{
+		this.journal = journal;
+	}
+
+	@Override
+	public boolean isDirectory(Path path) throws FileNotFoundException
+	{
+		if(path.isRoot()) {
+			return true;
+		}
+
+		Deque<Lock> held = new ArrayDeque<>();
+		try {
+			Node node = child(lockDirectory(path.parent(), false, held), path);
+			if(node == null) {
+				throw StacklessExceptions.fileNotFound(null);
+			}
+
+			return node instanceof Node.Directory;
+		} finally {
+			unlock(held);
+		}
+	}
+
+	@Override
+	public String[] list(Path directory) throws FileNotFoundException
+	{
+		Deque<Lock> held = new ArrayDeque<>();
+		try {
+			Node.Directory node = lockDirectory(directory, false, held);
+			if(node == null) {
+				throw StacklessExceptions.fileNotFound(null);
+			}
+
+			return node.names();
+		} finally {
+			unlock(held);
+		}
+	}
+
+	@Override
+	public Node.FileEntry file(Path file) throws FileNotFoundException
+	{
+		if(file.isRoot()) {
+			throw StacklessExceptions.fileNotFound(null);
+		}
+
+		Deque<Lock> held = new ArrayDeque<>();
+		try {
+			Node node = child(lockDirectory(file.parent(), false, held), file);
+			if(!(node instanceof Node.FileEntry)) {
+				throw StacklessExceptions.fileNotFound(null);
+			}
+
+			return (Node.FileEntry) node;
+		} finally {
+			unlock(held);
+		}
+	}
+
+	@Override
+	public boolean exists(Path path)
+	{
+		try {
+			isDirectory(path);
+			return true;
+		} catch(FileNotFoundException e) {
+			return false;
+		}
+	}
+
+	@Override
+	public boolean createFile(Path file, Node.FileEntry entry)
+		throws FileNotFoundException, RMIException
+	{
+		Deque<Lock> held = new ArrayDeque<>();
+		try {
+			Node.Directory parent = lockParent(file, held);
+			if(parent.child(file.last()) != null) {
+				return false;
+			}
+
+			// The parent stays write-locked during the call, so the file is
+			// not visible before it exists on the storage server.
+			entry.create(file, journal);
+			parent.put(file.last(), entry);
+			journal.addedFile(file, entry);
+			return true;
+		} finally {
+			unlock(held);
+		}
+	}
+
+	@Override
+	public boolean createDirectory(Path directory) throws FileNotFoundException
+	{
+		Deque<Lock> held = new ArrayDeque<>();
+		try {
+			Node.Directory parent = lockParent(directory, held);
+			if(parent.child(directory.last()) != null) {
+				return false;
+			}
+
+			parent.put(directory.last(), new Node.Directory());
+			journal.addedDirectory(directory);
+			return true;
+		} finally {
+			unlock(held);
+		}
+	}
+
+	@Override
+	public boolean delete(Path path) throws FileNotFoundException
+	{
+		Deque<Lock> held = new ArrayDeque<>();
+		try {
+			Node.Directory parent = lockParent(path, held);
+			Node node = parent.child(path.last());
+			if(node == null) {
+				throw StacklessExceptions.fileNotFound(null);
+			}
+
+			Set<Command> holders = new LinkedHashSet<>();
+			node.collectCommands(holders);
+
+			try {
+				for(Command command : holders) {
+					if(!command.delete(path)) {
+						return false;
+					}
+				}
+			} catch(RMIException e) {
+				return false;
+			}
+
+			parent.remove(path.last());
+			journal.deleted(path);
+			return true;
+		} finally {
+			unlock(held);
+		}
+	}
+
+	@Override
+	public void add(Path[] files, Node.FileEntry entry, Consumer<Path> duplicates)
+	{
+		for(Path file : files) {
+			if(!file.isRoot() && !add(file, entry)) {
+				duplicates.accept(file);
+			}
+		}
+	}
+
+	@Override
+	public void remove(Path path)
+	{
+		Deque<Lock> held = new ArrayDeque<>();
+		try {
+			Node.Directory parent = lockDirectory(path.parent(), true, held);
+			if(parent != null && parent.child(path.last()) != null) {
+				parent.remove(path.last());
+				journal.deleted(path);
+			}
+		} finally {
+			unlock(held);
+		}
+	}
+
+	@Override
+	public boolean replaceFile(Path file, Node.FileEntry expected,
+			Node.FileEntry replacement)
+	{
+		Deque<Lock> held = new ArrayDeque<>();
+		try {
+			Node.Directory parent = lockDirectory(file.parent(), true, held);
+			if(parent == null || parent.child(file.last()) != expected) {
+				return false;
+			}
+
+			parent.put(file.last(), replacement);
+			journal.replicasChanged(file, replacement);
+			return true;
+		} finally {
+			unlock(held);
+		}
+	}
+
+	@Override
+	public void walk(Visitor visitor) throws IOException
+	{
+		walk(root, new Path(), visitor);
+	}
+
+	/** Walks the subtree under <code>directory</code>. Only one directory is
+	    locked at a time, while its children are copied. */
+	private static void walk(Node.Directory directory, Path path,
+			Visitor visitor) throws IOException
+	{
+		Map<String, Node> children;
+
+		directory.lock.readLock().lock();
+		try {
+			children = directory.copyChildren();
+		} finally {
+			directory.lock.readLock().unlock();
+		}
+
+		if(children.isEmpty() && !path.isRoot()) {
+			visitor.emptyDirectory(path);
+		}
+
+		for(Map.Entry<String, Node> child : children.entrySet()) {
+			Path childPath = new Path(path, child.getKey());
+
+			if(child.getValue() instanceof Node.FileEntry) {
+				visitor.file(childPath, (Node.FileEntry) child.getValue());
+			} else {
+				walk((Node.Directory) child.getValue(), childPath, visitor);
+			}
+		}
+	}
+
+	/** Adds one file.
+
+	    <p>
+	    Each directory on the path is read-locked, and is write-locked instead
+	    only if a child must be added to it.
+
+	    @return <code>false</code> if the path is already present for another
+	            server, or if one of its ancestors is a file.
+	 */
+	private boolean add(Path file, Node.FileEntry entry)
+	{
+		Deque<Lock> held = new ArrayDeque<>();
+		try {
+			Node.Directory directory = root;
+			lock(directory.lock.readLock(), held);
+
+			Iterator<String> components = file.iterator();
+			String name = components.next();
+
+			while(components.hasNext()) {
+				Node child = directory.child(name);
+
+				if(child == null) {
+					relockForWriting(directory, held);
+					child = directory.child(name);
+
+					if(child == null) {
+						child = new Node.Directory();
+						directory.put(name, child);
+					}
+				}
+
+				if(!(child instanceof Node.Directory)) {
+					return false;
+				}
+
+				directory = (Node.Directory) child;
+				lock(directory.lock.readLock(), held);
+				name = components.next();
+			}
+
+			if(directory.child(name) != null) {
+				return Node.isFileOn(directory.child(name), entry.primary());
+			}
+
+			relockForWriting(directory, held);
+			if(directory.child(name) != null) {
+				return Node.isFileOn(directory.child(name), entry.primary());
+			}
+
+			directory.put(name, entry);
+			journal.addedFile(file, entry);
+			return true;
+		} finally {
+			unlock(held);
+		}
+	}
+
+	/** Returns the child named by the last component of <code>path</code>,
+	    or <code>null</code> if <code>parent</code> is <code>null</code> or has
+	    no such child. */
+	private static Node child(Node.Directory parent, Path path)
+	{
+		return parent == null ? null : parent.child(path.last());
+	}
+
+	/** Locks the directories from the root to the parent of
+	    <code>path</code>, write-locking the parent.
+
+	    @throws FileNotFoundException If the parent is not a directory.
+	 */
+	private Node.Directory lockParent(Path path, Deque<Lock> held)
+		throws FileNotFoundException
+	{
+		Node.Directory parent = lockDirectory(path.parent(), true, held);
+		if(parent == null) {
+			throw StacklessExceptions.fileNotFound(null);
+		}
+
+		return parent;
+	}
+
+	/** Locks the directories from the root to <code>path</code>.
+
+	    <p>
+	    Every directory above <code>path</code> is read-locked. The directory
+	    at <code>path</code> is write-locked if <code>write</code> is set, and
+	    read-locked otherwise. Each lock taken is pushed onto
+	    <code>held</code>, even if the walk fails.
+
+	    @return The directory, or <code>null</code> if <code>path</code> does
+	            not refer to a directory.
+	 */
+	private Node.Directory lockDirectory(Path path, boolean write,
+			Deque<Lock> held)
+	{
+		Node.Directory directory = root;
+		Iterator<String> components = path.iterator();
+
+		while(true) {
+			boolean last = !components.hasNext();
+			lock(last && write ? directory.lock.writeLock()
+					: directory.lock.readLock(), held);
+
+			if(last) {
+				return directory;
+			}
+
+			Node child = directory.child(components.next());
+			if(!(child instanceof Node.Directory)) {
+				return null;
+			}
+
+			directory = (Node.Directory) child;
+		}
+	}
+
+	/** Replaces the read lock on <code>directory</code>, which must be the
+	    last lock taken, by its write lock.
+
+	    <p>
+	    The directory's children may change in between, so the caller must
+	    check them again. The directory itself stays in the tree, since its
+	    parent is still locked.
+	 */
+	private static void relockForWriting(Node.Directory directory,
+			Deque<Lock> held)
+	{
+		held.pop().unlock();
+		lock(directory.lock.writeLock(), held);
+	}
+
+	private static void lock(Lock lock, Deque<Lock> held)
+	{
+		lock.lock();
+		held.push(lock);
+	}
+
+	/** Releases the locks in <code>held</code>, from the leaf up. */
+	private static void unlock(Deque<Lock> held)
+	{
+		while(!held.isEmpty()) {
+			held.pop().unlock();
+		}
+	}
+}
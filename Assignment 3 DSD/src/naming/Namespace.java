@@ -0,0 +1,159 @@
+package naming;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.function.Consumer;
+
+import common.Path;
+import rmi.RMIException;
+
+/** Directory tree of the naming server.
+
+    <p>
+    Implementations may be called by any number of threads at once. The
+    naming server checks arguments for <code>null</code> and handles the root
+    directory before calling them.
+
+    <p>
+    Every change is reported to the namespace's <code>Journal</code>.
+
+    <p>
+    The implementation is chosen by the system property
+    <code>naming.namespace</code>: <code>snapshot</code>, the default, for
+    <code>SnapshotNamespace</code>, <code>locking</code> for
+    <code>LockingNamespace</code>, or <code>offheap</code> for
+    <code>OffHeapNamespace</code>, which keeps the tree outside the Java heap
+    for very large filesystems.
+ */
+interface Namespace
+{
+	/** Name of the system property selecting the implementation. */
+	String PROPERTY = "naming.namespace";
+
+	/** Determines whether a path refers to a directory.
+
+	    @throws FileNotFoundException If the path does not exist.
+	 */
+	boolean isDirectory(Path path) throws FileNotFoundException;
+
+	/** Returns the names of the children of a directory.
+
+	    @throws FileNotFoundException If the path is not a directory.
+	 */
+	String[] list(Path directory) throws FileNotFoundException;
+
+	/** Returns the entry of a file.
+
+	    @throws FileNotFoundException If the path is not a file.
+	 */
+	Node.FileEntry file(Path file) throws FileNotFoundException;
+
+	/** Determines whether a path exists. */
+	boolean exists(Path path);
+
+	/** Creates a file, asking the storage servers of its replicas to create
+	    it first. The file is not visible before it exists on all of them.
+
+	    @return <code>false</code> if the path already exists.
+	    @throws FileNotFoundException If the parent is not a directory.
+	    @throws RMIException If a storage server cannot be reached.
+	 */
+	boolean createFile(Path file, Node.FileEntry entry)
+		throws FileNotFoundException, RMIException;
+
+	/** Creates an empty directory.
+
+	    @return <code>false</code> if the path already exists.
+	    @throws FileNotFoundException If the parent is not a directory.
+	 */
+	boolean createDirectory(Path directory) throws FileNotFoundException;
+
+	/** Deletes a file or directory from the tree and from every storage
+	    server holding a file at or below it.
+
+	    <p>
+	    The subtree is removed only if all of these storage servers delete
+	    their copy.
+
+	    @return <code>false</code> if a storage server failed to delete the path.
+	    @throws FileNotFoundException If the path does not exist.
+	 */
+	boolean delete(Path path) throws FileNotFoundException;
+
+	/** Adds files reported by a storage server, creating their missing parent
+	    directories. The root directory, if present, is skipped, as are files
+	    already recorded with a replica on the entry's first server.
+
+	    <p>
+	    The work is proportional to the number of files added, not to the
+	    size of the tree. Large additions are applied in batches, so other
+	    changes, including additions for other storage servers, may be made
+	    between two of them.
+
+	    @param duplicates Receives each file that is not added, because the
+	                      path is already present or one of its ancestors is
+	                      a file, as soon as it is found.
+	 */
+	void add(Path[] files, Node.FileEntry entry, Consumer<Path> duplicates);
+
+	/** Removes a file or directory, if present, without contacting storage
+	    servers. Used to replay deletions from the edit log. */
+	void remove(Path path);
+
+	/** Replaces the entry of a file, to change its replicas, without
+	    contacting storage servers.
+
+	    @param expected The entry the file must still have, as returned by
+	                    <code>file</code>. The entry is compared by identity,
+	                    so a file that was deleted and created again in the
+	                    meantime is not changed, unless the implementation
+	                    shares one entry between files with the same
+	                    replicas.
+	    @return <code>false</code> if the file no longer has the entry
+	            <code>expected</code>.
+	 */
+	boolean replaceFile(Path file, Node.FileEntry expected,
+			Node.FileEntry replacement);
+
+	/** Reports every file, and every empty directory other than the root, to
+	    <code>visitor</code>, parents before children.
+
+	    <p>
+	    The walk does not stop other operations. A change made during the walk
+	    may or may not be reported; a change made before it began always is.
+
+	    @throws IOException If the visitor throws it; the walk then stops.
+	 */
+	void walk(Visitor visitor) throws IOException;
+
+	/** Receives the entries of the tree from <code>walk</code>. */
+	interface Visitor
+	{
+		void file(Path file, Node.FileEntry entry) throws IOException;
+
+		void emptyDirectory(Path directory) throws IOException;
+	}
+
+	/** Creates the implementation selected by the <code>naming.namespace</code>
+	    system property.
+
+	    @param journal Receives the changes made to the namespace.
+	    @throws IllegalArgumentException If the property names no
+	                                     implementation.
+	 */
+	static Namespace create(Journal journal)
+	{
+		String kind = System.getProperty(PROPERTY, "snapshot");
+
+		switch(kind) {
+		case "snapshot":
+			return new SnapshotNamespace(journal);
+		case "locking":
+			return new LockingNamespace(journal);
+		case "offheap":
+			return new OffHeapNamespace(journal);
+		default:
+			throw new IllegalArgumentException("unknown " + PROPERTY + ": " + kind);
+		}
+	}
+}
@@ -1,17 +1,29 @@
 package naming;
 
+import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.net.InetSocketAddress;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
 import java.util.List;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
 
 import common.Path;
 import rmi.RMIException;
 import rmi.Skeleton;
+import rmi.Stub;
 import storage.Command;
+import storage.LoadReport;
 import storage.Storage;
 
 /** Naming server.
@@ -42,21 +54,51 @@ public class NamingServer implements Service, Registration
 	private Skeleton<Service> serviceSkeleton;
 	private Skeleton<Registration> registrationSkeleton;
 	
-	private List<Path> pathArrayList = new ArrayList<>();
-	private Map<Path, Boolean> pathFolderMap = new HashMap<>();
-	private Map<Path, Storage> storageMap = new HashMap<>();
-	private Map<Path, Command> commandMap = new HashMap<>();
+	/** The directory tree. Its methods may be called by any number of
+	    threads at once. */
+	private Namespace namespace;
+	/** Log of changes to the tree, or <code>null</code> if the naming server
+	    keeps no state on disk. */
+	private EditLog log;
+	/** Directory holding the edit log and the checkpoint, or
+	    <code>null</code> if the naming server keeps no state on disk. */
+	private File stateDirectory;
+	/** Writes checkpoints in the background while the server is running. */
+	private ScheduledExecutorService checkpointer;
+	/** Held while a checkpoint is written, so that only one is written at a
+	    time. */
+	private final Object checkpointLock = new Object();
+	
+	/** Number of seconds between background checkpoints. A checkpoint is
+	    written only if the tree or the storage servers changed since the
+	    last one. */
+	private static final long CHECKPOINT_INTERVAL = 60;
 	
-    private List<Storage> storageStubs = new ArrayList<>();
     /**
-     * Contains all of the Command stubs which have registered with this NamingServer
+     * Contains all of the storage servers which have registered with this
+     * NamingServer, in order of registration
      */
-    private List<Command> commandStubs = new ArrayList<>();
+    private List<RegisteredServer> servers = new CopyOnWriteArrayList<>();
+    /** Chooses the storage servers of new files. */
+    private final PlacementPolicy placement = PlacementPolicy.create();
+    /** Number of replicas of new files, by directory subtree. */
+    private final Replication replication = new Replication();
+    /** Orders the replicas of a file for clients. */
+    private final ReplicaSelector replicaSelector = ReplicaSelector.create();
+    /** Adds replicas to files requested by many clients. */
+    private AdaptiveReplication adaptive;
+    /** Stubs handed to clients for files with several replicas, by the
+        order of the replicas. Files on the same servers share stubs. */
+    private final Map<List<RegisteredServer>, Storage> replicatedStubs =
+    		new ConcurrentHashMap<>();
+    /** Number of replica orders whose stubs are kept. The stubs are dropped
+        all at once when there are more. */
+    private static final int REPLICATED_STUBS = 4096;
 	
     /** Creates the naming server object.
 
         <p>
-        The naming server is not started.
+        The naming server is not started. It keeps its state in memory only.
      */
     public NamingServer()
     {
@@ -65,6 +107,46 @@ public class NamingServer implements Service, Registration
         
         Service serviceStub = NamingStubs.service("127.0.0.1");
     	Registration regStub = NamingStubs.registration("127.0.0.1");
+    	
+    	namespace = Namespace.create(Journal.NONE);
+    	adaptive = new AdaptiveReplication(namespace, servers, placement,
+    			Journal.NONE, this::sync);
+    }
+
+    /** Creates a naming server object that keeps its state in a directory.
+
+        <p>
+        Every change to the directory tree, and every storage server
+        registration, is written to an edit log in <code>directory</code>
+        before the call making it returns. While the server is running, a
+        checkpoint of the tree is written to the directory in the background,
+        and the part of the log it covers is deleted. The last checkpoint and
+        the changes logged after it by an earlier naming server using the
+        same directory are applied first, so the
+        server can answer clients as soon as it is started, before storage
+        servers register again. Storage servers known from the log are
+        contacted at the addresses they registered with. When one of them
+        registers again, the files it reports that are already recorded for it
+        are not duplicates.
+
+        <p>
+        The naming server is not started.
+
+        @param directory The directory holding the naming server's state. It
+                         must exist.
+        @throws IOException If the checkpoint or the edit log cannot be read,
+                            or the edit log cannot be created.
+     */
+    public NamingServer(File directory) throws IOException
+    {
+    	this();
+    	
+    	stateDirectory = directory;
+    	log = new EditLog(directory);
+    	namespace = Namespace.create(log);
+    	adaptive = new AdaptiveReplication(namespace, servers, placement, log,
+    			this::sync);
+    	log.recover(namespace, servers);
     }
 
     /** Starts the naming server.
@@ -82,6 +164,17 @@ public class NamingServer implements Service, Registration
     {
         serviceSkeleton.start();
         registrationSkeleton.start();
+        adaptive.start();
+
+        if(log != null) {
+        	checkpointer = Executors.newSingleThreadScheduledExecutor(task -> {
+        		Thread thread = new Thread(task, "naming-checkpoint");
+        		thread.setDaemon(true);
+        		return thread;
+        	});
+        	checkpointer.scheduleWithFixedDelay(this::checkpointIfChanged,
+        			CHECKPOINT_INTERVAL, CHECKPOINT_INTERVAL, TimeUnit.SECONDS);
+        }
     }
 
     /** Stops the naming server.
@@ -97,6 +190,18 @@ public class NamingServer implements Service, Registration
     {
     	 serviceSkeleton.stop();
          registrationSkeleton.stop();
+         adaptive.stop();
+         if(checkpointer != null) {
+        	 checkpointer.shutdownNow();
+        	 try {
+        		 checkpointer.awaitTermination(CHECKPOINT_INTERVAL, TimeUnit.SECONDS);
+        	 } catch(InterruptedException e) {
+        		 Thread.currentThread().interrupt();
+        	 }
+         }
+         if(log != null) {
+        	 log.close();
+         }
          stopped(null);
     }
 
@@ -113,259 +218,143 @@ public class NamingServer implements Service, Registration
     {
     }
 
+    /** Writes a checkpoint of the directory tree and the storage servers, and
+        deletes the part of the edit log it covers.
+
+        <p>
+        Clients and storage servers are served while the checkpoint is
+        written. The naming server also writes checkpoints periodically in
+        the background once started; this method writes one immediately.
+
+        @throws IllegalStateException If the naming server keeps no state on
+                                      disk.
+        @throws IOException If the checkpoint cannot be written. The edit log
+                            is then kept, and the previous checkpoint, if
+                            any, remains valid.
+     */
+    public void checkpoint() throws IOException
+    {
+    	if(log == null) {
+    		throw new IllegalStateException("naming server keeps no state on disk");
+    	}
+
+    	synchronized(checkpointLock) {
+    		long segment = log.roll();
+    		Checkpoint.write(stateDirectory, segment, namespace, servers);
+    		log.deleteSegmentsBefore(segment);
+    	}
+    }
+
+    /** Writes a checkpoint if anything was logged since the last one. Run
+        periodically in the background. */
+    private void checkpointIfChanged()
+    {
+    	if(!log.hasRecordsSinceRoll()) {
+    		return;
+    	}
+
+    	try {
+    		checkpoint();
+    	} catch(IOException | UncheckedIOException e) {
+    		// The edit log still holds every change; the next attempt may
+    		// succeed.
+    	}
+    }
+
+    /** Waits until the changes made so far are on disk, if the naming server
+        keeps its state on disk. */
+    private void sync()
+    {
+    	if(log != null) {
+    		log.sync();
+    	}
+    }
+
+    public boolean exists(Path file) {
+    	return namespace.exists(file);
+    }
+
     // The following methods are documented in Service.java.
     @Override
     public boolean isDirectory(Path path) throws FileNotFoundException
     {
+    	if(path == null) {
+    		throw new NullPointerException();
+    	}
 
-     	String localPath;
-
-         
-         if(path.toString().endsWith("/")) {
-        	 localPath = path.toString();
-         } else {
-        	 localPath = path.toString() + "/";
-         }
-    	
-    	boolean isDirectory = false, isPresent = false;
-        for(Path p: pathArrayList) {
-        	if(p.toString().startsWith(localPath)) {
-        		isDirectory = true;
-        		
-        	}
-        	if(p.toString().startsWith(path.toString())) {
-        		isPresent = true;
-        	}
-        	
-        	if(isDirectory) {
-        		break;
-        	}
-        }
-        
-        if(pathFolderMap.containsKey(path)) {
-        	return pathFolderMap.get(path);
-        }
-        
-        if(!isPresent) {
-        	throw new FileNotFoundException();
-        }
-        
-    	return isDirectory;
+    	return namespace.isDirectory(path);
     }
 
     @Override
     public String[] list(Path directory) throws FileNotFoundException
     {
-    	List<String> listPaths = new ArrayList<>();
         if(directory == null) {
         	throw new NullPointerException();
         }
-        
-        boolean res = isDirectory(directory);
-        if(!res) {
-        	throw new FileNotFoundException();
-        }
-        
-        //Logic here
-        
-        for(Path p: pathArrayList) { 
-        	if(p.toString().startsWith(directory.toString())) {
-        		//Start taking substrings
-
-        		String[] pathSplits = Arrays.stream(p.toString().split("/")).filter(s -> !s.trim().equals("")).toArray(String[]::new);
 
-        		String[] dirSplits = Arrays.stream(directory.toString().split("/")).filter(s -> !s.trim().equals("")).toArray(String[]::new); 
-                
-         
-                
-
-        		if(!listPaths.contains(pathSplits[dirSplits.length])) {
-        			listPaths.add(pathSplits[dirSplits.length]);
-        		}
-        	}
-        }
-
-        
-        return (String[]) listPaths.toArray(new String[listPaths.size()]);
+        return namespace.list(directory);
     }
 
     @Override
     public boolean createFile(Path file)
         throws RMIException, FileNotFoundException
     {
-    	boolean result = false;
-    	
+    	if(file == null) {
+    		throw new NullPointerException();
+    	}
+
     	if(file.isRoot()) {
     		return false;
     	}
 
-
-    	if(!exists(file.parent())) {
-
-    		throw new FileNotFoundException();
+    	List<RegisteredServer> candidates = upServers();
+    	if(candidates.isEmpty()) {
+    		throw new IllegalStateException("no storage servers are connected");
     	}
-    	
-    	if(exists(file)) {
 
-    		return false;
-    	}
-    	
+    	RegisteredServer[] replicas = placement.choose(file, candidates,
+    			replication.replicas(file));
 
-    	
-    	String dirPath = file.toString().substring(0, file.toString().lastIndexOf("/"));
-    	
-    	if(dirPath.trim().isEmpty()) {
-    		dirPath = "/";
-    	}
-    	
-    
-    	for(Path p: pathArrayList) {
-    		
-    		if(p.toString().equals(dirPath)) {
-    			if(!pathFolderMap.get(p)) {
-    				throw new FileNotFoundException();
-    			} else {
-    				
-    				result = true;
-    				break;
-    			}
-    		} else if(p.toString().startsWith(dirPath) && p.toString().length() > dirPath.toString().length()) {
-    			
-    			result = true;
-				break;
-    			
+    	boolean created = namespace.createFile(file, new Node.FileEntry(replicas));
+    	sync();
+    	if(created) {
+    		for(RegisteredServer replica : replicas) {
+    			replica.placed.incrementAndGet();
     		}
-    		
-    		
-    	
     	}
-    	
-    	if(result) {
-    		
-			Command cs = commandStubs.get(0);
-			Storage ss = storageStubs.get(0);
-
-			storageMap.put(file, ss);
- 		   	commandMap.put(file, cs);
- 		   	cs.create(file);
- 		   	
- 		   pathArrayList.add(file);
- 		   pathFolderMap.put(file, false);
-			
-			
-    	}
-    
-    	
-    	return result;
-    	
-    }
-    
-    public boolean exists(Path file) {
-    	
- 	   boolean flag = false;
-    	
-        for(Path path: pathArrayList) {
-     	   if(!path.toString().equals("/")) {
-     		   
-	        		   if(path.toString().startsWith(file.toString())) {
-	        			   flag = true;
-	        			   break;
-	        		   }
-	        		   
-	 
-     	   }
-        }
-        
-        return flag;
+    	return created;
     }
 
     @Override
     public boolean createDirectory(Path directory) throws FileNotFoundException
     {
-    	boolean result = false;
-    	
-    	if(directory.isRoot()) {
-    		return false;
+    	if(directory == null) {
+    		throw new NullPointerException();
     	}
 
-    	if(!exists(directory.parent())) {
-
-    		throw new FileNotFoundException();
-    	}
-    	
-    	if(exists(directory)) {
+    	if(directory.isRoot()) {
     		return false;
     	}
-    	
-    	String dirPath = directory.toString().substring(0, directory.toString().lastIndexOf("/"));
-    	
-    	if(dirPath.isEmpty()) {
-    		dirPath = "/";
-    	}
-    	
-    	for(Path p: pathArrayList) {
-    		
-    		if(p.toString().equals(dirPath)) {
-    			if(!pathFolderMap.get(p)) {
-    				throw new FileNotFoundException();
-    			} else {
-    				
-    				result = true;
-    				break;
-    			}
-    		} else if(p.toString().startsWith(dirPath) && p.toString().length() > dirPath.toString().length()) {
-    			
-    			result = true;
-				break;
-    			
-    		}
-    		
-    		
-    	
-    	}
-    	
-    	if(result) {
-    		pathArrayList.add(directory);
-			pathFolderMap.put(directory, true);
-    	}
-    	
-    	
-    	return result;
-    	
+
+    	boolean created = namespace.createDirectory(directory);
+    	sync();
+    	return created;
     }
 
     @Override
     public boolean delete(Path path) throws FileNotFoundException
     {
-    	
+    	if(path == null) {
+    		throw new NullPointerException();
+    	}
+
     	if(path.isRoot()) {
     		return false;
     	}
 
-
-    	if(!exists(path.parent()) && !exists(path)) {
-    		throw new FileNotFoundException();
-    	}
-    	
-        Command c = commandMap.get(path);
-        boolean res = false;
-		try {
-			res = c.delete(path);
-			
-			if(res) {
-				pathArrayList.remove(path);
-				commandMap.remove(path);
-				storageMap.remove(path);
-				pathFolderMap.remove(path);
-			}
-			
-		} catch (RMIException e) {
-			res = false;			
-		}
-        
-        return res;
-        
-        
+    	boolean deleted = namespace.delete(path);
+    	sync();
+    	return deleted;
     }
 
     @Override
@@ -375,83 +364,465 @@ public class NamingServer implements Service, Registration
         if (file == null) {
             throw new NullPointerException();
         }
-        if (!exists(file)) {
-            throw new FileNotFoundException();
+
+        Node.FileEntry entry = namespace.file(file);
+        adaptive.requested(file);
+        if(entry.replicas.length == 1) {
+        	return entry.primary().storage;
         }
-        if (!pathFolderMap.containsKey(file)) {
-            throw new FileNotFoundException();
+
+        RegisteredServer[] order = downLast(replicaSelector.order(entry));
+        List<RegisteredServer> key = Arrays.asList(order);
+        Storage stub = replicatedStubs.get(key);
+        if(stub == null) {
+        	stub = replicated(order);
+        	if(replicatedStubs.size() >= REPLICATED_STUBS) {
+        		replicatedStubs.clear();
+        	}
+        	replicatedStubs.put(key, stub);
         }
+        return stub;
+    }
 
-        return storageMap.get(file);
+    /** Creates the stub handed to clients for the replicas of a file, in the
+        order in which they should be read. */
+    private static Storage replicated(RegisteredServer[] order)
+    {
+        try {
+        	InetSocketAddress[] addresses = new InetSocketAddress[order.length];
+        	for(int i = 0; i < order.length; i++) {
+        		addresses[i] = Stub.address(order[i].storage);
+        	}
+        	return Stub.createReplicated(Storage.class, addresses);
+        } catch(IllegalArgumentException e) {
+        	// A stub not made for a single skeleton; the client can only be
+        	// given one replica.
+        	return order[0].storage;
+        }
     }
 
-    // The method register is documented in Registration.java.
+    /** Sets the number of replicas kept of files created below a directory
+        from now on.
+
+        <p>
+        The setting applies to the whole subtree, except below directories
+        with settings of their own. Initial settings are read from the system
+        property <code>naming.replication</code>, for example
+        <code>/media=3,/media/drafts=1</code>. Settings are not kept on disk.
+        If fewer storage servers are registered than the setting asks for,
+        each file gets a replica on every server.
+
+        @param directory The root of the subtree. It need not exist yet.
+        @param replicas The number of replicas, at least 1.
+        @throws IllegalArgumentException If <code>replicas</code> is less
+                                         than 1.
+     */
+    public void setReplication(Path directory, int replicas)
+    {
+    	if(directory == null) {
+    		throw new NullPointerException();
+    	}
+
+    	replication.set(directory, replicas);
+    }
+
+    // The following methods are documented in Registration.java.
     @Override
     public Path[] register(Storage client_stub, Command command_stub,
                            Path[] files)
     {
-    	
-    	
+
+
        if(client_stub == null || command_stub == null || files == null) {
     	   throw new NullPointerException();
        }
-       
-       
-       if(!storageStubs.contains(client_stub)) {
-           storageStubs.add(client_stub);
 
-       } else {
-    	   throw new IllegalStateException();
+
+       // The files of a server known from the edit log are listed before it
+       // is marked registered. Until then no new file or replica is placed
+       // on it, so every file listed is one it had before.
+       RegisteredServer known;
+       synchronized(servers) {
+    	   known = known(client_stub, command_stub);
+       }
+       Set<Path> recorded = known == null ? null : recordedOn(known);
+
+       RegisteredServer server;
+       boolean recovered;
+
+       synchronized(servers) {
+    	   server = recover(client_stub, command_stub);
+    	   recovered = server != null && server == known;
+
+    	   if(server == null) {
+    		   server = new RegisteredServer(servers.size(), client_stub,
+    				   command_stub, false);
+    		   servers.add(server);
+    		   if(log != null) {
+    			   log.registered(server);
+    		   }
+    	   }
+
+    	   synchronized(server) {
+    		   server.generation = newGeneration();
+    		   if(log != null) {
+    			   log.newGeneration(server);
+    		   }
+    	   }
        }
-       
-       if(!commandStubs.contains(command_stub)) {
-           commandStubs.add(command_stub);
 
-       } else {
-    	   throw new IllegalStateException();
+       if(recovered) {
+    	   server.unreported = recorded;
        }
-       
-       Path[] delFiles = {};
-       List<Path> delArrayList = new ArrayList<>();
-       
-       if(pathArrayList.size() == 0) {
-    	   pathArrayList.addAll(Arrays.asList(files));
-    	   for(Path p: pathArrayList) {
-    		   pathFolderMap.put(p, false);
-    		   storageMap.put(p, client_stub);
-    		   commandMap.put(p, command_stub);
+
+       return add(server, files);
+    }
+
+    /** Returns the files in the tree with a replica on a storage server. */
+    private Set<Path> recordedOn(RegisteredServer server)
+    {
+    	Set<Path> files = new HashSet<>();
+    	try {
+    		namespace.walk(new Namespace.Visitor() {
+    			@Override
+    			public void file(Path file, Node.FileEntry entry)
+    			{
+    				if(entry.isOn(server)) {
+    					files.add(file);
+    				}
+    			}
+
+    			@Override
+    			public void emptyDirectory(Path directory)
+    			{
+    			}
+    		});
+    	} catch(IOException e) {
+    		throw new UncheckedIOException(e);
+    	}
+    	return files;
+    }
+
+    @Override
+    public boolean reregister(Storage client_stub, Command command_stub,
+                              long generation)
+    {
+    	if(client_stub == null || command_stub == null) {
+    		throw new NullPointerException();
+    	}
+
+    	synchronized(servers) {
+    		RegisteredServer known = known(client_stub, command_stub);
+    		if(known == null || generation == 0
+    				|| known.generation != generation) {
+    			return false;
+    		}
+
+    		known.recovered = false;
+    		return true;
+    	}
+    }
+
+    @Override
+    public long generation(Storage client_stub)
+    {
+    	if(client_stub == null) {
+    		throw new NullPointerException();
+    	}
+
+    	return registered(client_stub).generation;
+    }
+
+    /** Returns a new generation for a registration: a random number other
+        than zero. */
+    private static long newGeneration()
+    {
+    	long generation;
+    	do {
+    		generation = ThreadLocalRandom.current().nextLong();
+    	} while(generation == 0);
+    	return generation;
+    }
+
+    @Override
+    public Path[] addFiles(Storage client_stub, Path[] files)
+    {
+    	if(client_stub == null || files == null) {
+    		throw new NullPointerException();
+    	}
+
+    	return add(registered(client_stub), files);
+    }
+
+    @Override
+    public void finishRegistration(Storage client_stub)
+    {
+    	if(client_stub == null) {
+    		throw new NullPointerException();
+    	}
+
+    	RegisteredServer server = registered(client_stub);
+    	Set<Path> unreported = server.unreported;
+    	if(unreported == null) {
+    		return;
+    	}
+    	server.unreported = null;
+
+    	Path[] stale;
+    	synchronized(unreported) {
+    		stale = unreported.toArray(new Path[unreported.size()]);
+    	}
+    	for(Path file : stale) {
+    		removeReplica(file, server);
+    	}
+
+    	sync();
+    }
+
+    @Override
+    public void removeFiles(Storage client_stub, Path[] files)
+    {
+    	if(client_stub == null || files == null) {
+    		throw new NullPointerException();
+    	}
+
+    	RegisteredServer server = registered(client_stub);
+
+    	for(Path file : files) {
+    		removeReplica(file, server);
+    	}
+
+    	sync();
+    }
+
+    /** Removes a storage server from the replicas of a file, if the file has
+        a replica on it.
+
+        <p>
+        The replicas of the file may change meanwhile, for example when a
+        copy is added to a file requested by many clients. The entry is then
+        read again, until it has been replaced or no longer lists the
+        server.
+     */
+    private void removeReplica(Path file, RegisteredServer server)
+    {
+    	while(true) {
+    		Node.FileEntry entry;
+    		try {
+    			entry = namespace.file(file);
+    		} catch(FileNotFoundException e) {
+    			return;
+    		}
+
+    		if(!entry.isOn(server)) {
+    			return;
+    		}
+
+    		if(entry.replicas.length == 1) {
+    			// Nothing can replace the file meanwhile: deleting it needs
+    			// this server, which no longer has it, to delete it too.
+    			namespace.remove(file);
+    			return;
+    		}
+
+    		List<RegisteredServer> kept = new ArrayList<>();
+    		for(RegisteredServer replica : entry.replicas) {
+    			if(replica != server) {
+    				kept.add(replica);
+    			}
+    		}
+    		if(namespace.replaceFile(file, entry,
+    				new Node.FileEntry(kept.toArray(new RegisteredServer[kept.size()])))) {
+    			return;
+    		}
+    	}
+    }
+
+    /** Merges files reported by a registered storage server into the tree.
+
+        @return The files the storage server must delete.
+     */
+    private Path[] add(RegisteredServer server, Path[] files)
+    {
+       Set<Path> unreported = server.unreported;
+       if(unreported != null) {
+    	   synchronized(unreported) {
+    		   for(Path file : files) {
+    			   unreported.remove(file);
+    		   }
     	   }
-       } else {
-
-           
-           //Get Paths to be updated
-           for(Path path: files) {
-        	   if(!path.toString().equals("/")) {
-        		   
-	        	   boolean flag = false;
-	        	   for(Path p2: pathArrayList) {
-	        		   if(p2.toString().startsWith(path.toString())) {
-	        			   flag = true;
-	        			   delArrayList.add(path);
-	        			   break;
-	        		   }
-	        		   
-	        		   
-	        	   }
-	        	   
-	        	   if(!flag) {
-	    			   pathArrayList.add(path);
-	    			   pathFolderMap.put(path, false);
-	    			   storageMap.put(path, client_stub);
-	        		   commandMap.put(path, command_stub);
-	    		   }
-        	   }
-           }
-    	   
-   
        }
-       
-       return (Path[]) delArrayList.toArray(new Path[delArrayList.size()]);
-              
+
+       // Merged through the tree, in time proportional to the files
+       // reported; registrations of other servers are merged alongside.
+       List<Path> duplicates = new ArrayList<>();
+       namespace.add(files, new Node.FileEntry(server), duplicates::add);
+       sync();
+
+       return duplicates.toArray(new Path[duplicates.size()]);
+    }
+
+    /** Finds the storage server known from the edit log that is registering
+        with the given stubs, and marks it registered. Called with the
+        server list locked.
+
+        @return The server, or <code>null</code> if the stubs belong to no
+                server known from the log.
+        @throws IllegalStateException If the stubs belong to a registered
+                                      server.
+     */
+    private RegisteredServer recover(Storage client_stub, Command command_stub)
+    {
+    	RegisteredServer known = known(client_stub, command_stub);
+    	if(known != null) {
+    		known.recovered = false;
+    	}
+
+    	return known;
+    }
+
+    /** Finds the storage server known from the edit log that is registering
+        with the given stubs, without marking it registered. Called with the
+        server list locked.
+
+        @return The server, or <code>null</code> if the stubs belong to no
+                server known from the log.
+        @throws IllegalStateException If the stubs belong to a registered
+                                      server.
+     */
+    private RegisteredServer known(Storage client_stub, Command command_stub)
+    {
+    	for(RegisteredServer known : servers) {
+    		if(known.recovered && isAt(known, client_stub, command_stub)) {
+    			return known;
+    		}
+
+    		if(known.storage.equals(client_stub) ||
+    				known.command.equals(command_stub)) {
+    			throw new IllegalStateException();
+    		}
+    	}
+
+    	return null;
+    }
+
+    @Override
+    public boolean heartbeat(Storage client_stub, LoadReport report)
+    {
+    	if(client_stub == null || report == null) {
+    		throw new NullPointerException();
+    	}
+
+    	RegisteredServer server = find(client_stub);
+    	if(server == null) {
+    		return false;
+    	}
+
+    	server.heartbeat(report);
+    	return true;
+    }
+
+    /** Returns the registered storage server with the given client stub.
+
+        @throws IllegalStateException If no registered server has the stub.
+     */
+    private RegisteredServer registered(Storage client_stub)
+    {
+    	RegisteredServer server = find(client_stub);
+    	if(server == null) {
+    		throw new IllegalStateException("storage server is not registered");
+    	}
+
+    	return server;
+    }
+
+    /** Returns the registered storage server with the given client stub, or
+        <code>null</code> if there is none. */
+    private RegisteredServer find(Storage client_stub)
+    {
+    	for(RegisteredServer server : servers) {
+    		if(!server.recovered && (server.storage.equals(client_stub)
+    				|| sameAddress(server.storage, client_stub))) {
+    			return server;
+    		}
+    	}
+
+    	return null;
+    }
+
+    /** Returns the registered storage servers not known to be down, or
+        every registered server if all of them are. Servers known only from
+        the edit log, which have not registered since the naming server
+        started, are never returned: files cannot be created on them.
+
+        @return The servers; empty if no server has registered.
+     */
+    private List<RegisteredServer> upServers()
+    {
+    	List<RegisteredServer> registered = new ArrayList<>(servers.size());
+    	List<RegisteredServer> up = new ArrayList<>(servers.size());
+    	for(RegisteredServer server : servers) {
+    		if(server.recovered) {
+    			continue;
+    		}
+
+    		registered.add(server);
+    		if(!server.isDown()) {
+    			up.add(server);
+    		}
+    	}
+
+    	return up.isEmpty() ? registered : up;
+    }
+
+    /** Moves the replicas on storage servers known to be down to the end of
+        an order, keeping the order of the others. */
+    private static RegisteredServer[] downLast(RegisteredServer[] order)
+    {
+    	RegisteredServer[] sorted = new RegisteredServer[order.length];
+    	int up = 0;
+    	int down = order.length;
+
+    	// Up servers fill the array from the front, down ones from the back;
+    	// the down ones are reversed back afterwards.
+    	for(RegisteredServer server : order) {
+    		if(server.isDown()) {
+    			sorted[--down] = server;
+    		} else {
+    			sorted[up++] = server;
+    		}
+    	}
+    	for(int i = down, j = order.length - 1; i < j; i++, j--) {
+    		RegisteredServer swap = sorted[i];
+    		sorted[i] = sorted[j];
+    		sorted[j] = swap;
+    	}
+
+    	return sorted;
+    }
+
+    /** Determines whether a storage server known from the edit log is the one
+        registering with the given stubs. */
+    private static boolean isAt(RegisteredServer server, Storage client_stub,
+                                Command command_stub)
+    {
+    	try {
+    		return Stub.address(server.storage).equals(Stub.address(client_stub))
+    				&& Stub.address(server.command).equals(Stub.address(command_stub));
+    	} catch(IllegalArgumentException e) {
+    		return false;
+    	}
+    }
+
+    /** Determines whether two storage stubs refer to the same address. A
+        storage server known from the edit log is given stubs made from its
+        address, which need not equal the stubs it registers with. */
+    private static boolean sameAddress(Storage first, Storage second)
+    {
+    	try {
+    		return Stub.address(first).equals(Stub.address(second));
+    	} catch(IllegalArgumentException e) {
+    		return false;
+    	}
     }
 }
@@ -0,0 +1,157 @@
+package naming;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import common.Path;
+import rmi.RMIException;
+import storage.Command;
+
+/** Entry of the naming server's directory tree.
+
+    <p>
+    The tree mirrors the filesystem namespace. Each directory holds a map from
+    the names of its children to their nodes, so a path is resolved by one map
+    lookup per component, and a directory is listed by reading its own map.
+    Each file refers to the storage servers hosting copies of its contents.
+ */
+abstract class Node
+{
+	/** Adds the command stubs of every file at or below this node to
+	    <code>commands</code>. */
+	abstract void collectCommands(Set<Command> commands);
+
+	/** Determines whether a node is a file with a replica on the given
+	    server. A server registering again reports such files a second
+	    time. */
+	static boolean isFileOn(Node node, RegisteredServer server)
+	{
+		return node instanceof FileEntry && ((FileEntry) node).isOn(server);
+	}
+
+	/** Directory node.
+
+	    <p>
+	    The child map is guarded by the directory's lock: it is read under the
+	    read lock and changed under the write lock.
+	 */
+	static final class Directory extends Node
+	{
+		final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+		private final Map<String, Node> children = new HashMap<>();
+
+		/** Returns the child with the given name, or <code>null</code>. */
+		Node child(String name)
+		{
+			return children.get(name);
+		}
+
+		/** Adds a child, replacing any child of the same name. */
+		void put(String name, Node child)
+		{
+			children.put(name, child);
+		}
+
+		/** Removes the child with the given name, if present. */
+		void remove(String name)
+		{
+			children.remove(name);
+		}
+
+		/** Returns a copy of the child map. */
+		Map<String, Node> copyChildren()
+		{
+			return new HashMap<>(children);
+		}
+
+		/** Returns the names of the children. */
+		String[] names()
+		{
+			return children.keySet().toArray(new String[children.size()]);
+		}
+
+		@Override
+		void collectCommands(Set<Command> commands)
+		{
+			for(Node child : children.values()) {
+				child.collectCommands(commands);
+			}
+		}
+	}
+
+	/** File node, recording the storage servers holding replicas of the
+	    file's contents.
+
+	    <p>
+	    Every replica is created and deleted together. The first replica is
+	    the one the file was placed on; the others are copies of it.
+	 */
+	static final class FileEntry extends Node
+	{
+		final RegisteredServer[] replicas;
+
+		FileEntry(RegisteredServer... replicas)
+		{
+			if(replicas.length == 0) {
+				throw new IllegalArgumentException("file needs a replica");
+			}
+
+			this.replicas = replicas;
+		}
+
+		/** Returns the server the file was placed on. */
+		RegisteredServer primary()
+		{
+			return replicas[0];
+		}
+
+		/** Determines whether the file has a replica on a server. */
+		boolean isOn(RegisteredServer server)
+		{
+			for(RegisteredServer replica : replicas) {
+				if(replica == server) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		/** Creates the file on every replica.
+
+		    @param journal Records the generations forgotten for servers
+		                   whose replica cannot be deleted again.
+		    @throws RMIException If a storage server cannot be reached. The
+		                         replicas already created are deleted again.
+		 */
+		void create(Path file, Journal journal) throws RMIException
+		{
+			for(int i = 0; i < replicas.length; i++) {
+				try {
+					replicas[i].command.create(file);
+				} catch(RMIException e) {
+					for(int j = 0; j < i; j++) {
+						try {
+							replicas[j].command.delete(file);
+						} catch(RMIException cleanup) {
+							// The server cannot be reached either; it is left
+							// with an empty file, which its next registration
+							// with every file reports as a duplicate.
+							replicas[j].forgetGeneration(journal);
+						}
+					}
+					throw e;
+				}
+			}
+		}
+
+		@Override
+		void collectCommands(Set<Command> commands)
+		{
+			for(RegisteredServer replica : replicas) {
+				commands.add(replica.command);
+			}
+		}
+	}
+}
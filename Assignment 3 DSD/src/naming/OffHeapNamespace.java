@@ -0,0 +1,838 @@
+package naming;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+
+import common.Path;
+import common.PathKey;
+import rmi.RMIException;
+import rmi.StacklessExceptions;
+import storage.Command;
+
+/** Directory tree of the naming server, kept in direct buffers outside the
+    Java heap.
+
+    <p>
+    Each file and directory is a fixed-size entry in a table of direct
+    buffers. An entry holds the 64-bit hash of its path, where the path's
+    <code>PathKey</code> bytes are stored, whether it is a directory or the
+    replicas of a file, and links to its parent, its first child and
+    its siblings. Paths are found through an open-addressing index, also
+    outside the heap, which maps the hash of a path to its entry. A file
+    costs its 40-byte entry, its encoded path and a few bytes of index,
+    and the garbage collector sees none of it: the heap holds only a few
+    large buffers, however many files there are.
+
+    <p>
+    Entries of deleted paths are reused. The space of their paths is
+    reclaimed by copying the live paths to new buffers once more than half
+    of the space is unused.
+
+    <p>
+    Readers hold a read lock while they look up and decode entries. Writers
+    take turns, as in <code>SnapshotNamespace</code>, since
+    <code>createFile</code> and <code>delete</code> call storage servers
+    between checking the tree and changing it. A writer holds the write lock
+    only while it changes the buffers, so readers do not wait for storage
+    servers. Files reported by a registration are added in batches, each
+    under the write lock once, and other writers waiting for their turn are
+    let in between two batches.
+
+    <p>
+    Each change is reported to the journal after it is made.
+ */
+class OffHeapNamespace implements Namespace
+{
+	/** Length of an entry, and the offsets of its fields. */
+	private static final int ENTRY = 40;
+	private static final int HASH = 0;
+	private static final int KEY = 8;
+	private static final int KEY_LENGTH = 16;
+	private static final int KIND = 20;
+	private static final int PARENT = 24;
+	private static final int FIRST_CHILD = 28;
+	private static final int NEXT = 32;
+	private static final int PREVIOUS = 36;
+
+	/** Kinds of entries. Files have the number of their set of replicas as
+	    their kind. */
+	private static final int DIRECTORY = -1;
+	private static final int FREE = -2;
+
+	/** Number of no entry, in links and results. */
+	private static final int NONE = -1;
+
+	/** Entries per page of the entry table. */
+	private static final int PAGE_BITS = 16;
+	private static final int PAGE_MASK = (1 << PAGE_BITS) - 1;
+	/** Length of each buffer holding paths. A path is never split between
+	    buffers. */
+	private static final int CHUNK_BITS = 24;
+	private static final int CHUNK = 1 << CHUNK_BITS;
+	/** Largest number of slots in the index, whose slots are in one buffer. */
+	private static final int MAX_INDEX = 1 << 28;
+	/** Number of files a registration adds under the write lock at once. */
+	private static final int BATCH = 1024;
+
+	private ByteBuffer[] pages = new ByteBuffer[0];
+	/** Number of entries ever allocated. Entries above it are unused. */
+	private int allocated = 0;
+	/** First free entry; free entries are linked by their next field. */
+	private int free = NONE;
+
+	private ByteBuffer[] chunks = new ByteBuffer[0];
+	/** Where the next path is stored: a chunk number in the upper bits and
+	    an offset in the chunk in the lower <code>CHUNK_BITS</code> bits. */
+	private long keyEnd = 0;
+	/** Number of bytes of paths that have been deleted. */
+	private long keyGarbage = 0;
+
+	/** Open-addressing index from path hash to entry. A slot holds one more
+	    than the entry number, or zero if it is empty. */
+	private IntBuffer index;
+	private int indexed = 0;
+
+	/** The entries of files, by kind. Files with the same replicas share
+	    an entry. */
+	private Node.FileEntry[] entries = new Node.FileEntry[0];
+	/** Kinds of the entries, by the numbers of their replicas' servers.
+	    Used only by the writer. */
+	private final Map<List<Integer>, Integer> kinds = new HashMap<>();
+
+	private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+	/** Held by the thread updating the tree. The lock is fair, so that a
+	    registration letting go of it between batches lets waiting writers
+	    in. */
+	private final ReentrantLock writer = new ReentrantLock(true);
+	private final Journal journal;
+
+	OffHeapNamespace(Journal journal)
+	{
+		this.journal = journal;
+
+		index = ByteBuffer.allocateDirect(1024 * 4).asIntBuffer();
+		insert(PathKey.of(new Path()), NONE, DIRECTORY);
+	}
+
+	@Override
+	public boolean isDirectory(Path path) throws FileNotFoundException
+	{
+		lock.readLock().lock();
+		try {
+			int id = find(PathKey.of(path));
+			if(id == NONE) {
+				throw StacklessExceptions.fileNotFound(null);
+			}
+
+			return kind(id) == DIRECTORY;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public String[] list(Path directory) throws FileNotFoundException
+	{
+		lock.readLock().lock();
+		try {
+			int id = find(PathKey.of(directory));
+			if(id == NONE || kind(id) != DIRECTORY) {
+				throw StacklessExceptions.fileNotFound(null);
+			}
+
+			List<String> names = new ArrayList<>();
+			for(int child = link(id, FIRST_CHILD); child != NONE;
+					child = link(child, NEXT)) {
+				names.add(name(child));
+			}
+
+			return names.toArray(new String[names.size()]);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public Node.FileEntry file(Path file) throws FileNotFoundException
+	{
+		lock.readLock().lock();
+		try {
+			int id = find(PathKey.of(file));
+			if(id == NONE || kind(id) < 0) {
+				throw StacklessExceptions.fileNotFound(null);
+			}
+
+			return entries[kind(id)];
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public boolean exists(Path path)
+	{
+		lock.readLock().lock();
+		try {
+			return find(PathKey.of(path)) != NONE;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public boolean createFile(Path file, Node.FileEntry entry)
+		throws FileNotFoundException, RMIException
+	{
+		writer.lock();
+		try {
+			// Only the writer changes the buffers, so it reads them unlocked.
+			int parent = directory(file.parent());
+			PathKey key = PathKey.of(file);
+			if(find(key) != NONE) {
+				return false;
+			}
+
+			entry.create(file, journal);
+
+			lock.writeLock().lock();
+			try {
+				insert(key, parent, kindOf(entry));
+			} finally {
+				lock.writeLock().unlock();
+			}
+
+			journal.addedFile(file, entry);
+			return true;
+		} finally {
+			writer.unlock();
+		}
+	}
+
+	@Override
+	public boolean createDirectory(Path directory) throws FileNotFoundException
+	{
+		writer.lock();
+		try {
+			int parent = directory(directory.parent());
+			PathKey key = PathKey.of(directory);
+			if(find(key) != NONE) {
+				return false;
+			}
+
+			lock.writeLock().lock();
+			try {
+				insert(key, parent, DIRECTORY);
+			} finally {
+				lock.writeLock().unlock();
+			}
+
+			journal.addedDirectory(directory);
+			return true;
+		} finally {
+			writer.unlock();
+		}
+	}
+
+	@Override
+	public boolean delete(Path path) throws FileNotFoundException
+	{
+		writer.lock();
+		try {
+			int id = find(PathKey.of(path));
+			if(id == NONE) {
+				throw StacklessExceptions.fileNotFound(null);
+			}
+
+			Set<Command> holders = new LinkedHashSet<>();
+			collectCommands(id, holders);
+
+			try {
+				for(Command command : holders) {
+					if(!command.delete(path)) {
+						return false;
+					}
+				}
+			} catch(RMIException e) {
+				return false;
+			}
+
+			lock.writeLock().lock();
+			try {
+				delete(id);
+			} finally {
+				lock.writeLock().unlock();
+			}
+
+			journal.deleted(path);
+			return true;
+		} finally {
+			writer.unlock();
+		}
+	}
+
+	@Override
+	public void add(Path[] files, Node.FileEntry entry, Consumer<Path> duplicates)
+	{
+		List<Path> added = new ArrayList<>();
+		List<Path> rejected = new ArrayList<>();
+		int start = 0;
+
+		while(start < files.length) {
+			writer.lock();
+			try {
+				int kind = kindOf(entry);
+
+				do {
+					int end = Math.min(files.length, start + BATCH);
+
+					lock.writeLock().lock();
+					try {
+						for(int i = start; i < end; i++) {
+							Path file = files[i];
+							if(file.isRoot()) {
+								continue;
+							}
+
+							if(add(file, kind)) {
+								added.add(file);
+							} else {
+								rejected.add(file);
+							}
+						}
+					} finally {
+						lock.writeLock().unlock();
+					}
+
+					for(Path file : added) {
+						journal.addedFile(file, entry);
+					}
+					rejected.forEach(duplicates);
+					added.clear();
+					rejected.clear();
+
+					start = end;
+				} while(start < files.length && !writer.hasQueuedThreads());
+			} finally {
+				writer.unlock();
+			}
+		}
+	}
+
+	@Override
+	public void remove(Path path)
+	{
+		writer.lock();
+		try {
+			int id = find(PathKey.of(path));
+			if(id == NONE) {
+				return;
+			}
+
+			lock.writeLock().lock();
+			try {
+				delete(id);
+			} finally {
+				lock.writeLock().unlock();
+			}
+
+			journal.deleted(path);
+		} finally {
+			writer.unlock();
+		}
+	}
+
+	/** Replaces the entry of a file. Since files with the same replicas
+	    share an entry, the file's entry is compared with
+	    <code>expected</code> by its replicas rather than by identity. */
+	@Override
+	public boolean replaceFile(Path file, Node.FileEntry expected,
+			Node.FileEntry replacement)
+	{
+		writer.lock();
+		try {
+			int id = find(PathKey.of(file));
+			if(id == NONE || kind(id) < 0 || kind(id) != kindOf(expected)) {
+				return false;
+			}
+
+			int kind = kindOf(replacement);
+
+			lock.writeLock().lock();
+			try {
+				page(id).putInt(offset(id, KIND), kind);
+			} finally {
+				lock.writeLock().unlock();
+			}
+
+			journal.replicasChanged(file, replacement);
+			return true;
+		} finally {
+			writer.unlock();
+		}
+	}
+
+	@Override
+	public void walk(Visitor visitor) throws IOException
+	{
+		walk(new Path(), visitor);
+	}
+
+	/** Reports the directory at <code>path</code> and everything below it.
+	    The children are read under the read lock, which is released before
+	    they are reported. */
+	private void walk(Path path, Visitor visitor) throws IOException
+	{
+		List<String> names = new ArrayList<>();
+		List<Node.FileEntry> files = new ArrayList<>();
+
+		lock.readLock().lock();
+		try {
+			int id = find(PathKey.of(path));
+			if(id == NONE || kind(id) != DIRECTORY) {
+				// Deleted or replaced since its parent was read.
+				return;
+			}
+
+			for(int child = link(id, FIRST_CHILD); child != NONE;
+					child = link(child, NEXT)) {
+				names.add(name(child));
+				files.add(kind(child) == DIRECTORY ? null : entries[kind(child)]);
+			}
+		} finally {
+			lock.readLock().unlock();
+		}
+
+		if(names.isEmpty() && !path.isRoot()) {
+			visitor.emptyDirectory(path);
+		}
+
+		for(int i = 0; i < names.size(); i++) {
+			Path childPath = new Path(path, names.get(i));
+
+			if(files.get(i) != null) {
+				visitor.file(childPath, files.get(i));
+			} else {
+				walk(childPath, visitor);
+			}
+		}
+	}
+
+	/** Adds one file, creating its missing parent directories. Called with
+	    the write lock held.
+
+	    @return <code>false</code> if the path is already present without a
+	            replica on the file's server, or if one of its ancestors is a
+	            file.
+	 */
+	private boolean add(Path file, int kind)
+	{
+		PathKey key = PathKey.of(file);
+		int id = find(key);
+		if(id != NONE) {
+			return kind(id) >= 0 && entries[kind(id)].isOn(entries[kind].primary());
+		}
+
+		int parent = ensureDirectory(file.parent());
+		if(parent == NONE) {
+			return false;
+		}
+
+		insert(key, parent, kind);
+		return true;
+	}
+
+	/** Returns the directory at <code>path</code>, creating it and its missing
+	    parents. Called with the write lock held.
+
+	    @return The directory's entry, or <code>NONE</code> if the path or one
+	            of its ancestors is a file. Nothing is created in that case.
+	 */
+	private int ensureDirectory(Path path)
+	{
+		PathKey key = PathKey.of(path);
+		int id = find(key);
+		if(id != NONE) {
+			return kind(id) == DIRECTORY ? id : NONE;
+		}
+
+		int parent = ensureDirectory(path.parent());
+		if(parent == NONE) {
+			return NONE;
+		}
+
+		return insert(key, parent, DIRECTORY);
+	}
+
+	/** Returns the entry of the directory at <code>path</code>.
+
+	    @throws FileNotFoundException If the path is not a directory.
+	 */
+	private int directory(Path path) throws FileNotFoundException
+	{
+		int id = find(PathKey.of(path));
+		if(id == NONE || kind(id) != DIRECTORY) {
+			throw StacklessExceptions.fileNotFound(null);
+		}
+
+		return id;
+	}
+
+	/** Returns the kind recorded for files with the given replicas,
+	    remembering the entry so that lookups can return it. */
+	private int kindOf(Node.FileEntry entry)
+	{
+		List<Integer> servers = new ArrayList<>(entry.replicas.length);
+		for(RegisteredServer replica : entry.replicas) {
+			servers.add(replica.id);
+		}
+
+		Integer kind = kinds.get(servers);
+		if(kind != null) {
+			return kind;
+		}
+
+		Node.FileEntry[] grown = Arrays.copyOf(entries, entries.length + 1);
+		grown[entries.length] = entry;
+
+		lock.writeLock().lock();
+		try {
+			entries = grown;
+		} finally {
+			lock.writeLock().unlock();
+		}
+
+		kinds.put(servers, entries.length - 1);
+		return entries.length - 1;
+	}
+
+	/** Adds the command stubs of every file at or below an entry to
+	    <code>commands</code>. */
+	private void collectCommands(int id, Set<Command> commands)
+	{
+		int kind = kind(id);
+		if(kind >= 0) {
+			entries[kind].collectCommands(commands);
+			return;
+		}
+
+		for(int child = link(id, FIRST_CHILD); child != NONE;
+				child = link(child, NEXT)) {
+			collectCommands(child, commands);
+		}
+	}
+
+	// Entry table.
+
+	private ByteBuffer page(int id)
+	{
+		return pages[id >>> PAGE_BITS];
+	}
+
+	private static int offset(int id, int field)
+	{
+		return (id & PAGE_MASK) * ENTRY + field;
+	}
+
+	private long hash(int id)
+	{
+		return page(id).getLong(offset(id, HASH));
+	}
+
+	private int kind(int id)
+	{
+		return page(id).getInt(offset(id, KIND));
+	}
+
+	private int link(int id, int field)
+	{
+		return page(id).getInt(offset(id, field));
+	}
+
+	private void setLink(int id, int field, int value)
+	{
+		page(id).putInt(offset(id, field), value);
+	}
+
+	/** Creates an entry for a path and links it under its parent.
+
+	    @return The new entry.
+	 */
+	private int insert(PathKey key, int parent, int kind)
+	{
+		int id = allocate();
+		ByteBuffer page = page(id);
+
+		page.putLong(offset(id, HASH), key.hash64());
+		page.putLong(offset(id, KEY), storeKey(key));
+		page.putInt(offset(id, KEY_LENGTH), key.length());
+		page.putInt(offset(id, KIND), kind);
+		page.putInt(offset(id, PARENT), parent);
+		page.putInt(offset(id, FIRST_CHILD), NONE);
+		page.putInt(offset(id, PREVIOUS), NONE);
+
+		if(parent == NONE) {
+			page.putInt(offset(id, NEXT), NONE);
+		} else {
+			int next = link(parent, FIRST_CHILD);
+			page.putInt(offset(id, NEXT), next);
+			if(next != NONE) {
+				setLink(next, PREVIOUS, id);
+			}
+			setLink(parent, FIRST_CHILD, id);
+		}
+
+		index(id);
+		return id;
+	}
+
+	/** Unlinks an entry from its parent and frees it and everything below
+	    it. */
+	private void delete(int id)
+	{
+		int parent = link(id, PARENT);
+		int previous = link(id, PREVIOUS);
+		int next = link(id, NEXT);
+
+		if(previous == NONE) {
+			setLink(parent, FIRST_CHILD, next);
+		} else {
+			setLink(previous, NEXT, next);
+		}
+		if(next != NONE) {
+			setLink(next, PREVIOUS, previous);
+		}
+
+		release(id);
+		compactKeys();
+	}
+
+	/** Frees an entry and everything below it, without unlinking it. */
+	private void release(int id)
+	{
+		for(int child = link(id, FIRST_CHILD); child != NONE; ) {
+			int next = link(child, NEXT);
+			release(child);
+			child = next;
+		}
+
+		unindex(id);
+		keyGarbage += page(id).getInt(offset(id, KEY_LENGTH));
+		page(id).putInt(offset(id, KIND), FREE);
+		setLink(id, NEXT, free);
+		free = id;
+	}
+
+	private int allocate()
+	{
+		if(free != NONE) {
+			int id = free;
+			free = link(id, NEXT);
+			return id;
+		}
+
+		if(allocated == pages.length << PAGE_BITS) {
+			if(pages.length == 1 << (31 - PAGE_BITS)) {
+				throw new IllegalStateException("namespace is full");
+			}
+
+			pages = Arrays.copyOf(pages, pages.length + 1);
+			pages[pages.length - 1] = ByteBuffer.allocateDirect(ENTRY << PAGE_BITS);
+		}
+
+		return allocated++;
+	}
+
+	// Paths.
+
+	/** Stores the bytes of a key.
+
+	    @return Where the key is stored.
+	 */
+	private long storeKey(PathKey key)
+	{
+		long address = reserveKey(key.length());
+		key.copyTo(chunks[(int) (address >>> CHUNK_BITS)], (int) address & (CHUNK - 1));
+		return address;
+	}
+
+	/** Reserves space for a path of the given length, adding a chunk if the
+	    path does not fit in the rest of the current one.
+
+	    @return Where the path is to be stored.
+	 */
+	private long reserveKey(int length)
+	{
+		if(length > CHUNK) {
+			throw new IllegalArgumentException("path is too long");
+		}
+
+		int chunk = (int) (keyEnd >>> CHUNK_BITS);
+		int offset = (int) keyEnd & (CHUNK - 1);
+
+		if(chunk == chunks.length || offset + length > CHUNK) {
+			if(chunk < chunks.length) {
+				// The rest of the current chunk is left unused.
+				keyGarbage += CHUNK - offset;
+				chunk++;
+			}
+
+			chunks = Arrays.copyOf(chunks, chunk + 1);
+			chunks[chunk] = ByteBuffer.allocateDirect(CHUNK);
+			offset = 0;
+		}
+
+		long address = ((long) chunk << CHUNK_BITS) | offset;
+		keyEnd = address + length;
+		return address;
+	}
+
+	private boolean matches(int id, PathKey key)
+	{
+		long address = page(id).getLong(offset(id, KEY));
+		int length = page(id).getInt(offset(id, KEY_LENGTH));
+
+		return key.matches(chunks[(int) (address >>> CHUNK_BITS)],
+				(int) address & (CHUNK - 1), length);
+	}
+
+	/** Returns the last component of an entry's path. */
+	private String name(int id)
+	{
+		long address = page(id).getLong(offset(id, KEY));
+		int length = page(id).getInt(offset(id, KEY_LENGTH));
+
+		byte[] bytes = new byte[length];
+		chunks[(int) (address >>> CHUNK_BITS)].get((int) address & (CHUNK - 1), bytes);
+
+		int start = length;
+		while(bytes[start - 1] != '/') {
+			start--;
+		}
+
+		return new String(bytes, start, length - start, StandardCharsets.UTF_8);
+	}
+
+	/** Copies the paths of the live entries to new chunks once more than half
+	    of the stored bytes belong to deleted entries. */
+	private void compactKeys()
+	{
+		if(keyGarbage < CHUNK || keyGarbage * 2 < keyEnd) {
+			return;
+		}
+
+		ByteBuffer[] old = chunks;
+		chunks = new ByteBuffer[0];
+		keyEnd = 0;
+		keyGarbage = 0;
+
+		byte[] bytes = new byte[0];
+		for(int id = 0; id < allocated; id++) {
+			if(kind(id) == FREE) {
+				continue;
+			}
+
+			long address = page(id).getLong(offset(id, KEY));
+			int length = page(id).getInt(offset(id, KEY_LENGTH));
+			if(bytes.length < length) {
+				bytes = new byte[length];
+			}
+			old[(int) (address >>> CHUNK_BITS)].get((int) address & (CHUNK - 1),
+					bytes, 0, length);
+
+			long moved = reserveKey(length);
+			chunks[(int) (moved >>> CHUNK_BITS)].put((int) moved & (CHUNK - 1),
+					bytes, 0, length);
+			page(id).putLong(offset(id, KEY), moved);
+		}
+	}
+
+	// Index.
+
+	/** Returns the entry with the given path, or <code>NONE</code>. */
+	private int find(PathKey key)
+	{
+		int mask = index.capacity() - 1;
+
+		for(int slot = (int) key.hash64() & mask; ; slot = (slot + 1) & mask) {
+			int id = index.get(slot) - 1;
+			if(id == NONE) {
+				return NONE;
+			}
+
+			if(hash(id) == key.hash64() && matches(id, key)) {
+				return id;
+			}
+		}
+	}
+
+	private void index(int id)
+	{
+		if((indexed + 1) * 4L > index.capacity() * 3L) {
+			if(index.capacity() == MAX_INDEX) {
+				throw new IllegalStateException("namespace is full");
+			}
+
+			IntBuffer old = index;
+			index = ByteBuffer.allocateDirect(old.capacity() * 2 * 4).asIntBuffer();
+			for(int slot = 0; slot < old.capacity(); slot++) {
+				if(old.get(slot) != 0) {
+					place(old.get(slot) - 1);
+				}
+			}
+		}
+
+		place(id);
+		indexed++;
+	}
+
+	private void place(int id)
+	{
+		int mask = index.capacity() - 1;
+		int slot = (int) hash(id) & mask;
+
+		while(index.get(slot) != 0) {
+			slot = (slot + 1) & mask;
+		}
+		index.put(slot, id + 1);
+	}
+
+	/** Removes an entry from the index, moving back the entries after it that
+	    would otherwise no longer be found. */
+	private void unindex(int id)
+	{
+		int mask = index.capacity() - 1;
+		int slot = (int) hash(id) & mask;
+
+		while(index.get(slot) != id + 1) {
+			slot = (slot + 1) & mask;
+		}
+
+		for(int next = (slot + 1) & mask; index.get(next) != 0;
+				next = (next + 1) & mask) {
+			int home = (int) hash(index.get(next) - 1) & mask;
+
+			// The entry at next may move to slot unless its home lies after
+			// slot, up to next.
+			if(((next - home) & mask) >= ((next - slot) & mask)) {
+				index.put(slot, index.get(next));
+				slot = next;
+			}
+		}
+
+		index.put(slot, 0);
+		indexed--;
+	}
+}
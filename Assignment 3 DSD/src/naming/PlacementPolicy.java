@@ -0,0 +1,172 @@
+package naming;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import common.Path;
+
+/** Chooses the storage server on which a new file is created.
+
+    <p>
+    Policies may be called by any number of threads at once. They are given
+    every registered storage server, in order of registration, and must not
+    change the list.
+
+    <p>
+    The policy is chosen by the system property
+    <code>naming.placement</code>: <code>round-robin</code>, the default,
+    <code>least-bytes</code>, <code>least-loaded</code>,
+    <code>power-of-two</code>, or <code>first</code>, which places every file
+    on the first server to register.
+ */
+interface PlacementPolicy
+{
+	/** Name of the system property selecting the policy. */
+	String PROPERTY = "naming.placement";
+	/** Number of bytes a file placed on a server is assumed to add to it
+	    before the server next reports the bytes it stores. */
+	long PLACED_FILE_BYTES = 1 << 20;
+
+	/** Chooses the server for a new file.
+
+	    @param file The file to be created.
+	    @param servers The registered servers. The list is not empty.
+	    @return One of <code>servers</code>.
+	 */
+	RegisteredServer choose(Path file, List<RegisteredServer> servers);
+
+	/** Chooses the servers for the replicas of a new file, each on a
+	    different server. By default, <code>choose</code> is asked for one
+	    server at a time, each time among the servers not yet chosen.
+
+	    @param count The number of replicas wanted.
+	    @return <code>count</code> servers, or every server if there are
+	            fewer. The first is the server the file is placed on.
+	 */
+	default RegisteredServer[] choose(Path file, List<RegisteredServer> servers,
+			int count)
+	{
+		if(count == 1) {
+			return new RegisteredServer[] {choose(file, servers)};
+		}
+
+		List<RegisteredServer> candidates = new ArrayList<>(servers);
+		RegisteredServer[] chosen = new RegisteredServer[Math.min(count, servers.size())];
+
+		for(int i = 0; i < chosen.length; i++) {
+			chosen[i] = choose(file, candidates);
+			candidates.remove(chosen[i]);
+		}
+
+		return chosen;
+	}
+
+	/** Creates the policy selected by the <code>naming.placement</code>
+	    system property.
+
+	    @throws IllegalArgumentException If the property names no policy.
+	 */
+	static PlacementPolicy create()
+	{
+		String kind = System.getProperty(PROPERTY, "round-robin");
+
+		switch(kind) {
+		case "round-robin":
+			return new RoundRobin();
+		case "least-bytes":
+			return (file, servers) -> least(servers, server -> server.bytesUsed
+					+ server.placedSinceReport() * PLACED_FILE_BYTES);
+		case "least-loaded":
+			return (file, servers) -> least(servers, PlacementPolicy::loadWithPlaced);
+		case "power-of-two":
+			return new PowerOfTwo();
+		case "first":
+			return (file, servers) -> servers.get(0);
+		default:
+			throw new IllegalArgumentException("unknown " + PROPERTY + ": " + kind);
+		}
+	}
+
+	/** Measure of how busy a server is. Lower is better. */
+	interface Measure
+	{
+		double of(RegisteredServer server);
+	}
+
+	/** Returns the reported load of a server, counting each file placed on it
+	    since the report as one more request in progress. Without this, every
+	    file placed between two reports would go to the same server. */
+	static double loadWithPlaced(RegisteredServer server)
+	{
+		return server.load + server.placedSinceReport();
+	}
+
+	/** Returns the server with the lowest measure. Among servers with the
+	    same measure, such as servers that have not reported statistics, the
+	    one with the fewest files placed on it is chosen, so that they are
+	    filled evenly. */
+	static RegisteredServer least(List<RegisteredServer> servers,
+			Measure measure)
+	{
+		RegisteredServer best = null;
+		double bestMeasure = 0;
+		long bestPlaced = 0;
+
+		for(RegisteredServer server : servers) {
+			double value = measure.of(server);
+			long placed = server.placed.get();
+
+			if(best == null || value < bestMeasure
+					|| (value == bestMeasure && placed < bestPlaced)) {
+				best = server;
+				bestMeasure = value;
+				bestPlaced = placed;
+			}
+		}
+
+		return best;
+	}
+
+	/** Places files on each server in turn. */
+	final class RoundRobin implements PlacementPolicy
+	{
+		private final AtomicInteger next = new AtomicInteger();
+
+		@Override
+		public RegisteredServer choose(Path file, List<RegisteredServer> servers)
+		{
+			return servers.get(Math.floorMod(next.getAndIncrement(), servers.size()));
+		}
+	}
+
+	/** Places each file on the less loaded of two servers chosen at random.
+
+	    <p>
+	    Unlike always choosing the least loaded server, this does not send
+	    every file to the same server between two reports of load, while
+	    still keeping the busiest servers from being chosen.
+	 */
+	final class PowerOfTwo implements PlacementPolicy
+	{
+		@Override
+		public RegisteredServer choose(Path file, List<RegisteredServer> servers)
+		{
+			int count = servers.size();
+			if(count == 1) {
+				return servers.get(0);
+			}
+
+			ThreadLocalRandom random = ThreadLocalRandom.current();
+			int first = random.nextInt(count);
+			int second = random.nextInt(count - 1);
+			if(second >= first) {
+				second++;
+			}
+
+			return least(List.of(servers.get(first), servers.get(second)),
+					PlacementPolicy::loadWithPlaced);
+		}
+	}
+}
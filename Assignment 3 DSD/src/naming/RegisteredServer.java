@@ -0,0 +1,120 @@
+package naming;
+
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import common.Path;
+import storage.Command;
+import storage.LoadReport;
+import storage.Storage;
+
+/** Storage server known to the naming server.
+
+    <p>
+    One object is created for each storage server, when it registers or when
+    its registration is read back from the edit log, and is shared by the
+    entries of all the files it hosts.
+ */
+class RegisteredServer
+{
+	/** Number of the server in the order of registration. Identifies the
+	    server in the edit log. */
+	final int id;
+	final Storage storage;
+	final Command command;
+	/** Set while the server is known only from the edit log and has not yet
+	    registered with this naming server instance. */
+	volatile boolean recovered;
+	/** Number given to the server when it last started reporting all of its
+	    files, or zero if it never has or the number has been forgotten. The
+	    server may register again without reporting them only if it gives the
+	    same number. Changed under the server's monitor. */
+	volatile long generation;
+	/** Files recorded on the server before its current registration with
+	    <code>register</code> that it has not reported again, or
+	    <code>null</code> if no such registration is in progress. Guarded by
+	    its own monitor. */
+	volatile Set<Path> unreported;
+	/** Number of bytes stored by the server, as last reported by it, or zero
+	    if it has not reported. */
+	volatile long bytesUsed;
+	/** Load on the server, as last reported by it, or zero if it has not
+	    reported. */
+	volatile double load;
+	/** Last report sent by the server, or <code>null</code> if it has not
+	    reported. */
+	volatile LoadReport report;
+	/** Time of the last heartbeat, by <code>System.nanoTime</code>, or zero
+	    if the server has not sent one. */
+	volatile long lastHeartbeat;
+	/** Number of new files placed on the server by this naming server. */
+	final AtomicLong placed = new AtomicLong();
+	/** Value of <code>placed</code> when the last heartbeat was recorded. */
+	volatile long placedAtReport;
+	/** Number of times the server was handed out first among the replicas
+	    of a file. */
+	final AtomicLong served = new AtomicLong();
+
+	/** Number of nanoseconds after its last heartbeat that a server is
+	    considered down: three heartbeats of the storage server. */
+	static final long HEARTBEAT_TIMEOUT = TimeUnit.SECONDS.toNanos(30);
+
+	RegisteredServer(int id, Storage storage, Command command, boolean recovered)
+	{
+		this.id = id;
+		this.storage = storage;
+		this.command = command;
+		this.recovered = recovered;
+	}
+
+	/** Records a heartbeat from the server. Heartbeats are recorded without
+	    locks; a reader may see the fields of two consecutive reports mixed,
+	    but each field is whole. */
+	void heartbeat(LoadReport report)
+	{
+		placedAtReport = placed.get();
+		this.report = report;
+		bytesUsed = report.bytesStored();
+		// Requests in progress, plus the share of each second the disk spends
+		// serving requests.
+		load = report.queueDepth() + report.requestRate() * report.diskLatency();
+		lastHeartbeat = System.nanoTime();
+	}
+
+	/** Forgets the server's generation, so that it reports every file when
+	    it next registers.
+
+	    <p>
+	    Called when the tree stops listing a file on the server that the
+	    server may still have, such as a replica removed from the tree whose
+	    copy is deleted later, or a copy that could not be deleted. Registering
+	    again from its manifest, the server would never report such a file,
+	    and it would be left on the server for good.
+
+	    @param journal Records the change.
+	 */
+	synchronized void forgetGeneration(Journal journal)
+	{
+		if(generation != 0) {
+			generation = 0;
+			journal.newGeneration(this);
+		}
+	}
+
+	/** Returns the number of files placed on the server since its last
+	    heartbeat, which its reported statistics do not yet reflect. */
+	long placedSinceReport()
+	{
+		return placed.get() - placedAtReport;
+	}
+
+	/** Determines whether the server has stopped sending heartbeats. A server
+	    that has never sent one, such as one known only from the edit log, is
+	    not considered down. */
+	boolean isDown()
+	{
+		long last = lastHeartbeat;
+		return last != 0 && System.nanoTime() - last > HEARTBEAT_TIMEOUT;
+	}
+}
@@ -7,7 +7,21 @@ import rmi.RMIException;
 /** Naming server registration interface.
 
     <p>
-    This interface is used once, on startup, by each storage server.
+    This interface is used on startup by each storage server. A storage
+    server with few files registers them in one call to
+    <code>register</code>. One with many files registers with the first part
+    of them, and reports the rest in parts of bounded size with
+    <code>addFiles</code>, so that neither side holds every path at once and
+    duplicates are deleted as each part is merged. Either way, it then calls
+    <code>finishRegistration</code>. A storage server that
+    registered before, and remembers which files it reported, may instead
+    <code>reregister</code> and report only the files added and removed
+    since. To do so, it records the <code>generation</code> of its last
+    registration together with its files.
+
+    <p>
+    Once registered, a storage server sends a <code>heartbeat</code>
+    periodically for as long as it runs.
  */
 public interface Registration
 {
@@ -47,4 +61,141 @@ public interface Registration
      */
     public Path[] register(Storage client_stub, Command command_stub,
                            Path[] files) throws RMIException;
+
+    /** Registers a storage server again, without reporting its files.
+
+        <p>
+        This succeeds only if the naming server still has the files the
+        storage server reported when it last registered, as it does after
+        being restarted with the same state directory, and
+        <code>generation</code> is the generation of that registration. The
+        storage server
+        then reports the files it gained and lost since with
+        <code>addFiles</code> and <code>removeFiles</code>. Otherwise the
+        storage server is not registered, and must register with
+        <code>register</code>. The naming server also refuses the generation
+        once it has stopped listing on the storage server a file that the
+        storage server may still have, since such a file would not be
+        reported again.
+
+        @param client_stub Storage server client service stub. It must refer
+                           to the same address as when the storage server
+                           last registered.
+        @param command_stub Storage server command service stub. It must
+                            refer to the same address as when the storage
+                            server last registered.
+        @param generation The generation of the storage server's last
+                          registration, as returned by
+                          <code>generation</code>.
+        @return <code>true</code> if the storage server is registered with
+                the files it had; <code>false</code> if it is not registered.
+        @throws IllegalStateException If the storage server is already
+                                      registered.
+        @throws NullPointerException If either argument is <code>null</code>.
+        @throws RMIException If the call cannot be completed due to a network
+                             error.
+     */
+    public boolean reregister(Storage client_stub, Command command_stub,
+                              long generation) throws RMIException;
+
+    /** Returns the generation of a storage server's registration.
+
+        <p>
+        Each call to <code>register</code> gives the storage server a new
+        generation, chosen at random; <code>reregister</code> keeps it. A
+        storage server that records the generation once it has reported all
+        of its files, together with those files, can later
+        <code>reregister</code> with it. A generation that the naming server
+        did not give out, or has replaced since, is refused.
+
+        @param client_stub The client service stub the storage server
+                           registered with.
+        @return The generation, which is never zero.
+        @throws IllegalStateException If the storage server is not registered.
+        @throws NullPointerException If <code>client_stub</code> is
+                                     <code>null</code>.
+        @throws RMIException If the call cannot be completed due to a network
+                             error.
+     */
+    public long generation(Storage client_stub) throws RMIException;
+
+    /** Reports more files stored on a registered storage server.
+
+        <p>
+        The files are merged as by <code>register</code>.
+
+        @param client_stub The client service stub the storage server
+                           registered with.
+        @param files Files stored on the storage server.
+        @return The files among <code>files</code> that the storage server
+                must delete.
+        @throws IllegalStateException If the storage server is not registered.
+        @throws NullPointerException If either argument is <code>null</code>.
+        @throws RMIException If the call cannot be completed due to a network
+                             error.
+     */
+    public Path[] addFiles(Storage client_stub, Path[] files)
+        throws RMIException;
+
+    /** Reports files no longer stored on a registered storage server.
+
+        <p>
+        The naming server stops directing clients to the storage server for
+        these files. A file with no other replica is removed from the
+        directory tree. Paths the naming server does not record on the
+        storage server are ignored.
+
+        @param client_stub The client service stub the storage server
+                           registered with.
+        @param files Files no longer stored on the storage server.
+        @throws IllegalStateException If the storage server is not registered.
+        @throws NullPointerException If either argument is <code>null</code>.
+        @throws RMIException If the call cannot be completed due to a network
+                             error.
+     */
+    public void removeFiles(Storage client_stub, Path[] files)
+        throws RMIException;
+
+    /** Reports that a storage server has reported all of its files with
+        <code>register</code> and <code>addFiles</code>.
+
+        <p>
+        If the naming server recorded files on the storage server before it
+        called <code>register</code>, as it does after being restarted with
+        the same state directory, the storage server is removed from those it
+        did not report again, as by <code>removeFiles</code>. A storage
+        server that registered again with <code>reregister</code> does not
+        call this method.
+
+        @param client_stub The client service stub the storage server
+                           registered with.
+        @throws IllegalStateException If the storage server is not registered.
+        @throws NullPointerException If <code>client_stub</code> is
+                                     <code>null</code>.
+        @throws RMIException If the call cannot be completed due to a network
+                             error.
+     */
+    public void finishRegistration(Storage client_stub) throws RMIException;
+
+    /** Reports that a storage server is running, and how busy it is.
+
+        <p>
+        Registered storage servers call this periodically. The naming server
+        uses the reports to choose servers for new files and replicas for
+        clients, and considers a server that has sent heartbeats and then
+        stopped to be down.
+
+        @param client_stub The client service stub the storage server
+                           registered with.
+        @param report The state of the storage server.
+        @return <code>true</code> if the storage server is registered;
+                <code>false</code> if the naming server does not know it, for
+                example after being restarted, in which case the storage
+                server should register again.
+        @throws NullPointerException If either argument is <code>null</code>.
+        @throws RMIException If the call cannot be completed due to a network
+                             error.
+     */
+    public boolean heartbeat(Storage client_stub, LoadReport report)
+        throws RMIException;
 }
@@ -0,0 +1,76 @@
+package naming;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** Orders the replicas of a file for a client about to read it.
+
+    <p>
+    The client reads from the first replica in the order, and falls back to
+    the next if a replica cannot be reached. Selectors may be called by any
+    number of threads at once.
+
+    <p>
+    The selector is chosen by the system property
+    <code>naming.replicaSelection</code>: <code>least-loaded</code>, the
+    default, puts first the replica with the lowest reported load, and among
+    equally loaded replicas the one handed out least often;
+    <code>round-robin</code> puts each replica first in turn; and
+    <code>primary</code> keeps the order in which the replicas were placed.
+ */
+interface ReplicaSelector
+{
+	/** Name of the system property selecting the selector. */
+	String PROPERTY = "naming.replicaSelection";
+
+	/** Returns the replicas of a file in the order in which they should be
+	    read. The entry's own array is not changed. */
+	RegisteredServer[] order(Node.FileEntry entry);
+
+	/** Creates the selector chosen by the <code>naming.replicaSelection</code>
+	    system property.
+
+	    @throws IllegalArgumentException If the property names no selector.
+	 */
+	static ReplicaSelector create()
+	{
+		String kind = System.getProperty(PROPERTY, "least-loaded");
+
+		switch(kind) {
+		case "least-loaded":
+			return entry -> {
+				RegisteredServer[] order = entry.replicas.clone();
+				Arrays.sort(order, Comparator.<RegisteredServer>comparingDouble(
+						server -> server.load).thenComparingLong(server -> server.served.get()));
+				order[0].served.incrementAndGet();
+				return order;
+			};
+		case "round-robin":
+			return new RoundRobin();
+		case "primary":
+			return entry -> entry.replicas.clone();
+		default:
+			throw new IllegalArgumentException("unknown " + PROPERTY + ": " + kind);
+		}
+	}
+
+	/** Puts each replica first in turn. */
+	final class RoundRobin implements ReplicaSelector
+	{
+		private final AtomicInteger next = new AtomicInteger();
+
+		@Override
+		public RegisteredServer[] order(Node.FileEntry entry)
+		{
+			RegisteredServer[] replicas = entry.replicas;
+			int first = Math.floorMod(next.getAndIncrement(), replicas.length);
+
+			RegisteredServer[] order = new RegisteredServer[replicas.length];
+			for(int i = 0; i < replicas.length; i++) {
+				order[i] = replicas[(first + i) % replicas.length];
+			}
+			return order;
+		}
+	}
+}
@@ -0,0 +1,83 @@
+package naming;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import common.Path;
+
+/** Number of replicas kept of new files, configured per directory subtree.
+
+    <p>
+    A setting for a directory applies to every file below it, unless a
+    directory further down has a setting of its own. Files outside any
+    configured subtree have one replica.
+
+    <p>
+    Settings are read from the system property
+    <code>naming.replication</code>, a comma-separated list of
+    <code>directory=count</code> pairs such as
+    <code>/=1,/media=3</code>, and may be changed while the naming server
+    runs. A new setting applies to files created afterwards.
+ */
+class Replication
+{
+	/** Name of the system property holding the initial settings. */
+	static final String PROPERTY = "naming.replication";
+
+	private final Map<Path, Integer> counts = new ConcurrentHashMap<>();
+
+	/** Creates the settings given by the <code>naming.replication</code>
+	    system property.
+
+	    @throws IllegalArgumentException If the property is malformed.
+	 */
+	Replication()
+	{
+		String settings = System.getProperty(PROPERTY, "").trim();
+		if(settings.isEmpty()) {
+			return;
+		}
+
+		for(String setting : settings.split(",")) {
+			int separator = setting.lastIndexOf('=');
+			if(separator < 0) {
+				throw new IllegalArgumentException("malformed " + PROPERTY + ": " + setting);
+			}
+
+			try {
+				set(new Path(setting.substring(0, separator).trim()),
+						Integer.parseInt(setting.substring(separator + 1).trim()));
+			} catch(NumberFormatException e) {
+				throw new IllegalArgumentException("malformed " + PROPERTY + ": " + setting, e);
+			}
+		}
+	}
+
+	/** Sets the number of replicas of new files below a directory.
+
+	    @throws IllegalArgumentException If <code>count</code> is less than 1.
+	 */
+	void set(Path directory, int count)
+	{
+		if(count < 1) {
+			throw new IllegalArgumentException("a file needs at least one replica");
+		}
+
+		counts.put(directory, count);
+	}
+
+	/** Returns the number of replicas to create of a new file. */
+	int replicas(Path file)
+	{
+		for(Path directory = file.parent(); ; directory = directory.parent()) {
+			Integer count = counts.get(directory);
+			if(count != null) {
+				return count;
+			}
+
+			if(directory.isRoot()) {
+				return 1;
+			}
+		}
+	}
+}
@@ -2,6 +2,7 @@ package naming;
 
 import java.io.*;
 import common.*;
+import rmi.Idempotent;
 import rmi.RMIException;
 import storage.Storage;
 
@@ -26,6 +27,7 @@ public interface Service
         @throws RMIException If the call cannot be completed due to a network
                              error.
      */
+    @Idempotent
     public boolean isDirectory(Path path)
         throws RMIException, FileNotFoundException;
 
@@ -39,6 +41,7 @@ public interface Service
         @throws RMIException If the call cannot be completed due to a network
                              error.
      */
+    @Idempotent
     public String[] list(Path directory)
         throws RMIException, FileNotFoundException;
 
@@ -85,12 +88,21 @@ public interface Service
 
     /** Returns a stub for the storage server hosting a file.
 
+        <p>
+        If the file has replicas on several storage servers, the stub
+        refers to all of them. Writes through it are sent to every replica,
+        and reads go to the replica the naming server considers best for
+        the caller, falling back to the others if it cannot be reached.
+        Files requested by many clients may be given further replicas for
+        a time, which are included in stubs returned afterwards.
+
         @param file Path to the file.
         @return A stub for communicating with the storage server.
         @throws FileNotFoundException If the file does not exist.
         @throws RMIException If the call cannot be completed due to a network
                              error.
      */
+    @Idempotent
     public Storage getStorage(Path file)
         throws RMIException, FileNotFoundException;
 }
@@ -0,0 +1,543 @@
+package naming;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+import common.Path;
+import rmi.RMIException;
+import rmi.StacklessExceptions;
+import storage.Command;
+
+/** Directory tree of the naming server, read without locks.
+
+    <p>
+    The tree is persistent: a published directory is never changed. Readers
+    take the current root and walk it without locking, so they are never
+    blocked, and see a consistent tree even while a large registration is
+    being applied.
+
+    <p>
+    A writer copies the directories on the path it changes, sharing every
+    other directory and file with the previous tree, and then publishes the
+    new root. A directory's children are kept in a persistent
+    <code>ChildMap</code>, so copying a directory copies only the few trie
+    nodes leading to the changed name, however large the directory.
+    Directories and trie nodes copied by one update are changed in place for
+    the rest of that update, so adding many files copies each of them at most
+    once, and the whole batch becomes visible at the same time.
+
+    <p>
+    Each change is reported to the journal after it is published, so that a
+    checkpoint begun after the journal has the change also finds it in the
+    tree.
+
+    <p>
+    Writers take turns. <code>createFile</code> and <code>delete</code> call
+    storage servers between checking the tree and changing it, and so take
+    turns with each other for the whole of the call, but hold the writer
+    lock only while they check and publish. Other writers, such as
+    registrations and replica changes, are not held up by a slow storage
+    server, and may change the tree while such a call is made; the tree is
+    checked again before the change is published. An addition of many files
+    is applied in batches, and when other writers are waiting, it publishes
+    what it has added and lets them in before going on.
+ */
+class SnapshotNamespace implements Namespace
+{
+	private final AtomicReference<SnapshotDirectory> root =
+			new AtomicReference<>(new SnapshotDirectory(ChildMap.EMPTY, null));
+	/** Held by the thread updating the tree. The lock is fair, so that a
+	    registration letting go of it between batches lets waiting writers
+	    in. */
+	private final ReentrantLock writer = new ReentrantLock(true);
+	/** Held by <code>createFile</code> and <code>delete</code> from checking
+	    the tree until publishing their change, including the calls to storage
+	    servers in between. */
+	private final ReentrantLock turn = new ReentrantLock(true);
+	/** Smallest number of files a registration adds before letting other
+	    writers in. */
+	private static final int BATCH = 1 << 16;
+	private final Journal journal;
+
+	SnapshotNamespace(Journal journal)
+	{
+		this.journal = journal;
+	}
+
+	@Override
+	public boolean isDirectory(Path path) throws FileNotFoundException
+	{
+		Node node = lookup(root.get(), path);
+		if(node == null) {
+			throw StacklessExceptions.fileNotFound(null);
+		}
+
+		return node instanceof SnapshotDirectory;
+	}
+
+	@Override
+	public String[] list(Path directory) throws FileNotFoundException
+	{
+		Node node = lookup(root.get(), directory);
+		if(!(node instanceof SnapshotDirectory)) {
+			throw StacklessExceptions.fileNotFound(null);
+		}
+
+		return ((SnapshotDirectory) node).names();
+	}
+
+	@Override
+	public Node.FileEntry file(Path file) throws FileNotFoundException
+	{
+		Node node = lookup(root.get(), file);
+		if(!(node instanceof Node.FileEntry)) {
+			throw StacklessExceptions.fileNotFound(null);
+		}
+
+		return (Node.FileEntry) node;
+	}
+
+	@Override
+	public boolean exists(Path path)
+	{
+		return lookup(root.get(), path) != null;
+	}
+
+	@Override
+	public boolean createFile(Path file, Node.FileEntry entry)
+		throws FileNotFoundException, RMIException
+	{
+		turn.lock();
+		try {
+			if(parent(root.get(), file).children.get(file.last()) != null) {
+				return false;
+			}
+
+			entry.create(file, journal);
+
+			writer.lock();
+			try {
+				// A registration may have added the path meanwhile. Only
+				// delete can remove the parent, and it waits for the turn.
+				Node node = parent(root.get(), file).children.get(file.last());
+				if(node == null) {
+					Update update = new Update();
+					update.directory(file.parent()).put(file.last(), entry);
+					update.publish();
+					journal.addedFile(file, entry);
+					return true;
+				}
+
+				// The file counts as created if the server it was placed on
+				// has reported it meanwhile.
+				discard(file, entry, node);
+				return Node.isFileOn(node, entry.primary());
+			} finally {
+				writer.unlock();
+			}
+		} finally {
+			turn.unlock();
+		}
+	}
+
+	/** Deletes a file created by <code>createFile</code> from the replicas
+	    that <code>node</code>, added to the tree meanwhile, does not list. */
+	private void discard(Path file, Node.FileEntry entry, Node node)
+	{
+		for(RegisteredServer replica : entry.replicas) {
+			if(node instanceof Node.FileEntry
+					&& ((Node.FileEntry) node).isOn(replica)) {
+				continue;
+			}
+
+			try {
+				replica.command.delete(file);
+			} catch(RMIException e) {
+				// The server is left with an empty file, which its next
+				// registration with every file reports as a duplicate.
+				replica.forgetGeneration(journal);
+			}
+		}
+	}
+
+	@Override
+	public boolean createDirectory(Path directory) throws FileNotFoundException
+	{
+		writer.lock();
+		try {
+			if(parent(root.get(), directory).children.get(directory.last()) != null) {
+				return false;
+			}
+
+			Update update = new Update();
+			update.directory(directory.parent()).put(directory.last(),
+					update.newDirectory());
+			update.publish();
+			journal.addedDirectory(directory);
+			return true;
+		} finally {
+			writer.unlock();
+		}
+	}
+
+	@Override
+	public boolean delete(Path path) throws FileNotFoundException
+	{
+		turn.lock();
+		try {
+			Node node = parent(root.get(), path).children.get(path.last());
+			if(node == null) {
+				throw StacklessExceptions.fileNotFound(null);
+			}
+
+			Set<Command> asked = new LinkedHashSet<>();
+
+			while(true) {
+				Set<Command> holders = new LinkedHashSet<>();
+				node.collectCommands(holders);
+				holders.removeAll(asked);
+
+				try {
+					for(Command command : holders) {
+						if(!command.delete(path)) {
+							return false;
+						}
+						asked.add(command);
+					}
+				} catch(RMIException e) {
+					return false;
+				}
+
+				writer.lock();
+				try {
+					// Registrations and replica changes may have changed the
+					// subtree meanwhile, copying the directories on the way
+					// to what they changed.
+					Node current = lookup(root.get(), path);
+					if(current == null) {
+						return true;
+					}
+
+					if(current == node) {
+						Update update = new Update();
+						update.directory(path.parent()).remove(path.last());
+						update.publish();
+						journal.deleted(path);
+						return true;
+					}
+
+					node = current;
+				} finally {
+					writer.unlock();
+				}
+			}
+		} finally {
+			turn.unlock();
+		}
+	}
+
+	@Override
+	public void add(Path[] files, Node.FileEntry entry, Consumer<Path> duplicates)
+	{
+		List<Path> added = new ArrayList<>();
+		int next = 0;
+
+		while(next < files.length) {
+			writer.lock();
+			try {
+				Update update = new Update();
+
+				// Publish a batch early only if another writer is waiting;
+				// each publication makes the next batch copy its directories
+				// again.
+				int batchEnd = Math.min(files.length, next + BATCH);
+				for(; next < files.length; next++) {
+					if(next >= batchEnd && writer.hasQueuedThreads()) {
+						break;
+					}
+
+					Path file = files[next];
+					if(file.isRoot()) {
+						continue;
+					}
+
+					if(update.add(file, entry)) {
+						added.add(file);
+					} else {
+						duplicates.accept(file);
+					}
+				}
+
+				update.publish();
+
+				for(Path file : added) {
+					journal.addedFile(file, entry);
+				}
+			} finally {
+				writer.unlock();
+			}
+
+			added.clear();
+		}
+	}
+
+	@Override
+	public void walk(Visitor visitor) throws IOException
+	{
+		walk(root.get(), new Path(), visitor);
+	}
+
+	private static void walk(SnapshotDirectory directory, Path path,
+			Visitor visitor) throws IOException
+	{
+		if(directory.children.isEmpty() && !path.isRoot()) {
+			visitor.emptyDirectory(path);
+		}
+
+		String[] names = directory.children.names();
+		Node[] nodes = directory.children.nodes();
+
+		for(int index = 0; index < names.length; index++) {
+			Path childPath = new Path(path, names[index]);
+
+			if(nodes[index] instanceof Node.FileEntry) {
+				visitor.file(childPath, (Node.FileEntry) nodes[index]);
+			} else {
+				walk((SnapshotDirectory) nodes[index], childPath, visitor);
+			}
+		}
+	}
+
+	@Override
+	public void remove(Path path)
+	{
+		writer.lock();
+		try {
+			if(lookup(root.get(), path) == null) {
+				return;
+			}
+
+			Update update = new Update();
+			update.directory(path.parent()).remove(path.last());
+			update.publish();
+			journal.deleted(path);
+		} finally {
+			writer.unlock();
+		}
+	}
+
+	@Override
+	public boolean replaceFile(Path file, Node.FileEntry expected,
+			Node.FileEntry replacement)
+	{
+		writer.lock();
+		try {
+			if(lookup(root.get(), file) != expected) {
+				return false;
+			}
+
+			Update update = new Update();
+			update.directory(file.parent()).put(file.last(), replacement);
+			update.publish();
+			journal.replicasChanged(file, replacement);
+			return true;
+		} finally {
+			writer.unlock();
+		}
+	}
+
+	/** Returns the node at the given path in the tree under
+	    <code>directory</code>, or <code>null</code> if there is none. */
+	private static Node lookup(SnapshotDirectory directory, Path path)
+	{
+		Node node = directory;
+
+		for(String component : path) {
+			if(!(node instanceof SnapshotDirectory)) {
+				return null;
+			}
+
+			node = ((SnapshotDirectory) node).children.get(component);
+			if(node == null) {
+				return null;
+			}
+		}
+
+		return node;
+	}
+
+	/** Returns the directory that would contain the given path.
+
+	    @throws FileNotFoundException If the parent does not exist or is not a
+	                                  directory.
+	 */
+	private static SnapshotDirectory parent(SnapshotDirectory root, Path path)
+		throws FileNotFoundException
+	{
+		Node parent = lookup(root, path.parent());
+		if(!(parent instanceof SnapshotDirectory)) {
+			throw StacklessExceptions.fileNotFound(null);
+		}
+
+		return (SnapshotDirectory) parent;
+	}
+
+	/** One change to the tree, made by the thread holding the writer lock.
+
+	    <p>
+	    The update starts from the current root. Directories are copied the
+	    first time the update changes them; the copies belong to the update and
+	    are changed in place afterwards. <code>publish</code> makes the new tree
+	    visible to readers, after which the update must not be used.
+	 */
+	private class Update
+	{
+		private final SnapshotDirectory base = root.get();
+		private SnapshotDirectory top = base;
+		/** Marks the directories belonging to the update. This is not the
+		    update itself, which refers to the previous tree. */
+		private final Object token = new Object();
+
+		/** Creates an empty directory belonging to this update. */
+		SnapshotDirectory newDirectory()
+		{
+			return new SnapshotDirectory(ChildMap.EMPTY, token);
+		}
+
+		/** Returns a directory of this update that replaces <code>directory</code>
+		    in the new tree. */
+		private SnapshotDirectory own(SnapshotDirectory directory)
+		{
+			if(directory.owner == token) {
+				return directory;
+			}
+
+			return new SnapshotDirectory(directory.children, token);
+		}
+
+		/** Returns the copy of the directory at <code>path</code> that may be
+		    changed, copying the directories above it as needed. The directory
+		    must exist. */
+		SnapshotDirectory directory(Path path)
+		{
+			SnapshotDirectory directory = own(top);
+			top = directory;
+
+			for(String component : path) {
+				SnapshotDirectory child = (SnapshotDirectory) directory.children.get(component);
+				SnapshotDirectory owned = own(child);
+
+				if(owned != child) {
+					directory.put(component, owned);
+				}
+
+				directory = owned;
+			}
+
+			return directory;
+		}
+
+		/** Adds one file, creating its missing parent directories.
+
+		    @return <code>false</code> if the path is already present for another
+		            server, or if one of its ancestors is a file.
+		 */
+		boolean add(Path file, Node.FileEntry entry)
+		{
+			// Check against the tree first, so that duplicates copy nothing.
+			Node node = top;
+			for(String component : file) {
+				if(!(node instanceof SnapshotDirectory)) {
+					return false;
+				}
+
+				node = ((SnapshotDirectory) node).children.get(component);
+				if(node == null) {
+					break;
+				}
+			}
+
+			if(node != null) {
+				return Node.isFileOn(node, entry.primary());
+			}
+
+			SnapshotDirectory directory = own(top);
+			top = directory;
+
+			for(String component : file.parent()) {
+				Node child = directory.children.get(component);
+				SnapshotDirectory owned = child == null ? newDirectory()
+						: own((SnapshotDirectory) child);
+
+				if(owned != child) {
+					directory.put(component, owned);
+				}
+
+				directory = owned;
+			}
+
+			directory.put(file.last(), entry);
+			return true;
+		}
+
+		/** Makes the updated tree visible to readers. */
+		void publish()
+		{
+			// Only the writer changes the root, so this cannot fail.
+			if(top != base && !root.compareAndSet(base, top)) {
+				throw new IllegalStateException("namespace updated concurrently");
+			}
+		}
+	}
+
+	/** Directory of a published tree.
+
+	    <p>
+	    The child map is changed only by the update that created the directory,
+	    before the directory is published. The update's token also owns the
+	    trie nodes of the map that it creates, so that they too are changed in
+	    place.
+	 */
+	private static final class SnapshotDirectory extends Node
+	{
+		ChildMap children;
+		/** Token of the update that created the directory. */
+		final Object owner;
+
+		SnapshotDirectory(ChildMap children, Object owner)
+		{
+			this.children = children;
+			this.owner = owner;
+		}
+
+		void put(String name, Node child)
+		{
+			children = children.put(name, child, owner);
+		}
+
+		void remove(String name)
+		{
+			children = children.remove(name, owner);
+		}
+
+		String[] names()
+		{
+			return children.names();
+		}
+
+		@Override
+		void collectCommands(Set<Command> commands)
+		{
+			for(Node child : children.nodes()) {
+				child.collectCommands(commands);
+			}
+		}
+	}
+}
@@ -0,0 +1,90 @@
+package rmi;
+
+import java.net.InetSocketAddress;
+
+/** Base class of stub classes generated at build time.
+
+    <p>
+    For each remote interface <code>I</code> in the source tree, the build runs
+    <code>build.StubGenerator</code>, which writes a class <code>I_Stub</code>
+    extending this class and implementing <code>I</code>. Each generated method
+    obtains the server object with <code>server</code> and calls the same
+    method on it directly. <code>Stub.create</code> returns instances of the
+    generated class when it exists, and falls back to a dynamic proxy
+    otherwise.
+
+    <p>
+    Generated stubs follow the same rules as proxy stubs: the skeleton is looked
+    up again if it has stopped, and two stubs are equal if they refer to the
+    same skeleton, whichever kind they are.
+ */
+public abstract class GeneratedStub
+{
+	/** Suffix appended to the interface name to form the stub class name. */
+	public static final String SUFFIX = "_Stub";
+
+	private final Skeleton<?> skeleton;
+	private final InetSocketAddress address;
+	/** Identifies the caller to the skeleton's rate limiter. */
+	private final String client;
+
+	/** Creates a stub for the given skeleton.
+
+	    @param skeleton The skeleton known when the stub is created, or
+	                    <code>null</code> if none exists yet.
+	    @param address The address the stub was created for.
+	    @param client The client the stub's calls are counted against.
+	 */
+	protected GeneratedStub(Skeleton<?> skeleton, InetSocketAddress address,
+			String client)
+	{
+		this.skeleton = skeleton;
+		this.address = address;
+		this.client = client;
+	}
+
+	/** Returns the address the stub was created for. */
+	final InetSocketAddress stubAddress()
+	{
+		return address;
+	}
+
+	/** Returns the skeleton known when the stub was created. */
+	final Skeleton<?> stubSkeleton()
+	{
+		return skeleton;
+	}
+
+	/** Returns the server object that should handle the next call.
+
+	    @throws RMIException If no running skeleton serves the stub's address.
+	 */
+	protected final Object server() throws RMIException
+	{
+		Skeleton<?> target = StubInvHandler.liveSkeleton(skeleton, address);
+		target.admit(client);
+		return target.localServer;
+	}
+
+	@Override
+	public boolean equals(Object other)
+	{
+		if(other == null) {
+			return false;
+		}
+
+		return other.equals(this.skeleton);
+	}
+
+	@Override
+	public int hashCode()
+	{
+		return 31 + (skeleton == null ? 0 : skeleton.hashCode());
+	}
+
+	@Override
+	public String toString()
+	{
+		return this.skeleton.getAddress().toString();
+	}
+}
@@ -0,0 +1,23 @@
+package rmi;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/** Marks a remote method as safe to call more than once.
+
+    <p>
+    Calling an idempotent method twice with the same arguments has the same
+    effect on the server as calling it once. Stubs may therefore send such a
+    call to more than one server, and use whichever answer arrives first. This
+    is done by replica-set stubs created with hedging enabled by
+    <code>Stub.createReplicaSet</code>.
+ */
+@Documented
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.METHOD)
+public @interface Idempotent
+{
+}
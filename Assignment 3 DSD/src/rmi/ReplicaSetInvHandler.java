@@ -0,0 +1,407 @@
+package rmi;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** Invocation handler for stubs backed by several equivalent servers.
+
+    <p>
+    Each call is sent to one endpoint, chosen by power-of-two-choices: two
+    endpoints are picked at random and the one with fewer calls in progress
+    is used. An endpoint whose call cannot be delivered, failing with
+    <code>UnreachableException</code>, is ejected for
+    <code>EJECTION_MILLIS</code>. A call to a method marked
+    <code>@Idempotent</code> is then retried on another endpoint; any other
+    call fails. Exceptions thrown by the server object itself, including
+    <code>RMIException</code>, are answers, not endpoint failures, and are
+    passed to the caller unchanged.
+
+    <p>
+    If hedging is enabled, calls to methods marked <code>@Idempotent</code> are
+    run on a pool thread. When no answer has arrived within the 95th percentile
+    of recent call latencies, a second copy of the call is sent to another
+    endpoint. The first answer is used. The other call is cancelled if it has
+    not started, but is not interrupted once running, since it then runs the
+    server object's code; its answer is discarded.
+
+    <p>
+    If the endpoints hold copies of the same data, calls to methods not
+    marked <code>@Idempotent</code> are sent to every endpoint in turn, so
+    that the copies stay the same. Other calls go to the first endpoint that
+    is not ejected, in the order the endpoints were given, so that whoever
+    created the stub decides which copy is read.
+ */
+class ReplicaSetInvHandler implements InvocationHandler {
+
+	/** How long an endpoint is skipped after a call to it fails. */
+	static final long EJECTION_MILLIS = 1000;
+
+	/** Threads running hedged calls. Shared by all replica-set stubs. */
+	private static final ExecutorService HEDGE_POOL =
+			Executors.newCachedThreadPool(runnable -> {
+				Thread thread = new Thread(runnable, "rmi-hedge");
+				thread.setDaemon(true);
+				return thread;
+			});
+
+	private final Class<?> c;
+	private final Endpoint[] endpoints;
+	private final boolean hedged;
+	/** Whether the endpoints hold copies of the same data. */
+	private final boolean copies;
+	private final LatencyWindow latencies = new LatencyWindow();
+
+	public ReplicaSetInvHandler(Class<?> c, InetSocketAddress[] addresses, boolean hedged,
+			boolean copies, String client) {
+		this.c = c;
+		this.hedged = hedged;
+		this.copies = copies;
+		this.endpoints = new Endpoint[addresses.length];
+
+		for(int i = 0; i < addresses.length; i++) {
+			endpoints[i] = new Endpoint(addresses[i], i, client);
+		}
+	}
+
+	/** Returns a handler for the same servers on behalf of another client. */
+	ReplicaSetInvHandler withClient(String client) {
+		return new ReplicaSetInvHandler(c, addresses(), hedged, copies, client);
+	}
+
+	@Override
+	public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+
+		if(method.getDeclaringClass() == Object.class) {
+			return invokeLocal(method, args);
+		}
+
+		if(copies && !method.isAnnotationPresent(Idempotent.class)) {
+			return invokeOnAll(proxy, method, args);
+		}
+
+		boolean[] tried = new boolean[endpoints.length];
+
+		if(hedged && endpoints.length > 1 && method.isAnnotationPresent(Idempotent.class)) {
+			return invokeHedged(proxy, method, args, tried);
+		}
+
+		return invokeWithRetry(proxy, method, args, tried, null);
+	}
+
+	/** Sends the call to untried endpoints one at a time until one of them
+	    can be reached. A call to a method that is not idempotent is sent
+	    to one endpoint only. */
+	private Object invokeWithRetry(Object proxy, Method method, Object[] args,
+			boolean[] tried, UnreachableException failure) throws Throwable {
+
+		boolean retry = method.isAnnotationPresent(Idempotent.class);
+
+		while(hasUntried(tried) && (retry || failure == null)) {
+			Endpoint endpoint = choose(tried);
+			tried[endpoint.index] = true;
+
+			long start = System.nanoTime();
+			try {
+				Object result = endpoint.invoke(proxy, method, args);
+				latencies.record(System.nanoTime() - start);
+				return result;
+			} catch(UnreachableException e) {
+				failure = e;
+			}
+		}
+
+		if(!retry && failure != null) {
+			throw failure;
+		}
+
+		throw new UnreachableException("No endpoint of the replica set could be reached", failure);
+	}
+
+	/** Sends the call to every endpoint in order, and returns the answer of
+	    the first. The call stops at the first endpoint that cannot be reached
+	    or throws an exception; the copies of the endpoints after it are then
+	    not changed. */
+	private Object invokeOnAll(Object proxy, Method method, Object[] args) throws Throwable {
+		Object result = null;
+
+		for(Endpoint endpoint : endpoints) {
+			try {
+				Object value = endpoint.invoke(proxy, method, args);
+				if(endpoint.index == 0) {
+					result = value;
+				}
+			} catch(UnreachableException e) {
+				throw new RMIException("Replica at " + endpoint.address + " could not be reached", e);
+			}
+		}
+
+		return result;
+	}
+
+	/** Sends the call to one endpoint, and to a second one if the first has not
+	    answered within the current 95th percentile latency. */
+	private Object invokeHedged(Object proxy, Method method, Object[] args,
+			boolean[] tried) throws Throwable {
+
+		long delay = latencies.percentile95();
+		if(delay < 0) {
+			// Not enough history yet to tell a slow call from a normal one.
+			return invokeWithRetry(proxy, method, args, tried, null);
+		}
+
+		BlockingQueue<Outcome> outcomes = new ArrayBlockingQueue<>(2);
+		Future<?>[] calls = new Future<?>[2];
+		int sent = 0;
+
+		try {
+			calls[sent++] = submit(choose(tried), tried, proxy, method, args, outcomes);
+
+			Outcome outcome = outcomes.poll(delay, TimeUnit.NANOSECONDS);
+			if(outcome == null && hasUntried(tried)) {
+				calls[sent++] = submit(choose(tried), tried, proxy, method, args, outcomes);
+			}
+
+			int received = 0;
+			if(outcome == null) {
+				outcome = outcomes.take();
+			}
+			received++;
+
+			// An unreachable endpoint is not an answer; wait for the other copy.
+			while(outcome.unreachable != null && received < sent) {
+				outcome = outcomes.take();
+				received++;
+			}
+
+			if(outcome.unreachable != null) {
+				return invokeWithRetry(proxy, method, args, tried, outcome.unreachable);
+			}
+
+			if(outcome.error != null) {
+				throw outcome.error;
+			}
+			return outcome.value;
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RMIException("Interrupted while waiting for a replica", e);
+		} finally {
+			// Not interrupted: a running call is inside the server object,
+			// which does not expect its thread to be interrupted.
+			for(int i = 0; i < sent; i++) {
+				calls[i].cancel(false);
+			}
+		}
+	}
+
+	private Future<?> submit(Endpoint endpoint, boolean[] tried, Object proxy,
+			Method method, Object[] args, BlockingQueue<Outcome> outcomes) {
+
+		tried[endpoint.index] = true;
+
+		return HEDGE_POOL.submit(() -> {
+			Outcome outcome = new Outcome();
+			long start = System.nanoTime();
+			try {
+				outcome.value = endpoint.invoke(proxy, method, args);
+				latencies.record(System.nanoTime() - start);
+			} catch(UnreachableException e) {
+				outcome.unreachable = e;
+			} catch(Throwable t) {
+				outcome.error = t;
+			}
+			outcomes.add(outcome);
+		});
+	}
+
+	private boolean hasUntried(boolean[] tried) {
+		for(boolean t : tried) {
+			if(!t) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/** Picks the endpoint for the next attempt among those not yet tried.
+
+	    <p>
+	    Endpoints that are currently ejected are only used when every untried
+	    endpoint is ejected, so that a call still goes out when the whole set
+	    is believed to be down.
+	 */
+	private Endpoint choose(boolean[] tried) {
+		long now = System.currentTimeMillis();
+		Endpoint[] eligible = new Endpoint[endpoints.length];
+		int count = 0;
+
+		for(Endpoint e : endpoints) {
+			if(!tried[e.index] && e.isHealthy(now)) {
+				eligible[count++] = e;
+			}
+		}
+
+		if(count == 0) {
+			for(Endpoint e : endpoints) {
+				if(!tried[e.index]) {
+					eligible[count++] = e;
+				}
+			}
+		}
+
+		if(copies) {
+			return eligible[0];
+		}
+
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		int first = random.nextInt(count);
+		if(count == 1) {
+			return eligible[first];
+		}
+
+		int second = random.nextInt(count - 1);
+		if(second >= first) {
+			second++;
+		}
+
+		return eligible[second].outstanding.get() < eligible[first].outstanding.get()
+				? eligible[second] : eligible[first];
+	}
+
+	/** Answers <code>equals</code>, <code>hashCode</code> and
+	    <code>toString</code>, the only methods of <code>Object</code> a proxy
+	    passes to its handler. */
+	private Object invokeLocal(Method method, Object[] args) {
+
+		if(method.getName().equals("equals")) {
+
+			if(args == null || args[0] == null || !Proxy.isProxyClass(args[0].getClass())) {
+				return false;
+			}
+
+			InvocationHandler other = Proxy.getInvocationHandler(args[0]);
+			if(!(other instanceof ReplicaSetInvHandler)) {
+				return false;
+			}
+
+			ReplicaSetInvHandler set = (ReplicaSetInvHandler) other;
+			return c.equals(set.c) && copies == set.copies
+					&& Arrays.equals(addresses(), set.addresses());
+		}
+
+		if(method.getName().equals("hashCode")) {
+			return 31 * c.hashCode() + Arrays.hashCode(addresses()) + (copies ? 1 : 0);
+		}
+
+		// toString.
+		return Arrays.toString(addresses());
+	}
+
+	private InetSocketAddress[] addresses() {
+		InetSocketAddress[] addresses = new InetSocketAddress[endpoints.length];
+
+		for(int i = 0; i < endpoints.length; i++) {
+			addresses[i] = endpoints[i].address;
+		}
+
+		return addresses;
+	}
+
+	/** Result of one copy of a hedged call. */
+	private static class Outcome {
+		Object value;
+		Throwable error;
+		UnreachableException unreachable;
+	}
+
+	/** Latencies of the most recent successful calls. */
+	private static class LatencyWindow {
+
+		private static final int SIZE = 128;
+		/** Samples needed before a percentile is reported. */
+		private static final int MINIMUM = 20;
+
+		private final long[] samples = new long[SIZE];
+		private int count = 0;
+		private int next = 0;
+		private long cached = -1;
+
+		synchronized void record(long nanos) {
+			samples[next] = nanos;
+			next = (next + 1) % SIZE;
+			if(count < SIZE) {
+				count++;
+			}
+			// Recompute once there are enough samples, then every few
+			// samples rather than on every call.
+			if(count >= MINIMUM && (cached < 0 || next % 16 == 0)) {
+				long[] sorted = Arrays.copyOf(samples, count);
+				Arrays.sort(sorted);
+				cached = sorted[(int) Math.ceil(count * 0.95) - 1];
+			}
+		}
+
+		/** Returns the 95th percentile in nanoseconds, or -1 if there are not
+		    yet enough samples. */
+		synchronized long percentile95() {
+			return cached;
+		}
+	}
+
+	/** One server of the replica set, with its load and health. */
+	private static class Endpoint {
+
+		final InetSocketAddress address;
+		final StubInvHandler handler;
+		final int index;
+		/** Calls currently in progress on this endpoint. */
+		final AtomicInteger outstanding = new AtomicInteger();
+		/** Time until which the endpoint is skipped, or zero. */
+		volatile long ejectedUntil;
+
+		Endpoint(InetSocketAddress address, int index, String client) {
+			this.address = address;
+			this.handler = new StubInvHandler(Skeleton.skeletonMap.get(address), address,
+					client);
+			this.index = index;
+		}
+
+		boolean isHealthy(long now) {
+			return ejectedUntil <= now;
+		}
+
+		void eject() {
+			ejectedUntil = System.currentTimeMillis() + EJECTION_MILLIS;
+		}
+
+		/** Sends the call to the server. The endpoint is ejected if the call
+		    cannot be delivered, and is healthy again once the server answers,
+		    whether with a result or an exception. */
+		Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			outstanding.incrementAndGet();
+			try {
+				Object result = handler.invoke(proxy, method, args);
+				ejectedUntil = 0;
+				return result;
+			} catch(UnreachableException e) {
+				eject();
+				throw e;
+			} catch(Throwable t) {
+				ejectedUntil = 0;
+				throw t;
+			} finally {
+				outstanding.decrementAndGet();
+			}
+		}
+	}
+}
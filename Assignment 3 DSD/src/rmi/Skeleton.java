@@ -5,8 +5,13 @@ import java.lang.reflect.Method;
 import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 
 /** RMI skeleton
 
@@ -29,18 +34,39 @@ import java.util.Map;
     The skeleton's response to these exceptions can be customized by deriving
     a class from <code>Skeleton</code> and overriding <code>listen_error</code>
     or <code>service_error</code>.
+
+    <p>
+    Calls may be rate-limited per client with <code>setRateLimit</code>. A
+    client is named by the stubs it calls through (see <code>Stub</code>), by
+    default after the process that created them, and has its own token
+    bucket: creating more stubs does not give a client more calls, and a
+    client issuing calls faster than the limit only delays its own calls.
+    Calls run on the caller's thread, and a throttled call waits there until
+    a token is available. Other clients never queue behind it.
 */
 public class Skeleton<T>
 {
 	
 	private InetSocketAddress address;
+	/** Key under which this skeleton is entered in <code>skeletonMap</code>.
+	    Unlike <code>address</code>, this does not change when the hostname is
+	    overridden. */
+	private final InetSocketAddress mapKey;
 	private ServerSocket serverSocket;
-    public static Map<InetSocketAddress, Skeleton> skeletonMap = new HashMap<>();
+    public static Map<InetSocketAddress, Skeleton<?>> skeletonMap =
+    		Collections.synchronizedMap(new HashMap<>());
     private static int port = 8000;
     private ServerHandler serverHandler;
-    private boolean hasStarted =false;
+    /** Read without the lock by stubs checking that the skeleton still runs. */
+    private volatile boolean hasStarted =false;
     public T localServer;
     
+    /** Current rate limit, or <code>null</code> if calls are not limited. */
+    private volatile RateLimit rateLimit;
+    /** Token buckets of clients seen since the limit was set, by client
+        name. */
+    private final Map<String, ClientBucket> buckets = new ConcurrentHashMap<>();
+    
     /** Creates a <code>Skeleton</code> with no initial server address. The
         address will be determined by the system when <code>start</code> is
         called. Equivalent to using <code>Skeleton(null)</code>.
@@ -70,6 +96,7 @@ public class Skeleton<T>
        this.localServer = server;
         
  	   address = new InetSocketAddress(port++);
+ 	   mapKey = address;
 	   skeletonMap.put(address, this);
 
     }
@@ -102,6 +129,7 @@ public class Skeleton<T>
     	this.localServer = server;
     
         this.address = address;
+        this.mapKey = address;
         skeletonMap.put(address, this);
     }
 
@@ -180,6 +208,7 @@ public class Skeleton<T>
 			}
 			serverSocket = new ServerSocket(address.getPort());
 			hasStarted = true;
+			skeletonMap.put(mapKey, this);
 			serverHandler = new ServerHandler(serverSocket);
 			serverHandler.start();
 
@@ -215,7 +244,7 @@ public class Skeleton<T>
     	serverHandler.stopServer();
         stopped(null);
     	hasStarted = false;
-		skeletonMap.remove(address);
+		skeletonMap.remove(mapKey, this);
     }
     
     public boolean isStarted() {
@@ -253,6 +282,65 @@ public class Skeleton<T>
     public InetSocketAddress getAddress() {
     	return address;
     }
+    
+    /** Limits the rate of calls each client may make.
+
+        @param callsPerSecond Sustained number of calls per second allowed to
+                              each client.
+        @param burst Number of calls a client may make at once after being
+                     idle.
+        @throws IllegalArgumentException If either argument is not positive.
+     */
+    public void setRateLimit(double callsPerSecond, int burst) {
+    	if(!(callsPerSecond > 0) || burst <= 0) {
+    		throw new IllegalArgumentException("Rate and burst must be positive.");
+    	}
+    	
+    	rateLimit = new RateLimit(callsPerSecond, burst);
+    	buckets.clear();
+    }
+    
+    /** Removes the rate limit. Statistics collected so far are discarded. */
+    public void clearRateLimit() {
+    	rateLimit = null;
+    	buckets.clear();
+    }
+    
+    /** Returns per-client throttling statistics since the rate limit was set.
+
+        @return One entry per client that has made a call, in no particular
+                order. The list is empty if no rate limit is set.
+     */
+    public List<ThrottleStatistics> getThrottleStatistics() {
+    	List<ThrottleStatistics> statistics = new ArrayList<>();
+    	
+    	for(Map.Entry<String, ClientBucket> entry : buckets.entrySet()) {
+    		statistics.add(entry.getValue().statistics(entry.getKey()));
+    	}
+    	
+    	return statistics;
+    }
+    
+    /** Admits a call from the given client, waiting for the rate limit if
+        necessary. Called by stubs before each call.
+
+        @param client Name of the client carried by the stub making the call.
+        @throws RMIException If the thread is interrupted while waiting.
+     */
+    void admit(String client) throws RMIException {
+    	RateLimit limit = rateLimit;
+    	if(limit == null) {
+    		return;
+    	}
+    	
+    	ClientBucket bucket = buckets.computeIfAbsent(client, k -> new ClientBucket(limit));
+    	bucket.acquire();
+    }
+    
+    /** Returns the address under which stubs look this skeleton up. */
+    InetSocketAddress getMapKey() {
+    	return mapKey;
+    }
    
 	public void setHostName(String hostName) {
 		address = new InetSocketAddress(hostName, address.getPort());
@@ -274,9 +362,13 @@ class ServerHandler extends Thread {
 		// TODO Auto-generated method stub
 		while(!serverSocket.isClosed()){
 			
+			// Calls are dispatched to the server object directly by the stub,
+			// so an accepted connection carries no request. Close it at once
+			// rather than leaving one socket and its buffers per connection
+			// for the garbage collector.
 			try {
 				Socket socket = serverSocket.accept();
-
+				socket.close();
 			} catch (IOException e) {
 				// TODO Auto-generated catch block
 				//e.printStackTrace();
@@ -298,9 +390,90 @@ class ServerHandler extends Thread {
 			e.printStackTrace();
 			
 		}
+		
+		// Closing the socket while accept is blocked only signals this thread;
+		// the port is released once it leaves accept. Wait for that, so a
+		// server restarted on the same address can bind immediately.
+		if(Thread.currentThread() != this) {
+			try {
+				join();
+			} catch(InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
 	}
 	
 
 	
 
 }
+
+/** Parameters of a skeleton's rate limit. */
+class RateLimit {
+	
+	final double tokensPerNano;
+	final int burst;
+	
+	RateLimit(double callsPerSecond, int burst) {
+		this.tokensPerNano = callsPerSecond / TimeUnit.SECONDS.toNanos(1);
+		this.burst = burst;
+	}
+}
+
+/** Token bucket and statistics of one client. */
+class ClientBucket {
+	
+	private final RateLimit limit;
+	private double tokens;
+	private long refilled = System.nanoTime();
+	
+	private long admitted;
+	private long delayed;
+	private long delayNanos;
+	
+	ClientBucket(RateLimit limit) {
+		this.limit = limit;
+		this.tokens = limit.burst;
+	}
+	
+	/** Takes one token, waiting until it is available. A token is reserved
+	    before waiting, so calls from one client are admitted in order. If the
+	    wait is interrupted, the token is returned and the call is not
+	    counted. */
+	void acquire() throws RMIException {
+		long wait;
+		
+		synchronized(this) {
+			long now = System.nanoTime();
+			tokens = Math.min(limit.burst, tokens + (now - refilled) * limit.tokensPerNano);
+			refilled = now;
+			tokens -= 1;
+			admitted++;
+			
+			if(tokens >= 0) {
+				return;
+			}
+			
+			wait = (long) Math.ceil(-tokens / limit.tokensPerNano);
+			delayed++;
+			delayNanos += wait;
+		}
+		
+		try {
+			TimeUnit.NANOSECONDS.sleep(wait);
+		} catch(InterruptedException e) {
+			synchronized(this) {
+				tokens = Math.min(limit.burst, tokens + 1);
+				admitted--;
+				delayed--;
+				delayNanos -= wait;
+			}
+			Thread.currentThread().interrupt();
+			throw new RMIException("Interrupted while throttled", e);
+		}
+	}
+	
+	synchronized ThrottleStatistics statistics(String client) {
+		return new ThrottleStatistics(client, admitted, delayed, delayNanos);
+	}
+}
@@ -0,0 +1,75 @@
+package rmi;
+
+import java.io.FileNotFoundException;
+
+/** Factory for exceptions that do not record a stack trace.
+
+    <p>
+    Some exceptions thrown by remote methods are expected outcomes rather than
+    errors: a client probing for a file that does not exist receives
+    <code>FileNotFoundException</code>, and may do so many times in a loop.
+    Most of the cost of such an exception is filling in its stack trace, which
+    the caller never looks at. The exceptions created here skip that step.
+    They are instances of the usual exception classes, so callers catch them
+    exactly as before.
+
+    <p>
+    A new exception is returned by each call. Sharing one instance between
+    calls would be cheaper still, but exceptions are mutable - a caller may add
+    suppressed exceptions or a cause - so shared instances could leak state
+    between unrelated calls.
+ */
+public abstract class StacklessExceptions
+{
+    /** Returns a <code>FileNotFoundException</code> with no stack trace.
+
+        @param message The detail message, or <code>null</code>.
+     */
+    public static FileNotFoundException fileNotFound(String message)
+    {
+        return new StacklessFileNotFoundException(message);
+    }
+
+    /** Returns an <code>IndexOutOfBoundsException</code> with no stack trace.
+
+        @param message The detail message, or <code>null</code>.
+     */
+    public static IndexOutOfBoundsException indexOutOfBounds(String message)
+    {
+        return new StacklessIndexOutOfBoundsException(message);
+    }
+
+    private static class StacklessFileNotFoundException
+        extends FileNotFoundException
+    {
+        private static final long serialVersionUID = 1L;
+
+        StacklessFileNotFoundException(String message)
+        {
+            super(message);
+        }
+
+        @Override
+        public synchronized Throwable fillInStackTrace()
+        {
+            return this;
+        }
+    }
+
+    private static class StacklessIndexOutOfBoundsException
+        extends IndexOutOfBoundsException
+    {
+        private static final long serialVersionUID = 1L;
+
+        StacklessIndexOutOfBoundsException(String message)
+        {
+            super(message);
+        }
+
+        @Override
+        public synchronized Throwable fillInStackTrace()
+        {
+            return this;
+        }
+    }
+}
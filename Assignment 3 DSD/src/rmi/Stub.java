@@ -1,12 +1,15 @@
 package rmi;
 
+import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationHandler;
-import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.lang.reflect.Proxy;
+import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
-import java.util.Objects;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
 
 /** RMI stub factory.
 
@@ -20,9 +23,24 @@ import java.util.Objects;
     may not be modified afterwards. Two stubs are equal if they implement the
     same interface and carry the same remote server address - and would
     therefore connect to the same skeleton. Stubs are serializable.
+
+    <p>
+    Each stub also carries the name of the client making its calls, which a
+    skeleton's rate limit is applied to. Stubs are given the name of the
+    process creating them: the <code>rmi.client</code> system property, or
+    else the process id and host name. All the stubs a process creates are
+    therefore one client, however many it creates. A process acting for
+    several clients may name each one's stubs with <code>withClient</code>.
+    The client does not affect the equality of stubs.
  */
 public abstract class Stub
 {
+    /** System property naming the client of the stubs this process
+        creates. */
+    public static final String CLIENT_PROPERTY = "rmi.client";
+    /** Client given to new stubs. */
+    static final String DEFAULT_CLIENT = defaultClient();
+
     /** Creates a stub, given a skeleton with an assigned adress.
 
         <p>
@@ -65,7 +83,7 @@ public abstract class Stub
         checkRemoteInterface(c);
         
         
-        T stub = (T) Proxy.newProxyInstance(c.getClassLoader(), new Class[] {c}, new StubInvHandler(skeleton));
+        T stub = newStub(c, skeleton, skeleton.getMapKey(), DEFAULT_CLIENT);
         
         return stub;
         
@@ -117,7 +135,7 @@ public abstract class Stub
         
         skeleton.setHostName(hostname);
                         
-        T stub = (T) Proxy.newProxyInstance(c.getClassLoader(), new Class[] {c}, new StubInvHandler(skeleton));
+        T stub = newStub(c, skeleton, skeleton.getMapKey(), DEFAULT_CLIENT);
         
         return stub;
     }
@@ -151,15 +169,304 @@ public abstract class Stub
         T stub = null;
         
         if(Skeleton.skeletonMap.containsKey(address)) {
-            stub = (T) Proxy.newProxyInstance(c.getClassLoader(), new Class[] {c}, new StubInvHandler(Skeleton.skeletonMap.get(address)));
+            stub = newStub(c, Skeleton.skeletonMap.get(address), address,
+            		DEFAULT_CLIENT);
         } else {
-        	stub = (T) Proxy.newProxyInstance(c.getClassLoader(), new Class[] {c}, new StubInvHandler(null));
+        	stub = newStub(c, null, address, DEFAULT_CLIENT);
         }
         
         
         return stub;
     }
     
+    /** Returns the address of the server a stub was created for.
+
+        <p>
+        A stub can be recreated later from the address with
+        <code>create(Class, InetSocketAddress)</code>, for instance after the
+        address has been saved to disk.
+
+        @param stub A stub for a single server, returned by one of the
+                    <code>create</code> methods.
+        @return The address the stub calls.
+        @throws IllegalArgumentException If <code>stub</code> is not such a
+                                         stub.
+        @throws NullPointerException If <code>stub</code> is <code>null</code>.
+     */
+    public static InetSocketAddress address(Object stub)
+    {
+    	if(stub == null) {
+    		throw new NullPointerException();
+    	}
+    	
+    	if(stub instanceof GeneratedStub) {
+    		return ((GeneratedStub) stub).stubAddress();
+    	}
+    	
+    	if(Proxy.isProxyClass(stub.getClass())) {
+    		InvocationHandler handler = Proxy.getInvocationHandler(stub);
+    		if(handler instanceof StubInvHandler) {
+    			return ((StubInvHandler) handler).address();
+    		}
+    	}
+    	
+    	throw new IllegalArgumentException("Not a stub for a single server");
+    }
+    
+    /** Returns a stub calling the same servers as <code>stub</code> on behalf
+        of another client.
+
+        <p>
+        A skeleton with a rate limit gives each client its own share of calls.
+        The stub returned is equal to <code>stub</code>.
+
+        @param stub A stub returned by one of the <code>create</code> methods.
+        @param client Name of the client, reported in the skeleton's
+                      throttling statistics.
+        @return The new stub.
+        @throws IllegalArgumentException If <code>stub</code> is not a stub.
+        @throws NullPointerException If either argument is <code>null</code>.
+     */
+    @SuppressWarnings("unchecked")
+    public static <T> T withClient(T stub, String client)
+    {
+    	if(stub == null || client == null) {
+    		throw new NullPointerException();
+    	}
+    	
+    	if(stub instanceof GeneratedStub) {
+    		GeneratedStub generated = (GeneratedStub) stub;
+    		Class<T> c = (Class<T>) stub.getClass().getInterfaces()[0];
+    		return newStub(c, generated.stubSkeleton(), generated.stubAddress(),
+    				client);
+    	}
+    	
+    	if(Proxy.isProxyClass(stub.getClass())) {
+    		InvocationHandler handler = Proxy.getInvocationHandler(stub);
+    		InvocationHandler renamed = null;
+    		
+    		if(handler instanceof StubInvHandler) {
+    			renamed = ((StubInvHandler) handler).withClient(client);
+    		} else if(handler instanceof ReplicaSetInvHandler) {
+    			renamed = ((ReplicaSetInvHandler) handler).withClient(client);
+    		}
+    		
+    		if(renamed != null) {
+    			return (T) Proxy.newProxyInstance(stub.getClass().getClassLoader(),
+    					stub.getClass().getInterfaces(), renamed);
+    		}
+    	}
+    	
+    	throw new IllegalArgumentException("Not a stub");
+    }
+    
+    /** Returns the client named by <code>rmi.client</code>, or else the
+        process id and the local host name. */
+    private static String defaultClient()
+    {
+    	String client = System.getProperty(CLIENT_PROPERTY);
+    	if(client != null) {
+    		return client;
+    	}
+    	
+    	String host;
+    	try {
+    		host = InetAddress.getLocalHost().getHostName();
+    	} catch(UnknownHostException e) {
+    		host = "localhost";
+    	}
+    	
+    	return ProcessHandle.current().pid() + "@" + host;
+    }
+    
+    /** Creates a stub backed by several servers implementing the same
+        interface.
+
+        <p>
+        This method should be used when the same remote object is served from
+        several addresses, for example read replicas of a naming server or
+        storage servers holding the same file. Each call on the stub is sent
+        to one of the servers. Servers with fewer calls in progress are
+        preferred, and a server that cannot be reached is skipped for a short
+        time. A call to a method marked <code>@Idempotent</code> is then
+        retried on the others; any other call fails with
+        <code>UnreachableException</code>, since it is not known to be safe to
+        send twice. Exceptions thrown by the remote object, including
+        <code>RMIException</code>, are returned to the caller and are not
+        retried.
+
+        <p>
+        Two such stubs are equal if they implement the same interface and were
+        created with the same addresses in the same order.
+
+        @param c A <code>Class</code> object representing the interface
+                 implemented by the remote objects.
+        @param addresses The network addresses of the remote skeletons.
+        @return The stub created.
+        @throws NullPointerException If any argument or address is
+                                     <code>null</code>.
+        @throws IllegalArgumentException If no addresses are given.
+        @throws Error If <code>c</code> does not represent a remote interface
+                      - an interface in which each method is marked as throwing
+                      <code>RMIException</code>, or if an object implementing
+                      this interface cannot be dynamically created.
+     */
+    public static <T> T createReplicaSet(Class<T> c, InetSocketAddress... addresses)
+    {
+    	return createReplicaSet(c, false, addresses);
+    }
+    
+    /** Creates a stub backed by several servers implementing the same
+        interface, optionally hedging idempotent calls.
+
+        <p>
+        The stub behaves as one created by
+        <code>createReplicaSet(Class, InetSocketAddress...)</code>. In addition,
+        if <code>hedged</code> is <code>true</code>, a call to a method marked
+        <code>@Idempotent</code> that has not been answered within the 95th
+        percentile of recent call latencies is also sent to a second server.
+        The first answer received is returned and the other is discarded.
+        This bounds the effect of one slow server on tail latency.
+
+        @param c A <code>Class</code> object representing the interface
+                 implemented by the remote objects.
+        @param hedged Whether idempotent calls may be sent to a second server.
+        @param addresses The network addresses of the remote skeletons.
+        @return The stub created.
+        @throws NullPointerException If any argument or address is
+                                     <code>null</code>.
+        @throws IllegalArgumentException If no addresses are given.
+        @throws Error If <code>c</code> does not represent a remote interface
+                      - an interface in which each method is marked as throwing
+                      <code>RMIException</code>, or if an object implementing
+                      this interface cannot be dynamically created.
+     */
+    @SuppressWarnings("unchecked")
+    public static <T> T createReplicaSet(Class<T> c, boolean hedged,
+                                         InetSocketAddress... addresses)
+    {
+    	if(c == null || addresses == null) {
+    		throw new NullPointerException();
+    	}
+    	
+    	for(InetSocketAddress address : addresses) {
+    		if(address == null) {
+    			throw new NullPointerException();
+    		}
+    	}
+    	
+    	if(addresses.length == 0) {
+    		throw new IllegalArgumentException("Replica set needs at least one address.");
+    	}
+    	
+    	checkRemoteInterface(c);
+    	
+    	return (T) Proxy.newProxyInstance(c.getClassLoader(), new Class<?>[] {c},
+    			new ReplicaSetInvHandler(c, addresses.clone(), hedged, false,
+    					DEFAULT_CLIENT));
+    }
+    
+    /** Creates a stub backed by several servers each holding a copy of the
+        same data, such as the storage servers holding replicas of a file.
+
+        <p>
+        A call to a method not marked <code>@Idempotent</code> is sent to every
+        server, in the order given, so that all copies are changed; the
+        answer of the first server is returned. If a server cannot be reached,
+        <code>RMIException</code> is thrown and the servers after it are not
+        called. Any other call is sent to the first server that has not
+        recently failed, and retried on the next one if that server cannot be
+        reached.
+
+        <p>
+        Two such stubs are equal if they implement the same interface and were
+        created with the same addresses in the same order.
+
+        @param c A <code>Class</code> object representing the interface
+                 implemented by the remote objects.
+        @param addresses The network addresses of the remote skeletons, in the
+                         order in which they are preferred for reading.
+        @return The stub created.
+        @throws NullPointerException If any argument or address is
+                                     <code>null</code>.
+        @throws IllegalArgumentException If no addresses are given.
+        @throws Error If <code>c</code> does not represent a remote interface,
+                      or if an object implementing this interface cannot be
+                      dynamically created.
+     */
+    @SuppressWarnings("unchecked")
+    public static <T> T createReplicated(Class<T> c, InetSocketAddress... addresses)
+    {
+    	if(c == null || addresses == null) {
+    		throw new NullPointerException();
+    	}
+    	
+    	for(InetSocketAddress address : addresses) {
+    		if(address == null) {
+    			throw new NullPointerException();
+    		}
+    	}
+    	
+    	if(addresses.length == 0) {
+    		throw new IllegalArgumentException("Replica set needs at least one address.");
+    	}
+    	
+    	checkRemoteInterface(c);
+    	
+    	return (T) Proxy.newProxyInstance(c.getClassLoader(), new Class<?>[] {c},
+    			new ReplicaSetInvHandler(c, addresses.clone(), false, true,
+    					DEFAULT_CLIENT));
+    }
+    
+    /** Creates a stub for one skeleton.
+
+        <p>
+        If the build generated a stub class for <code>c</code> (see
+        <code>build.StubGenerator</code>), an instance of that class is
+        returned. Its methods call the server directly, without reflection or
+        boxing of arguments. Otherwise a dynamic proxy is returned. The two
+        kinds of stub behave identically and compare equal when they refer to
+        the same skeleton.
+     */
+    private static <T> T newStub(Class<T> c, Skeleton<?> skeleton,
+                                 InetSocketAddress address, String client)
+    {
+    	Constructor<?> generated = generatedStubs.computeIfAbsent(c, Stub::findGeneratedStub)
+    			.orElse(null);
+    	
+    	if(generated != null) {
+    		try {
+    			return c.cast(generated.newInstance(skeleton, address, client));
+    		} catch(ReflectiveOperationException e) {
+    			throw new Error("Generated stub for " + c.getName() + " cannot be created", e);
+    		}
+    	}
+    	
+    	return (T) Proxy.newProxyInstance(c.getClassLoader(), new Class[] {c},
+    			new StubInvHandler(skeleton, address, client));
+    }
+    
+    /** Generated stub constructors by interface, looked up once each. */
+    private static final Map<Class<?>, Optional<Constructor<?>>> generatedStubs =
+    		new ConcurrentHashMap<>();
+    
+    private static Optional<Constructor<?>> findGeneratedStub(Class<?> c)
+    {
+    	try {
+    		Class<?> stubClass = Class.forName(c.getName() + GeneratedStub.SUFFIX,
+    				true, c.getClassLoader());
+    		
+    		if(!c.isAssignableFrom(stubClass) || !GeneratedStub.class.isAssignableFrom(stubClass)) {
+    			return Optional.empty();
+    		}
+    		
+    		return Optional.of(stubClass.getConstructor(Skeleton.class,
+    				InetSocketAddress.class, String.class));
+    	} catch(ClassNotFoundException | NoSuchMethodException e) {
+    		return Optional.empty();
+    	}
+    }
+    
     public static <T> void checkRemoteInterface(Class<T> c) {
     	
    	 if (!c.isInterface()) {
@@ -186,71 +493,3 @@ public abstract class Stub
     
 
 }
-
-class StubInvHandler implements InvocationHandler {
-	
-	private Skeleton skeleton;
-	
-		public <T> StubInvHandler() {
-			
-		}
-    	
-		public <T> StubInvHandler(Skeleton skeleton) {
-			this.skeleton = skeleton;
-		}
-	
-    	
-
-		@Override
-		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
-			// TODO Auto-generated method stub
-			//return method.invoke(proxy, args);
-			//System.out.println("INSIDE INVOKE METHOD "  + " " + args[1]);
-
-			//System.out.print(method.getName());
-
-			if(method.getName().equals("equals")) {
-				
-				
-				if(args == null) {
-					return false;
-				}
-				
-				if(args[0] == null) {
-					return false;
-				} 
-				
-				
-	            return args[0].equals(this.skeleton);
-				
-			}
-			
-			if(method.getName().equals("hashCode")) {
-	            return Objects.hash(skeleton);
-			}
-			
-			if(method.getName().equals("toString")) {
-
-	            return this.skeleton.getAddress().toString();
-			}
-			
-			if (skeleton == null) {
-	            throw new RMIException("Skeleton is null");
-	        } 
-			
-
-			if(!skeleton.isStarted()) {
-				throw new RMIException("Skeleton is not started");
-			}
-
-			try {
-				return method.invoke(skeleton.localServer, args);
-			} catch(InvocationTargetException e) {
-				throw e.getTargetException();
-			}
-	        
-	      
-		}
-    	
-    	
-    }
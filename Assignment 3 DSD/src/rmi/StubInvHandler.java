@@ -0,0 +1,141 @@
+package rmi;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+
+/** Invocation handler of proxy stubs for a single server.
+
+    <p>
+    Calls are made on the server object of the skeleton serving the stub's
+    address, on the caller's thread. Stubs backed by several servers use one
+    handler per server (see <code>ReplicaSetInvHandler</code>).
+ */
+class StubInvHandler implements InvocationHandler {
+	
+	/** <code>Object</code> methods answered locally by the stub, other than
+	    <code>toString</code>. They are resolved once so that dispatch is an
+	    identity check rather than a string comparison on every call. */
+	private static final Method EQUALS_METHOD;
+	private static final Method HASHCODE_METHOD;
+	
+	static {
+		try {
+			EQUALS_METHOD = Object.class.getMethod("equals", Object.class);
+			HASHCODE_METHOD = Object.class.getMethod("hashCode");
+		} catch(NoSuchMethodException e) {
+			throw new Error(e);
+		}
+	}
+	
+	private Skeleton<?> skeleton;
+	/** Address the stub was created for. Used to find the skeleton currently
+	    serving that address when the one seen at creation is gone. */
+	private InetSocketAddress address;
+	/** Client the stub's calls are counted against by rate limits. */
+	private String client;
+	
+		public <T> StubInvHandler() {
+			
+		}
+    	
+		public <T> StubInvHandler(Skeleton<?> skeleton, InetSocketAddress address,
+				String client) {
+			this.skeleton = skeleton;
+			this.address = address;
+			this.client = client;
+		}
+		
+		/** Returns a handler for the same server on behalf of another
+		    client. */
+		StubInvHandler withClient(String client) {
+			return new StubInvHandler(skeleton, address, client);
+		}
+	
+    	
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+
+			if(method.getDeclaringClass() == Object.class) {
+				return invokeLocal(method, args);
+			}
+			
+			Skeleton<?> target = liveSkeleton(skeleton, address);
+			target.admit(client);
+
+			try {
+				return method.invoke(target.localServer, args);
+			} catch(InvocationTargetException e) {
+				throw e.getTargetException();
+			}
+	        
+	      
+		}
+		
+		/** Returns the address the stub was created for. */
+		InetSocketAddress address() {
+			return address;
+		}
+		
+		/** Returns the skeleton that should serve the next call.
+
+		    <p>
+		    A stub outlives the server it was created for: a stream holds its
+		    storage stub for as long as it is open, and servers may be stopped
+		    and restarted on the same address in the meantime. Each call checks
+		    whether the skeleton is still running. If it is not, the stub
+		    rebinds to whichever skeleton now serves its address, or fails at
+		    once with <code>UnreachableException</code> so the caller can fail
+		    over instead of waiting on a dead peer.
+		 */
+		static Skeleton<?> liveSkeleton(Skeleton<?> skeleton, InetSocketAddress address)
+				throws UnreachableException {
+			Skeleton<?> target = skeleton;
+			
+			if((target == null || !target.isStarted()) && address != null) {
+				Skeleton<?> current = Skeleton.skeletonMap.get(address);
+				if(current != null) {
+					target = current;
+				}
+			}
+			
+			if (target == null) {
+	            throw new UnreachableException("Skeleton is null");
+	        } 
+			
+			if(!target.isStarted()) {
+				throw new UnreachableException("Skeleton is not started");
+			}
+			
+			return target;
+		}
+		
+		/** Answers <code>equals</code>, <code>hashCode</code> and
+		    <code>toString</code> without touching the skeleton. These are the
+		    only methods of <code>Object</code> a proxy passes to its
+		    handler. */
+		private Object invokeLocal(Method method, Object[] args) {
+			
+			if(method.equals(EQUALS_METHOD)) {
+				
+				if(args == null || args[0] == null) {
+					return false;
+				}
+				
+	            return args[0].equals(this.skeleton);
+			}
+			
+			if(method.equals(HASHCODE_METHOD)) {
+				// Same value as Objects.hash(skeleton), without the varargs
+				// array allocated on every call.
+	            return 31 + (skeleton == null ? 0 : skeleton.hashCode());
+			}
+			
+			// toString.
+			return this.skeleton.getAddress().toString();
+		}
+    	
+    	
+    }
@@ -0,0 +1,56 @@
+package rmi;
+
+/** Rate-limiting statistics for one client of a skeleton.
+
+    <p>
+    Objects of this class are snapshots returned by
+    <code>Skeleton.getThrottleStatistics</code>. They are not updated after
+    they are created.
+ */
+public final class ThrottleStatistics
+{
+	private final String client;
+	private final long admitted;
+	private final long delayed;
+	private final long delayNanos;
+
+	ThrottleStatistics(String client, long admitted, long delayed, long delayNanos)
+	{
+		this.client = client;
+		this.admitted = admitted;
+		this.delayed = delayed;
+		this.delayNanos = delayNanos;
+	}
+
+	/** Returns a description of the client. */
+	public String getClient()
+	{
+		return client;
+	}
+
+	/** Returns the number of calls admitted, including delayed ones. */
+	public long getAdmitted()
+	{
+		return admitted;
+	}
+
+	/** Returns the number of calls that had to wait for the rate limit. */
+	public long getDelayed()
+	{
+		return delayed;
+	}
+
+	/** Returns the total time calls from this client spent waiting, in
+	    nanoseconds. */
+	public long getDelayNanos()
+	{
+		return delayNanos;
+	}
+
+	@Override
+	public String toString()
+	{
+		return client + ": admitted " + admitted + ", delayed " + delayed +
+				" (" + delayNanos / 1000000 + " ms)";
+	}
+}
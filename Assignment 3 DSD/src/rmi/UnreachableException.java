@@ -0,0 +1,28 @@
+package rmi;
+
+/** RMI exception thrown when a call could not be delivered to its server.
+
+    <p>
+    The call did not reach the server object, so it had no effect there, and
+    it may be sent to another server holding the same object. Any other
+    <code>RMIException</code> a client receives may have been thrown by the
+    server object itself, after the call was delivered.
+ */
+public class UnreachableException extends RMIException
+{
+    private static final long serialVersionUID = 1L;
+
+    /** Creates an <code>UnreachableException</code> with the given message
+        string. */
+    public UnreachableException(String message)
+    {
+        super(message);
+    }
+
+    /** Creates an <code>UnreachableException</code> with a message string and
+        the given cause. */
+    public UnreachableException(String message, Throwable cause)
+    {
+        super(message, cause);
+    }
+}
@@ -45,4 +45,79 @@ public interface Command extends Remote
                              error.
      */
     public boolean delete(Path path) throws RMIException;
+
+    /** Copies a file from another storage server.
+
+        <p>
+        The file is created on this storage server if it does not exist, and
+        its contents are replaced with those of the file on
+        <code>server</code>. The contents are read directly from the other
+        storage server; they do not pass through the caller.
+
+        <p>
+        The copy is served as this server's own file until it is invalidated
+        by <code>server</code> (see <code>invalidate</code>). If it is
+        invalidated before the copy is complete, the copy is deleted.
+
+        @param file Path to the file to be copied.
+        @param server Storage server holding the file.
+        @return <code>true</code> if the file is copied; <code>false</code>
+                if it cannot be created on this storage server, or if it was
+                written on <code>server</code> while it was copied.
+        @throws FileNotFoundException If the file cannot be found on
+                                      <code>server</code>, or the path
+                                      refers to a directory.
+        @throws IOException If the file cannot be read from
+                            <code>server</code> or written on this storage
+                            server.
+        @throws RMIException If the call cannot be completed due to a network
+                             error, or <code>server</code> cannot be reached.
+     */
+    public boolean copy(Path file, Storage server)
+        throws RMIException, FileNotFoundException, IOException;
+
+    /** Has this storage server invalidate another server's copy of a file
+        whenever the file is written here.
+
+        <p>
+        Before each write to the file, and before the file is replaced by a
+        copy, this server calls <code>invalidate</code> on
+        <code>follower</code>. A write that reaches only this server, through
+        a stub that does not know of the copy, then cannot leave the copy
+        being read as current. The request is forgotten when the file is
+        deleted.
+
+        @param file Path to the file.
+        @param follower Command interface of the storage server that holds,
+                        or is about to make, a copy of the file with
+                        <code>copy</code>.
+        @throws RMIException If the call cannot be completed due to a network
+                             error.
+     */
+    public void addFollower(Path file, Command follower) throws RMIException;
+
+    /** Stops invalidating another server's copy of a file.
+
+        @param file Path to the file.
+        @param follower Command interface given to <code>addFollower</code>.
+        @throws RMIException If the call cannot be completed due to a network
+                             error.
+     */
+    public void removeFollower(Path file, Command follower)
+        throws RMIException;
+
+    /** Marks this server's copy of a file as out of date.
+
+        <p>
+        Called by the storage server a file was copied from when the file is
+        about to be written there. Until the file is copied again or deleted,
+        clients asking this server for the file's size or contents are
+        answered with those of the file on the other server. A file that was
+        not copied from another server is not affected.
+
+        @param file Path to the file.
+        @throws RMIException If the call cannot be completed due to a network
+                             error.
+     */
+    public void invalidate(Path file) throws RMIException;
 }
@@ -0,0 +1,59 @@
+package storage;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/** Counts the client requests and disk accesses of a storage server, for its
+    heartbeats.
+
+    <p>
+    Requests and disk accesses are counted without locks, in counters that
+    many threads may update at once. <code>report</code> reads and resets
+    them.
+ */
+class LoadMonitor
+{
+	private final LongAdder requests = new LongAdder();
+	private final AtomicInteger inProgress = new AtomicInteger();
+	private final LongAdder diskAccesses = new LongAdder();
+	private final LongAdder diskNanos = new LongAdder();
+	/** Time of the last report, by <code>System.nanoTime</code>. Used only
+	    by the reporting thread. */
+	private long lastReport = System.nanoTime();
+
+	/** Counts a client request that has arrived. Every call must be followed
+	    by a call to <code>finished</code>. */
+	void started()
+	{
+		requests.increment();
+		inProgress.incrementAndGet();
+	}
+
+	/** Counts a client request that has been served. */
+	void finished()
+	{
+		inProgress.decrementAndGet();
+	}
+
+	/** Counts a disk read or write that took the given time. */
+	void diskAccess(long nanos)
+	{
+		diskAccesses.increment();
+		diskNanos.add(nanos);
+	}
+
+	/** Reports the requests and disk accesses since the last report. */
+	LoadReport report(long freeBytes, long bytesStored)
+	{
+		long now = System.nanoTime();
+		double seconds = Math.max(now - lastReport, 1) / 1e9;
+		lastReport = now;
+
+		long accesses = diskAccesses.sumThenReset();
+		long nanos = diskNanos.sumThenReset();
+
+		return new LoadReport(freeBytes, bytesStored,
+				requests.sumThenReset() / seconds, inProgress.get(),
+				accesses == 0 ? 0 : nanos / 1e9 / accesses);
+	}
+}
@@ -0,0 +1,77 @@
+package storage;
+
+import java.io.Serializable;
+
+/** State of a storage server, sent to the naming server with each heartbeat.
+
+    <p>
+    Rates and averages cover the time since the previous report. Reports are
+    immutable.
+ */
+public final class LoadReport implements Serializable
+{
+	private static final long serialVersionUID = 1L;
+
+	private final long freeBytes;
+	private final long bytesStored;
+	private final double requestRate;
+	private final int queueDepth;
+	private final double diskLatency;
+
+	/** Creates a report.
+
+	    @param freeBytes Bytes still available to the server on its disk.
+	    @param bytesStored Bytes in the files the server stores.
+	    @param requestRate Client requests per second.
+	    @param queueDepth Client requests being served or waiting to be
+	                      served when the report was made.
+	    @param diskLatency Mean time, in seconds, of one disk read or write.
+	 */
+	public LoadReport(long freeBytes, long bytesStored, double requestRate,
+	                  int queueDepth, double diskLatency)
+	{
+		this.freeBytes = freeBytes;
+		this.bytesStored = bytesStored;
+		this.requestRate = requestRate;
+		this.queueDepth = queueDepth;
+		this.diskLatency = diskLatency;
+	}
+
+	/** Returns the number of bytes still available to the server. */
+	public long freeBytes()
+	{
+		return freeBytes;
+	}
+
+	/** Returns the number of bytes in the files the server stores. */
+	public long bytesStored()
+	{
+		return bytesStored;
+	}
+
+	/** Returns the number of client requests per second. */
+	public double requestRate()
+	{
+		return requestRate;
+	}
+
+	/** Returns the number of client requests in progress or waiting. */
+	public int queueDepth()
+	{
+		return queueDepth;
+	}
+
+	/** Returns the mean time of one disk read or write, in seconds. */
+	public double diskLatency()
+	{
+		return diskLatency;
+	}
+
+	@Override
+	public String toString()
+	{
+		return "free " + freeBytes + " B, stored " + bytesStored + " B, "
+				+ requestRate + " requests/s, queue " + queueDepth + ", disk "
+				+ diskLatency + " s";
+	}
+}
@@ -4,6 +4,7 @@ import java.io.*;
 import java.rmi.Remote;
 
 import common.*;
+import rmi.Idempotent;
 import rmi.RMIException;
 
 /** Storage server client interface.
@@ -24,6 +25,7 @@ public interface Storage extends Remote
         @throws RMIException If the call cannot be completed due to a network
                              error.
      */
+    @Idempotent
     public long size(Path file) throws RMIException, FileNotFoundException;
 
     /** Reads a sequence of bytes from a file.
@@ -44,6 +46,7 @@ public interface Storage extends Remote
         @throws RMIException If the call cannot be completed due to a network
                              error.
      */
+    @Idempotent
     public byte[] read(Path file, long offset, int length)
         throws RMIException, FileNotFoundException, IOException;
 
@@ -1,16 +1,40 @@
 package storage;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.net.UnknownHostException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
 
 import common.Path;
 import naming.Registration;
 import rmi.RMIException;
 import rmi.Skeleton;
+import rmi.StacklessExceptions;
 import rmi.Stub;
 
 /** Storage server.
@@ -28,7 +52,32 @@ public class StorageServer implements Storage, Command
 	Skeleton<Command> commandSkeleton; 
 	Skeleton<Storage> storageSkeleton;
 	
-	private boolean isRegistered = false;
+	private volatile boolean isRegistered = false;
+	/** File recording the files of the last registration, or
+	    <code>null</code> if the server keeps no record. */
+	private File manifest;
+	/** Appends to the log of changes made to the files since the manifest
+	    was written, or <code>null</code> if it is not open. Guarded by the
+	    server's monitor. */
+	private FileOutputStream manifestChanges;
+	/** Sends heartbeats to the naming server while the server runs, or
+	    <code>null</code> before the naming server has accepted the first
+	    part of the registration. */
+	private volatile ScheduledExecutorService heartbeats;
+	/** Counts client requests and disk accesses for the heartbeats. */
+	private final LoadMonitor load = new LoadMonitor();
+	/** Number of bytes in the files under the root directory. Counted when
+	    registering and kept up to date as files change, so it may drift if
+	    files are changed other than through this server. */
+	private final AtomicLong bytesStored = new AtomicLong();
+	/** Servers to tell before each write to a file, by file and by the
+	    servers' addresses. Guarded by the server's monitor. */
+	private final Map<Path, Map<Object, Command>> followers = new HashMap<>();
+	/** Files copied here from other servers with <code>copy</code>. */
+	private final Map<Path, CopiedFile> copies = new ConcurrentHashMap<>();
+
+	/** Number of seconds between heartbeats. */
+	private static final long HEARTBEAT_INTERVAL = 10;
 	
     /** Creates a storage server, given a directory on the local filesystem.
 
@@ -45,9 +94,52 @@ public class StorageServer implements Storage, Command
     	this.root = root;
     }
 
+    /** Creates a storage server that remembers which files it registered.
+
+        <p>
+        When the server has registered, the files it reported, less those
+        the naming server had it delete, are written to
+        <code>manifest</code> with the generation of the registration. If the
+        file exists when the server is started again, and the naming server
+        still has the files from that registration under the same
+        generation, only the files added and removed since are reported.
+
+        <p>
+        Files created, copied and deleted through the server between two
+        registrations are appended to a log next to the manifest, named after
+        it with <code>.log</code> added, so that the manifest read at the
+        next start is current. The log is folded into the manifest at each
+        registration.
+
+        @param root Directory on the local filesystem. The contents of this
+                    directory will be accessible through the storage server.
+        @param manifest File recording the files of the last registration.
+                        It must not be under <code>root</code>.
+        @throws NullPointerException If either argument is <code>null</code>.
+    */
+    public StorageServer(File root, File manifest) throws RemoteException
+    {
+    	this(root);
+
+    	if(manifest == null) {
+    		throw new NullPointerException();
+    	}
+
+    	this.manifest = manifest;
+    }
+
     /** Starts the storage server and registers it with the given naming
         server.
 
+        <p>
+        Once the naming server has accepted the first part of the
+        registration, the server sends it a heartbeat with its load every
+        <code>HEARTBEAT_INTERVAL</code> seconds until it is stopped, so that
+        the naming server can tell whether the server is up while the rest of
+        a large registration is sent. If the naming server no longer knows
+        the server, it registers again. If the server cannot be registered,
+        it is stopped before the exception is thrown.
+
         @param hostname The externally-routable hostname of the local host on
                         which the storage server is running. This is used to
                         ensure that the stub which is provided to the naming
@@ -79,12 +171,48 @@ public class StorageServer implements Storage, Command
     	Storage storageStub = Stub.create(Storage.class, storageSkeleton, hostname);
 
     	
-    	Path[] pathList = Path.list(root);
-    	
+    	try {
+    		register(naming_server, storageStub, commandStub);
+    	} catch(RMIException | FileNotFoundException | RuntimeException e) {
+    		stop();
+    		throw e;
+    	}
+    }
 
-    	
-    	Path[] duplicateFiles = naming_server.register(storageStub, commandStub, pathList);
+    /** Starts sending heartbeats, unless they have been started already.
+        Called by the registration once the naming server knows the server;
+        the first registration is the only one made without heartbeats. */
+    private void startHeartbeats(Registration naming_server,
+                                 Storage storageStub, Command commandStub)
+    {
+    	if(heartbeats != null) {
+    		return;
+    	}
+
+    	ScheduledExecutorService executor =
+    			Executors.newSingleThreadScheduledExecutor(task -> {
+    		Thread thread = new Thread(task, "storage-heartbeat");
+    		thread.setDaemon(true);
+    		return thread;
+    	});
+    	executor.scheduleWithFixedDelay(
+    			() -> heartbeat(naming_server, storageStub, commandStub),
+    			HEARTBEAT_INTERVAL, HEARTBEAT_INTERVAL, TimeUnit.SECONDS);
+    	heartbeats = executor;
+    }
+
+    /** Registers with the naming server and deletes the files it reports as
+        duplicates. */
+    private void register(Registration naming_server, Storage storageStub,
+                          Command commandStub)
+        throws RMIException, FileNotFoundException
+    {
+    	Registrar registrar = new Registrar(naming_server, storageStub,
+    			commandStub);
+    	Path.list(root, registrationChunk, registrar);
+    	List<Path> duplicateFiles = registrar.finish();
     	isRegistered = true;
+    	bytesStored.set(registrar.bytes);
     	
     	
     	for(Path p: duplicateFiles) {
@@ -94,6 +222,26 @@ public class StorageServer implements Storage, Command
     		}
     	}
     	
+    	registrar.writeManifest();
+    }
+
+    /** Sends a heartbeat to the naming server, and registers again if the
+        naming server no longer knows this server. While the first
+        registration is still being sent, the server does not register
+        again. */
+    private void heartbeat(Registration naming_server, Storage storageStub,
+                           Command commandStub)
+    {
+    	LoadReport report = load.report(root.getUsableSpace(), bytesStored.get());
+
+    	try {
+    		if(!naming_server.heartbeat(storageStub, report) && isRegistered) {
+    			register(naming_server, storageStub, commandStub);
+    		}
+    	} catch(RMIException | FileNotFoundException | RuntimeException e) {
+    		// Tried again at the next heartbeat. Letting the exception escape
+    		// would end the heartbeats.
+    	}
     }
 
     /** Stops the storage server.
@@ -103,8 +251,16 @@ public class StorageServer implements Storage, Command
      */
     public void stop()
     {
+    	ScheduledExecutorService executor = heartbeats;
+    	if(executor != null) {
+    		executor.shutdownNow();
+    	}
     	commandSkeleton.stop();
     	storageSkeleton.stop();
+
+    	synchronized(this) {
+    		closeManifestChanges();
+    	}
     }
 
     /** Called when the storage server has shut down.
@@ -116,20 +272,64 @@ public class StorageServer implements Storage, Command
     {
     }
 
-    // The following methods are documented in Storage.java.
+    // The following methods are documented in Storage.java. A copy that
+    // has been invalidated is read from the server it was copied from.
     @Override
-    public synchronized long size(Path file) throws FileNotFoundException
+    public long size(Path file) throws RMIException, FileNotFoundException
+    {
+    	load.started();
+    	try {
+    		CopiedFile copy = copies.get(file);
+    		if(copy != null && !copy.current) {
+    			return copy.source.size(file);
+    		}
+
+    		return fileSize(file);
+    	} finally {
+    		load.finished();
+    	}
+    }
+
+    @Override
+    public byte[] read(Path file, long offset, int length)
+        throws RMIException, FileNotFoundException, IOException
+    {
+    	load.started();
+    	try {
+    		CopiedFile copy = copies.get(file);
+    		if(copy != null && !copy.current) {
+    			return copy.source.read(file, offset, length);
+    		}
+
+    		return readFile(file, offset, length);
+    	} finally {
+    		load.finished();
+    	}
+    }
+
+    @Override
+    public void write(Path file, long offset, byte[] data)
+        throws FileNotFoundException, IOException
+    {
+    	load.started();
+    	try {
+    		writeFile(file, offset, data);
+    	} finally {
+    		load.finished();
+    	}
+    }
+
+    private synchronized long fileSize(Path file) throws FileNotFoundException
     {
     	File file2 = file.toFile(root);
         if(file2.exists() && !file2.isDirectory()) {
         	return file2.length();
         } else {
-        	throw new FileNotFoundException();
+        	throw StacklessExceptions.fileNotFound(null);
         }
     }
 
-    @Override
-    public synchronized byte[] read(Path file, long offset, int length)
+    private synchronized byte[] readFile(Path file, long offset, int length)
         throws FileNotFoundException, IOException
     {
 
@@ -140,26 +340,27 @@ public class StorageServer implements Storage, Command
         		
             	
             	if(offset < 0 || length < 0 || offset + length > file2.length()) {
-            		throw new IndexOutOfBoundsException();
+            		throw StacklessExceptions.indexOutOfBounds(null);
             	}
         		
         	  RandomAccessFile raf = new RandomAccessFile(file2.getAbsolutePath(), "r");
 
               byte[] bytesRead = new byte[length];
+              long start = System.nanoTime();
               raf.seek(offset);
               raf.readFully(bytesRead, 0, length);
+              load.diskAccess(System.nanoTime() - start);
 
               return bytesRead;
         	}  else {
         		throw new IOException();
         	}
         } else {
-        	throw new FileNotFoundException();
+        	throw StacklessExceptions.fileNotFound(null);
         }
     }
 
-    @Override
-    public synchronized void write(Path file, long offset, byte[] data)
+    private synchronized void writeFile(Path file, long offset, byte[] data)
         throws FileNotFoundException, IOException
     {
     	
@@ -170,17 +371,22 @@ public class StorageServer implements Storage, Command
         	if(file2.canWrite()) {
         		
         		if(offset < 0) {
-            		throw new IndexOutOfBoundsException();
+            		throw StacklessExceptions.indexOutOfBounds(null);
             	}
             	       		
+        	  invalidateFollowers(file);
+        	  long before = file2.length();
         	  RandomAccessFile raf = new RandomAccessFile(file2.getAbsolutePath(), "rw");
+              long start = System.nanoTime();
               raf.seek(offset);
               raf.write(data);
+              load.diskAccess(System.nanoTime() - start);
+              bytesStored.addAndGet(Math.max(before, offset + data.length) - before);
         	} else {
         		throw new IOException();
         	}
         } else {
-        	throw new FileNotFoundException();
+        	throw StacklessExceptions.fileNotFound(null);
         }
     }
 
@@ -199,7 +405,10 @@ public class StorageServer implements Storage, Command
     	File dirs = file.parent().toFile(root);
     	dirs.mkdirs();
     	try {
-			return file.toFile(root).createNewFile();
+			if(file.toFile(root).createNewFile()) {
+				recordChange(ADDED, file);
+				return true;
+			}
 		} catch (IOException e) {
 			
 		}
@@ -220,6 +429,8 @@ public class StorageServer implements Storage, Command
     	boolean result = false;
     	
         File file = path.toFile(root);
+        followers.keySet().removeIf(followed -> followed.isSubpath(path));
+        copies.keySet().removeIf(copied -> copied.isSubpath(path));
         
         if(file.isDirectory()) {
         	//Call Subdir method here
@@ -228,9 +439,187 @@ public class StorageServer implements Storage, Command
         	result = deleteFile(path);
         }        
         
+        recordChange(REMOVED, path);
         return result;
     }
     
+    /** Number of bytes read from the other server by each call made by
+        <code>copy</code>. */
+    private static final int COPY_CHUNK = 1 << 20;
+
+    /** Copies a file, as documented in Command.java.
+
+        <p>
+        The server's monitor is held only while writing each piece locally,
+        not while reading from the other server, so that two servers copying
+        from each other do not wait for each other forever.
+     */
+    @Override
+    public boolean copy(Path file, Storage server)
+        throws RMIException, FileNotFoundException, IOException
+    {
+    	if(file.isRoot()) {
+    		return false;
+    	}
+
+    	// Recorded before the size is read, so that a write on the other
+    	// server from then on invalidates the copy.
+    	CopiedFile copy = new CopiedFile(server);
+    	copies.put(file, copy);
+
+    	long size;
+    	try {
+    		size = server.size(file);
+    	} catch(RMIException | FileNotFoundException e) {
+    		copies.remove(file, copy);
+    		throw e;
+    	}
+
+    	synchronized(this) {
+    		File target = file.toFile(root);
+    		if(target.isDirectory()) {
+    			copies.remove(file, copy);
+    			return false;
+    		}
+
+    		invalidateFollowers(file);
+    		file.parent().toFile(root).mkdirs();
+    		bytesStored.addAndGet(-target.length());
+    		try(RandomAccessFile raf = new RandomAccessFile(target, "rw")) {
+    			raf.setLength(0);
+    		}
+    	}
+
+    	try {
+    		for(long offset = 0; offset < size; offset += COPY_CHUNK) {
+    			byte[] data = server.read(file, offset,
+    					(int) Math.min(COPY_CHUNK, size - offset));
+
+    			synchronized(this) {
+    				try(RandomAccessFile raf = new RandomAccessFile(file.toFile(root), "rw")) {
+    					raf.seek(offset);
+    					raf.write(data);
+    				}
+    				bytesStored.addAndGet(data.length);
+    			}
+    		}
+    	} catch(RMIException | IOException | RuntimeException e) {
+    		discard(file, copy);
+    		throw e;
+    	}
+
+    	if(!copy.complete()) {
+    		discard(file, copy);
+    		return false;
+    	}
+
+    	recordChange(ADDED, file);
+    	return true;
+    }
+
+    /** Deletes a copy that was not completed, unless the file has been
+        copied again since. */
+    private synchronized void discard(Path file, CopiedFile copy)
+    {
+    	if(copies.remove(file, copy)) {
+    		deleteFile(file);
+    		recordChange(REMOVED, file);
+    	}
+    }
+
+    @Override
+    public synchronized void addFollower(Path file, Command follower)
+    {
+    	followers.computeIfAbsent(file, followed -> new HashMap<>())
+    			.put(key(follower), follower);
+    }
+
+    @Override
+    public synchronized void removeFollower(Path file, Command follower)
+    {
+    	Map<Object, Command> servers = followers.get(file);
+    	if(servers != null) {
+    		servers.remove(key(follower));
+    		if(servers.isEmpty()) {
+    			followers.remove(file);
+    		}
+    	}
+    }
+
+    /** Invalidates a copy, as documented in Command.java. Does not take the
+        server's monitor, which the server calling it may be waiting for. */
+    @Override
+    public void invalidate(Path file)
+    {
+    	CopiedFile copy = copies.get(file);
+    	if(copy != null) {
+    		copy.invalidate();
+    	}
+    }
+
+    /** Invalidates the copies other servers hold of a file that is about
+        to change. Called with the server's monitor held, so that no
+        follower is added between the invalidation and the change. */
+    private void invalidateFollowers(Path file)
+    {
+    	Map<Object, Command> servers = followers.get(file);
+    	if(servers == null) {
+    		return;
+    	}
+
+    	for(Command follower : servers.values()) {
+    		try {
+    			follower.invalidate(file);
+    		} catch(RMIException e) {
+    			// A server that cannot be reached serves no reads. It keeps
+    			// its place, so that it is invalidated by later writes if it
+    			// can be reached again.
+    		}
+    	}
+    }
+
+    /** Identifies a follower by the address of its command interface, since
+        stubs for the same server need not be equal. */
+    private static Object key(Command follower)
+    {
+    	try {
+    		return Stub.address(follower);
+    	} catch(IllegalArgumentException e) {
+    		return follower;
+    	}
+    }
+
+    /** State of a file copied from another server. */
+    private static class CopiedFile
+    {
+    	final Storage source;
+    	/** Set once the copy is complete, unless it has been invalidated
+    	    meanwhile. Once cleared by an invalidation, never set again. */
+    	volatile boolean current;
+    	private boolean invalidated;
+
+    	CopiedFile(Storage source)
+    	{
+    		this.source = source;
+    	}
+
+    	synchronized void invalidate()
+    	{
+    		invalidated = true;
+    		current = false;
+    	}
+
+    	/** Marks the copy complete.
+
+    	    @return <code>false</code> if it has been invalidated.
+    	 */
+    	synchronized boolean complete()
+    	{
+    		current = !invalidated;
+    		return current;
+    	}
+    }
+
     public boolean deleteSubdir(File file) {
     	
     	File[] files = file.listFiles();
@@ -239,9 +628,13 @@ public class StorageServer implements Storage, Command
     		
     		if(f.isDirectory()) {
     			deleteSubdir(f);
+    			f.delete();
+    		} else {
+    			long length = f.length();
+    			if(f.delete()) {
+    				bytesStored.addAndGet(-length);
+    			}
     		}
-    		
-    		f.delete();
     	}
     	file.delete();
     	
@@ -259,8 +652,9 @@ public class StorageServer implements Storage, Command
     	
     	if(!file.isDirectory()) {
     	
+	    	long length = file.length();
 	    	if(file.delete()) {
-	    		
+	    		bytesStored.addAndGet(-length);
 	    		deleteFile(p.parent());
 	    	}
     	} else {
@@ -276,5 +670,357 @@ public class StorageServer implements Storage, Command
     public boolean isRegistered() {
     	return isRegistered;
     }
-    
+
+    /** Number of paths reported to the naming server in one call while
+        registering. A tree with no more files is registered in one call to
+        <code>register</code>. */
+    private static final int REGISTRATION_CHUNK = 8192;
+
+    /** Number of paths reported in one call by this server:
+        <code>REGISTRATION_CHUNK</code>, unless changed by tests before the
+        server is started, so that a small tree is registered in several
+        parts. */
+    int registrationChunk = REGISTRATION_CHUNK;
+
+    /** Reports the files under the root directory to the naming server as
+        they are found.
+
+        <p>
+        Files are sent in parts of about <code>registrationChunk</code>
+        paths: the first with <code>register</code>, the rest with
+        <code>addFiles</code>. If the manifest of an earlier registration can
+        be read and the naming server still has that registration, the
+        server registers again with <code>reregister</code>, only files not
+        in the manifest are sent, and the files of the manifest that were not
+        found are reported removed at the end.
+     */
+    private class Registrar implements Consumer<Path[]>
+    {
+    	private final Registration naming_server;
+    	private final Storage storageStub;
+    	private final Command commandStub;
+    	/** Files of the last registration not yet found, or <code>null</code>
+    	    if every file found is sent. */
+    	private final Set<Path> previous;
+    	/** Length of the manifest's change log when the files were read.
+    	    Changes appended after it were made while registering. */
+    	private final long changesAtStart;
+    	/** Every file found, or <code>null</code> if there is no manifest to
+    	    write. */
+    	private final List<Path> found;
+    	private final List<Path> pending = new ArrayList<>();
+    	private final List<Path> duplicates = new ArrayList<>();
+    	private boolean registered;
+    	/** Number of bytes in the files found. */
+    	long bytes;
+    	/** First failure to reach the naming server. Files found afterwards
+    	    are not sent. */
+    	private RMIException failure;
+
+    	Registrar(Registration naming_server, Storage storageStub,
+    			Command commandStub) throws RMIException
+    	{
+    		this.naming_server = naming_server;
+    		this.storageStub = storageStub;
+    		this.commandStub = commandStub;
+
+    		Manifest recorded;
+    		synchronized(StorageServer.this) {
+    			recorded = readManifest();
+    			changesAtStart = manifest == null ? 0 : changeLog().length();
+    		}
+
+    		// Files in the manifest that are still here are not sent again,
+    		// so nothing would ask this server to delete one the naming
+    		// server no longer lists on it. The naming server forgets the
+    		// generation whenever it stops listing such a file, which makes
+    		// reregister fail and every file be reported.
+    		if(recorded != null && naming_server.reregister(storageStub,
+    				commandStub, recorded.generation)) {
+    			previous = recorded.files;
+    			registered = true;
+    			startHeartbeats(naming_server, storageStub, commandStub);
+    		} else {
+    			previous = null;
+    		}
+
+    		found = manifest == null ? null : new ArrayList<>();
+    	}
+
+    	@Override
+    	public void accept(Path[] files)
+    	{
+    		for(Path file : files) {
+    			bytes += file.toFile(root).length();
+    			if(found != null) {
+    				found.add(file);
+    			}
+
+    			if(previous == null || !previous.remove(file)) {
+    				pending.add(file);
+    			}
+    		}
+
+    		if(pending.size() >= registrationChunk) {
+    			send();
+    		}
+    	}
+
+    	/** Sends the files found and not yet sent. */
+    	private void send()
+    	{
+    		Path[] files = pending.toArray(new Path[pending.size()]);
+    		pending.clear();
+
+    		if(failure != null) {
+    			return;
+    		}
+
+    		try {
+    			Path[] rejected = registered
+    					? naming_server.addFiles(storageStub, files)
+    					: naming_server.register(storageStub, commandStub, files);
+    			registered = true;
+    			startHeartbeats(naming_server, storageStub, commandStub);
+    			duplicates.addAll(Arrays.asList(rejected));
+    		} catch(RMIException e) {
+    			failure = e;
+    		}
+    	}
+
+    	/** Sends the rest of the files and reports the removed ones.
+
+    	    @return The files the naming server asked to delete.
+    	    @throws RMIException If the naming server could not be reached.
+    	 */
+    	List<Path> finish() throws RMIException
+    	{
+    		if(!pending.isEmpty() || !registered) {
+    			send();
+    		}
+
+    		if(failure != null) {
+    			throw failure;
+    		}
+
+    		if(previous == null) {
+    			naming_server.finishRegistration(storageStub);
+    		} else if(!previous.isEmpty()) {
+    			Path[] removed = previous.toArray(new Path[previous.size()]);
+    			for(int start = 0; start < removed.length;
+    					start += registrationChunk) {
+    				naming_server.removeFiles(storageStub, Arrays.copyOfRange(
+    						removed, start, Math.min(removed.length,
+    								start + registrationChunk)));
+    			}
+    		}
+
+    		return duplicates;
+    	}
+
+    	/** Records the files registered in the manifest, if there is one,
+    	    with the generation of the registration, and empties the change
+    	    log. Changes logged while registering are applied to the files
+    	    found. If the manifest cannot be written, it is deleted, so that
+    	    the next registration reports every file.
+
+    	    <p>
+    	    The server's monitor is held while the manifest is written, so
+    	    that no change is logged in the meantime.
+    	 */
+    	void writeManifest()
+    	{
+    		if(manifest == null) {
+    			return;
+    		}
+
+    		long generation;
+    		try {
+    			generation = naming_server.generation(storageStub);
+    		} catch(RMIException | RuntimeException e) {
+    			manifest.delete();
+    			return;
+    		}
+
+    		Set<Path> kept = new HashSet<>(found);
+    		kept.removeAll(duplicates);
+
+    		synchronized(StorageServer.this) {
+    			closeManifestChanges();
+
+    			File log = changeLog();
+    			try(FileInputStream changes = new FileInputStream(log)) {
+    				changes.skip(changesAtStart);
+    				applyChanges(kept, new DataInputStream(
+    						new BufferedInputStream(changes)));
+    			} catch(FileNotFoundException e) {
+    				// Nothing changed while registering.
+    			} catch(IOException e) {
+    				// The changes not read are left out, as if lost in a
+    				// crash; see recordChange.
+    			}
+
+    			File temporary = new File(manifest.getPath() + ".tmp");
+    			try {
+    				try(DataOutputStream out = new DataOutputStream(
+    						new BufferedOutputStream(new FileOutputStream(temporary)))) {
+    					out.writeInt(MANIFEST_MAGIC);
+    					out.writeLong(generation);
+    					Path.writeArray(out, kept.toArray(new Path[kept.size()]));
+    				}
+    				// A crash between the two leaves the old manifest without
+    				// its log. Files it lacks are reported as added, which is
+    				// harmless; files it has that are gone are reported as
+    				// removed.
+    				Files.deleteIfExists(log.toPath());
+    				Files.move(temporary.toPath(), manifest.toPath(),
+    						StandardCopyOption.REPLACE_EXISTING,
+    						StandardCopyOption.ATOMIC_MOVE);
+    			} catch(IOException e) {
+    				temporary.delete();
+    				manifest.delete();
+    			}
+    		}
+    	}
+    }
+
+    /** Number at the start of a manifest. */
+    private static final int MANIFEST_MAGIC = 0x4d414e31;
+
+    /** Files recorded at a registration, and the registration's
+        generation. */
+    private static class Manifest
+    {
+    	final long generation;
+    	final Set<Path> files;
+
+    	Manifest(long generation, Set<Path> files)
+    	{
+    		this.generation = generation;
+    		this.files = files;
+    	}
+    }
+
+    /** Reads the files recorded at the last registration.
+
+        @return The files, or <code>null</code> if there is no manifest or it
+                cannot be read.
+     */
+    private Manifest readManifest()
+    {
+    	if(manifest == null || !manifest.isFile()) {
+    		return null;
+    	}
+
+    	try(DataInputStream in = new DataInputStream(
+    			new BufferedInputStream(new FileInputStream(manifest)))) {
+    		if(in.readInt() != MANIFEST_MAGIC) {
+    			return null;
+    		}
+
+    		long generation = in.readLong();
+    		Set<Path> files = new HashSet<>(Arrays.asList(Path.readArray(in)));
+
+    		try(DataInputStream changes = new DataInputStream(
+    				new BufferedInputStream(new FileInputStream(changeLog())))) {
+    			applyChanges(files, changes);
+    		} catch(FileNotFoundException e) {
+    			// Nothing changed since the manifest was written.
+    		}
+
+    		return new Manifest(generation, files);
+    	} catch(IOException e) {
+    		return null;
+    	}
+    }
+
+    /** Types of the records in the manifest's change log. Each is followed
+        by the path, as an array of one path. */
+    private static final byte ADDED = 1;
+    private static final byte REMOVED = 2;
+
+    /** Returns the log of changes made since the manifest was written. */
+    private File changeLog()
+    {
+    	return new File(manifest.getPath() + ".log");
+    }
+
+    /** Appends a change to the manifest's change log, if the server keeps a
+        manifest. The log is not forced to disk. A change lost in a crash
+        only makes the next registration report a file the naming server
+        already has for this server, or report as removed a file that is
+        gone. If the log cannot be written, the manifest is deleted, so that
+        the next registration reports every file.
+
+        @param path The file created, or the file or directory deleted.
+     */
+    private synchronized void recordChange(byte type, Path path)
+    {
+    	if(manifest == null) {
+    		return;
+    	}
+
+    	ByteArrayOutputStream record = new ByteArrayOutputStream();
+    	try {
+    		DataOutputStream out = new DataOutputStream(record);
+    		out.writeByte(type);
+    		Path.writeArray(out, new Path[] {path});
+
+    		if(manifestChanges == null) {
+    			manifestChanges = new FileOutputStream(changeLog(), true);
+    		}
+    		manifestChanges.write(record.toByteArray());
+    	} catch(IOException e) {
+    		closeManifestChanges();
+    		manifest.delete();
+    	}
+    }
+
+    /** Closes the manifest's change log, if it is open. Called with the
+        server's monitor held. */
+    private void closeManifestChanges()
+    {
+    	if(manifestChanges == null) {
+    		return;
+    	}
+
+    	try {
+    		manifestChanges.close();
+    	} catch(IOException e) {
+    		// Every record was written when it was appended.
+    	}
+    	manifestChanges = null;
+    }
+
+    /** Applies the records of a change log to a set of files. A record cut
+        short by a crash ends the log. */
+    private static void applyChanges(Set<Path> files, DataInputStream in)
+        throws IOException
+    {
+    	while(true) {
+    		int type = in.read();
+    		if(type == -1) {
+    			return;
+    		}
+
+    		Path[] paths;
+    		try {
+    			paths = Path.readArray(in);
+    		} catch(EOFException e) {
+    			return;
+    		}
+
+    		if(paths.length != 1) {
+    			return;
+    		}
+
+    		Path path = paths[0];
+    		if(type == ADDED) {
+    			files.add(path);
+    		} else if(!files.remove(path)) {
+    			// A directory: every file below it.
+    			files.removeIf(file -> file.isSubpath(path));
+    		}
+    	}
+    }
 }
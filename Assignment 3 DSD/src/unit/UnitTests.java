@@ -7,7 +7,12 @@ import test.*;
     <p>
     Tests run are:
     <ul>
-    <li>{@link common.SampleUnitTest}</li>
+    <li>{@link common.PathCodecTest}</li>
+    <li>{@link rmi.RateLimitTest}</li>
+    <li>{@link naming.EditLogTest}</li>
+    <li>{@link naming.CheckpointTest}</li>
+    <li>{@link naming.OffHeapNamespaceTest}</li>
+    <li>{@link storage.ManifestRegistrationTest}</li>
     </ul>
  */
 public class UnitTests
@@ -19,14 +24,19 @@ public class UnitTests
     public static void main(String[] arguments)
     {
         // Create the test list, the series object, and run the test series.
-     /*   @SuppressWarnings("unchecked")
+        @SuppressWarnings("unchecked")
         Class<? extends Test>[]     tests =
-            new Class[] {common.SampleUnitTest.class};
+            new Class[] {common.PathCodecTest.class,
+                         rmi.RateLimitTest.class,
+                         naming.EditLogTest.class,
+                         naming.CheckpointTest.class,
+                         naming.OffHeapNamespaceTest.class,
+                         storage.ManifestRegistrationTest.class};
         Series                      series = new Series(tests);
         SeriesReport                report = series.run(3, System.out);
 
         // Print the report and exit with an appropriate exit status.
         report.print(System.out);
-        System.exit(report.successful() ? 0 : 2);*/
+        System.exit(report.successful() ? 0 : 2);
     }
 }
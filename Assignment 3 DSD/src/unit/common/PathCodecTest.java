@@ -0,0 +1,187 @@
+package common;
+
+import java.io.*;
+import java.util.*;
+
+import test.*;
+
+/** Tests the binary encoding of paths.
+
+    <p>
+    The test checks that single paths, arrays of paths and serialized paths
+    are read back equal to those written. It then checks that every truncation
+    of an encoded array is refused with an <code>IOException</code>, and that
+    an array or component whose count is far larger than the input is refused
+    without allocating memory for it.
+ */
+public class PathCodecTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice =
+        "checking path encoding round trip and truncated input";
+
+    /** Paths written by the test. Neighbouring paths share prefixes of
+        different lengths, and one component is not ASCII. */
+    private static final Path[] paths = new Path[] {
+        new Path("/"),
+        new Path("/a/b/c"),
+        new Path("/a/b/d"),
+        new Path("/a/b/d/e/f"),
+        new Path("/a/x"),
+        new Path("/caf\u00e9/\u6587\u4ef6"),
+        new Path("/a/b/c")
+    };
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        try
+        {
+            checkRoundTrip();
+            checkTruncated();
+            checkLargeCounts();
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unexpected exception", t);
+        }
+    }
+
+    /** Checks that paths are read back as written. */
+    private void checkRoundTrip() throws TestFailed, IOException,
+                                         ClassNotFoundException
+    {
+        for(Path path : paths)
+        {
+            ByteArrayOutputStream   bytes = new ByteArrayOutputStream();
+            PathCodec.write(new DataOutputStream(bytes), path);
+
+            Path                    read = PathCodec.read(input(bytes));
+            if(!read.equals(path))
+            {
+                throw new TestFailed("path " + path + " read back as " +
+                                     read);
+            }
+        }
+
+        Path[]                      read = PathCodec.readArray(input(array()));
+        if(!Arrays.equals(read, paths))
+        {
+            throw new TestFailed("array read back as " +
+                                 Arrays.toString(read));
+        }
+
+        if(PathCodec.readArray(input(encode(new Path[0]))).length != 0)
+            throw new TestFailed("empty array read back with paths");
+
+        ByteArrayOutputStream       bytes = new ByteArrayOutputStream();
+        try(ObjectOutputStream out = new ObjectOutputStream(bytes))
+        {
+            out.writeObject(paths[3]);
+        }
+
+        try(ObjectInputStream in = new ObjectInputStream(
+                new ByteArrayInputStream(bytes.toByteArray())))
+        {
+            if(!paths[3].equals(in.readObject()))
+                throw new TestFailed("serialized path read back wrongly");
+        }
+    }
+
+    /** Checks that every truncation of an encoded array is refused. */
+    private void checkTruncated() throws TestFailed, IOException
+    {
+        byte[]      whole = array().toByteArray();
+
+        for(int length = 0; length < whole.length; ++length)
+        {
+            try
+            {
+                PathCodec.readArray(new DataInputStream(
+                    new ByteArrayInputStream(whole, 0, length)));
+                throw new TestFailed("array truncated to " + length +
+                                     " bytes read successfully");
+            }
+            catch(IOException e) { }
+        }
+    }
+
+    /** Checks that counts and lengths much larger than the input are refused
+        with an <code>EOFException</code>. */
+    private void checkLargeCounts() throws TestFailed, IOException
+    {
+        // An array of Integer.MAX_VALUE paths, holding one path.
+        ByteArrayOutputStream   bytes = new ByteArrayOutputStream();
+        DataOutputStream        out = new DataOutputStream(bytes);
+        writeVarint(out, Integer.MAX_VALUE);
+        writeVarint(out, 0);
+        writeVarint(out, 1);
+        writeVarint(out, 1);
+        out.writeByte('a');
+        expectEOF(bytes, "array with a large count");
+
+        // A path whose one component claims to be Integer.MAX_VALUE bytes
+        // long.
+        bytes = new ByteArrayOutputStream();
+        out = new DataOutputStream(bytes);
+        writeVarint(out, 1);
+        writeVarint(out, 0);
+        writeVarint(out, 1);
+        writeVarint(out, Integer.MAX_VALUE);
+        out.write(new byte[5000]);
+        expectEOF(bytes, "component with a large length");
+    }
+
+    /** Checks that reading an array from the given bytes ends in an
+        <code>EOFException</code>. */
+    private void expectEOF(ByteArrayOutputStream bytes, String what)
+        throws TestFailed, IOException
+    {
+        try
+        {
+            PathCodec.readArray(input(bytes));
+            throw new TestFailed(what + " read successfully");
+        }
+        catch(EOFException e) { }
+    }
+
+    /** Returns the encoding of the test paths as an array. */
+    private ByteArrayOutputStream array() throws IOException
+    {
+        return encode(paths);
+    }
+
+    /** Encodes an array of paths. */
+    private static ByteArrayOutputStream encode(Path[] array)
+        throws IOException
+    {
+        ByteArrayOutputStream   bytes = new ByteArrayOutputStream();
+        PathCodec.writeArray(new DataOutputStream(bytes), array);
+        return bytes;
+    }
+
+    /** Returns a stream reading the given bytes. */
+    private static DataInputStream input(ByteArrayOutputStream bytes)
+    {
+        return new DataInputStream(
+            new ByteArrayInputStream(bytes.toByteArray()));
+    }
+
+    /** Writes an unsigned variable-length integer, as the codec does. */
+    private static void writeVarint(DataOutput out, int value)
+        throws IOException
+    {
+        while((value & ~0x7f) != 0)
+        {
+            out.writeByte((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+
+        out.writeByte(value);
+    }
+}
@@ -0,0 +1,293 @@
+package naming;
+
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.zip.*;
+
+import test.*;
+import common.*;
+import rmi.*;
+import storage.*;
+
+/** Tests that a checkpoint loads back the tree and the storage servers it was
+    written from.
+
+    <p>
+    The test writes a checkpoint of a namespace holding files with one and with
+    two replicas and empty directories, loads it into a new namespace, and
+    checks that both hold the same entries. It then checks that an image in
+    the first format, which recorded one server per file, is still loaded, and
+    that an image with a damaged section is refused.
+ */
+public class CheckpointTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice =
+        "checking checkpoint round trip, format 1 and damaged sections";
+
+    /** Magic number of the image. */
+    private static final int    MAGIC = 0x4e534931;
+
+    /** Directory holding the image. */
+    private TemporaryDirectory  directory = null;
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        try
+        {
+            directory = new TemporaryDirectory();
+
+            checkRoundTrip();
+            checkVersion1();
+            checkDamagedSection();
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unexpected exception", t);
+        }
+    }
+
+    /** Removes the temporary directory. */
+    @Override
+    protected void clean()
+    {
+        if(directory != null)
+        {
+            directory.remove();
+            directory = null;
+        }
+    }
+
+    /** Writes a checkpoint and loads it back. */
+    private void checkRoundTrip() throws TestFailed, IOException
+    {
+        List<RegisteredServer>  servers = new ArrayList<>();
+        servers.add(server(0, 7000));
+        servers.add(server(1, 7002));
+        servers.get(1).generation = -42;
+
+        Namespace               namespace = new LockingNamespace(Journal.NONE);
+        namespace.createDirectory(new Path("/empty"));
+        namespace.add(new Path[] {new Path("/a/b/file1"),
+                                  new Path("/a/file2"),
+                                  new Path("/file3")},
+                      new Node.FileEntry(servers.get(0)), file -> { });
+        namespace.add(new Path[] {new Path("/a/b/file4"),
+                                  new Path("/c/file5")},
+                      new Node.FileEntry(new RegisteredServer[]
+                          {servers.get(1), servers.get(0)}),
+                      file -> { });
+
+        Checkpoint.write(directory.root(), 5, namespace, servers);
+
+        List<RegisteredServer>  loadedServers = new ArrayList<>();
+        Namespace               loaded = new LockingNamespace(Journal.NONE);
+        long                    segment =
+            Checkpoint.load(directory.root(), loaded, loadedServers);
+
+        if(segment != 5)
+        {
+            throw new TestFailed("checkpoint loaded with first segment " +
+                                 segment + " instead of 5");
+        }
+
+        checkServers(servers, loadedServers);
+
+        if(!contents(namespace).equals(contents(loaded)))
+        {
+            throw new TestFailed("checkpoint loaded as " + contents(loaded) +
+                                 " instead of " + contents(namespace));
+        }
+    }
+
+    /** Loads an image written in the first format. */
+    private void checkVersion1() throws TestFailed, IOException
+    {
+        RegisteredServer        server = server(0, 7000);
+
+        // One section: an empty directory, and one group of two files.
+        ByteArrayOutputStream   section = new ByteArrayOutputStream();
+        DataOutputStream        out = new DataOutputStream(section);
+        Path.writeArray(out, new Path[] {new Path("/empty")});
+        out.writeInt(1);
+        out.writeInt(0);
+        Path.writeArray(out, new Path[] {new Path("/a/file1"),
+                                         new Path("/file2")});
+        out.flush();
+
+        byte[]                  sectionBytes = section.toByteArray();
+        CRC32                   crc = new CRC32();
+        crc.update(sectionBytes);
+
+        ByteArrayOutputStream   image = new ByteArrayOutputStream();
+        out = new DataOutputStream(image);
+        out.write(sectionBytes);
+        out.writeInt(MAGIC);
+        out.writeInt(1);
+        out.writeLong(3);
+        out.writeInt(1);
+        EditLog.writeAddress(out, Stub.address(server.storage));
+        EditLog.writeAddress(out, Stub.address(server.command));
+        out.writeInt(1);
+        out.writeLong(0);
+        out.writeInt(sectionBytes.length);
+        out.writeInt((int)crc.getValue());
+        out.writeLong(sectionBytes.length);
+        out.writeInt(MAGIC);
+        out.flush();
+
+        try(FileOutputStream file = new FileOutputStream(image()))
+        {
+            file.write(image.toByteArray());
+        }
+
+        List<RegisteredServer>  loadedServers = new ArrayList<>();
+        Namespace               loaded = new LockingNamespace(Journal.NONE);
+        long                    segment =
+            Checkpoint.load(directory.root(), loaded, loadedServers);
+
+        if(segment != 3)
+            throw new TestFailed("format 1 image loaded with wrong segment");
+
+        checkServers(Arrays.asList(server), loadedServers);
+
+        List<String>            expected = Arrays.asList("directory /empty",
+                                                         "file /a/file1 0",
+                                                         "file /file2 0");
+        if(!expected.equals(contents(loaded)))
+        {
+            throw new TestFailed("format 1 image loaded as " +
+                                 contents(loaded) + " instead of " + expected);
+        }
+    }
+
+    /** Checks that an image whose section has been damaged is refused. */
+    private void checkDamagedSection() throws TestFailed, IOException
+    {
+        List<RegisteredServer>  servers = new ArrayList<>();
+        servers.add(server(0, 7000));
+
+        Namespace               namespace = new LockingNamespace(Journal.NONE);
+        namespace.add(new Path[] {new Path("/a/file1"), new Path("/file2")},
+                      new Node.FileEntry(servers.get(0)), file -> { });
+        Checkpoint.write(directory.root(), 1, namespace, servers);
+
+        // Sections begin at the start of the image.
+        try(FileChannel channel = FileChannel.open(image().toPath(),
+                                                   StandardOpenOption.READ,
+                                                   StandardOpenOption.WRITE))
+        {
+            ByteBuffer  first = ByteBuffer.allocate(1);
+            channel.read(first, 0);
+            first.put(0, (byte)(first.get(0) ^ 0x5a));
+            first.rewind();
+            channel.write(first, 0);
+        }
+
+        try
+        {
+            Checkpoint.load(directory.root(),
+                            new LockingNamespace(Journal.NONE),
+                            new ArrayList<RegisteredServer>());
+            throw new TestFailed("checkpoint with damaged section loaded");
+        }
+        catch(IOException e) { }
+    }
+
+    /** Checks that the loaded servers have the addresses and generations of
+        the written ones and are marked as recovered. */
+    private void checkServers(List<RegisteredServer> expected,
+                              List<RegisteredServer> loaded) throws TestFailed
+    {
+        if(loaded.size() != expected.size())
+        {
+            throw new TestFailed("checkpoint loaded " + loaded.size() +
+                                 " storage servers instead of " +
+                                 expected.size());
+        }
+
+        for(int index = 0; index < expected.size(); ++index)
+        {
+            RegisteredServer    written = expected.get(index);
+            RegisteredServer    read = loaded.get(index);
+
+            if(read.id != index || !read.recovered)
+            {
+                throw new TestFailed("storage server " + index +
+                                     " loaded with wrong number or not " +
+                                     "marked recovered");
+            }
+
+            if(read.generation != written.generation)
+            {
+                throw new TestFailed("storage server " + index +
+                                     " loaded with generation " +
+                                     read.generation + " instead of " +
+                                     written.generation);
+            }
+
+            if(!Stub.address(read.storage).equals(Stub.address(written.storage))
+               || !Stub.address(read.command)
+                      .equals(Stub.address(written.command)))
+            {
+                throw new TestFailed("storage server " + index +
+                                     " loaded with wrong addresses");
+            }
+        }
+    }
+
+    /** Creates a storage server record with stubs for the given port and the
+        port after it. */
+    private static RegisteredServer server(int id, int port)
+    {
+        return new RegisteredServer(id,
+            Stub.create(Storage.class, new InetSocketAddress("127.0.0.1", port)),
+            Stub.create(Command.class,
+                        new InetSocketAddress("127.0.0.1", port + 1)),
+            false);
+    }
+
+    /** Returns the image file in the test directory. */
+    private File image()
+    {
+        return new File(directory.root(), Checkpoint.FILE_NAME);
+    }
+
+    /** Lists the files and empty directories in a namespace, in order, with
+        the numbers of the servers holding each file. */
+    private List<String> contents(Namespace namespace) throws IOException
+    {
+        List<String>    entries = new ArrayList<>();
+
+        namespace.walk(new Namespace.Visitor()
+        {
+            @Override
+            public void file(Path file, Node.FileEntry entry)
+            {
+                StringBuilder   line = new StringBuilder("file " + file);
+                for(RegisteredServer replica : entry.replicas)
+                    line.append(" ").append(replica.id);
+                entries.add(line.toString());
+            }
+
+            @Override
+            public void emptyDirectory(Path directory)
+            {
+                entries.add("directory " + directory);
+            }
+        });
+
+        Collections.sort(entries);
+        return entries;
+    }
+}
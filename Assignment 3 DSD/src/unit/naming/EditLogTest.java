@@ -0,0 +1,234 @@
+package naming;
+
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+import test.*;
+import common.*;
+import rmi.*;
+import storage.*;
+
+/** Tests that the edit log replays the changes recorded in it, and that a
+    damaged tail of the last segment is cut off.
+
+    <p>
+    The test records changes to a namespace, recovers a second namespace from
+    the log, and checks that both hold the same files and directories, and
+    that the storage server has the generation recorded for it. It then
+    appends a record length far larger than the segment, and a record cut
+    short, and checks that each is cut off and that recovery replays the
+    records before it.
+ */
+public class EditLogTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice =
+        "checking edit log replay and recovery from a damaged tail";
+
+    /** Generation recorded for the storage server. */
+    private static final long   GENERATION = 0x5eed5eed5eedL;
+
+    /** Directory holding the log. */
+    private TemporaryDirectory  directory = null;
+    /** Log currently open, if any. */
+    private EditLog             log = null;
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        try
+        {
+            directory = new TemporaryDirectory();
+
+            List<RegisteredServer>  servers = new ArrayList<>();
+            Namespace               namespace = open(servers);
+
+            RegisteredServer        server = new RegisteredServer(0,
+                Stub.create(Storage.class, new InetSocketAddress("127.0.0.1", 7000)),
+                Stub.create(Command.class, new InetSocketAddress("127.0.0.1", 7001)),
+                false);
+            servers.add(server);
+            log.registered(server);
+            server.generation = GENERATION;
+            log.newGeneration(server);
+
+            namespace.createDirectory(new Path("/empty"));
+            namespace.add(new Path[] {new Path("/a/b/file1"),
+                                      new Path("/a/b/file2"),
+                                      new Path("/a/file3"),
+                                      new Path("/file4")},
+                          new Node.FileEntry(server), file -> { });
+            namespace.remove(new Path("/a/file3"));
+            log.sync();
+            log.close();
+            log = null;
+
+            List<String>            expected = contents(namespace);
+            File                    segment = lastSegment();
+            long                    length = segment.length();
+
+            // A record length reaching far past the end of the segment.
+            append(segment, ByteBuffer.allocate(4).putInt(0, Integer.MAX_VALUE - 16));
+            checkRecovered(expected, "after a damaged record length");
+
+            if(segment.length() != length)
+            {
+                throw new TestFailed("damaged record length not cut off: " +
+                                     "segment is " + segment.length() +
+                                     " bytes instead of " + length);
+            }
+
+            // A record whose length is correct, but which is cut short.
+            ByteBuffer              partial = ByteBuffer.allocate(10);
+            partial.putInt(0, 64);
+            append(segment, partial);
+            checkRecovered(expected, "after a record cut short");
+
+            if(segment.length() != length)
+            {
+                throw new TestFailed("incomplete record not cut off");
+            }
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unexpected exception", t);
+        }
+    }
+
+    /** Closes the log and removes its directory. */
+    @Override
+    protected void clean()
+    {
+        if(log != null)
+        {
+            log.close();
+            log = null;
+        }
+
+        if(directory != null)
+        {
+            directory.remove();
+            directory = null;
+        }
+    }
+
+    /** Opens the log in the test directory, recovering a new namespace from
+        it.
+
+        @param servers Receives the storage servers recorded in the log.
+        @return The recovered namespace.
+        @throws IOException If the log cannot be recovered.
+     */
+    private Namespace open(List<RegisteredServer> servers) throws IOException
+    {
+        log = new EditLog(directory.root());
+        Namespace   namespace = new LockingNamespace(log);
+        log.recover(namespace, servers);
+        return namespace;
+    }
+
+    /** Recovers a new namespace from the log and checks that it holds the
+        expected files and directories.
+
+        @param expected Expected result of <code>contents</code>.
+        @param when Describes the damage done to the log, for failure messages.
+        @throws TestFailed If the namespace differs.
+        @throws IOException If the log cannot be recovered.
+     */
+    private void checkRecovered(List<String> expected, String when)
+        throws TestFailed, IOException
+    {
+        List<RegisteredServer>  servers = new ArrayList<>();
+        Namespace               recovered = open(servers);
+        log.close();
+        log = null;
+
+        if(servers.size() != 1 || !servers.get(0).recovered)
+            throw new TestFailed("storage server not recovered " + when);
+
+        if(servers.get(0).generation != GENERATION)
+            throw new TestFailed("generation not recovered " + when);
+
+        if(!expected.equals(contents(recovered)))
+        {
+            throw new TestFailed("namespace recovered " + when + " is " +
+                                 contents(recovered) + " instead of " +
+                                 expected);
+        }
+    }
+
+    /** Lists the files and empty directories in a namespace, in order, with
+        the numbers of the servers holding each file. */
+    private List<String> contents(Namespace namespace) throws IOException
+    {
+        List<String>    entries = new ArrayList<>();
+
+        namespace.walk(new Namespace.Visitor()
+        {
+            @Override
+            public void file(Path file, Node.FileEntry entry)
+            {
+                StringBuilder   line = new StringBuilder("file " + file);
+                for(RegisteredServer replica : entry.replicas)
+                    line.append(" ").append(replica.id);
+                entries.add(line.toString());
+            }
+
+            @Override
+            public void emptyDirectory(Path directory)
+            {
+                entries.add("directory " + directory);
+            }
+        });
+
+        Collections.sort(entries);
+        return entries;
+    }
+
+    /** Returns the segment of the log with the highest number. */
+    private File lastSegment() throws TestFailed
+    {
+        File        last = null;
+        long        highest = -1;
+
+        for(String name : directory.root().list())
+        {
+            if(!name.startsWith("edits.") || !name.endsWith(".log"))
+                continue;
+
+            long    number = Long.parseLong(name.substring(6,
+                                                           name.length() - 4));
+            if(number > highest)
+            {
+                highest = number;
+                last = new File(directory.root(), name);
+            }
+        }
+
+        if(last == null)
+            throw new TestFailed("no edit log segment written");
+
+        return last;
+    }
+
+    /** Appends the contents of a buffer to a segment. */
+    private void append(File segment, ByteBuffer bytes) throws IOException
+    {
+        try(FileChannel channel = FileChannel.open(segment.toPath(),
+                                                   StandardOpenOption.WRITE,
+                                                   StandardOpenOption.APPEND))
+        {
+            while(bytes.hasRemaining())
+                channel.write(bytes);
+        }
+    }
+}
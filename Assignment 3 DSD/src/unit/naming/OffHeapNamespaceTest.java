@@ -0,0 +1,216 @@
+package naming;
+
+import java.io.*;
+import java.lang.reflect.*;
+import java.net.*;
+import java.nio.*;
+import java.util.*;
+
+import test.*;
+import common.*;
+import rmi.*;
+import storage.*;
+
+/** Tests that the off-heap namespace finds its entries after deletions, and
+    after the space of deleted paths has been reclaimed.
+
+    <p>
+    The test adds and removes files at random in a namespace and in a set of
+    paths, and checks after each round that the namespace holds exactly the
+    files in the set. Removing an entry from the index moves back the entries
+    after it; an entry moved wrongly, or not moved, is no longer found. The
+    test then adds and removes enough long paths that the paths of the
+    remaining entries are copied to new buffers, and checks that the remaining
+    entries are still found and listed.
+ */
+public class OffHeapNamespaceTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice =
+        "checking off-heap namespace deletion and path compaction";
+
+    /** Number of directories files are added to at random. */
+    private static final int    DIRECTORIES = 16;
+    /** Number of names files are given at random in each directory. */
+    private static final int    NAMES = 512;
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        try
+        {
+            checkDeletion();
+            checkCompaction();
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unexpected exception", t);
+        }
+    }
+
+    /** Adds and removes files at random, checking the namespace against a set
+        of the files it should hold. */
+    private void checkDeletion() throws TestFailed, IOException
+    {
+        OffHeapNamespace    namespace = new OffHeapNamespace(Journal.NONE);
+        Node.FileEntry      entry = new Node.FileEntry(server());
+        Set<Path>           expected = new HashSet<>();
+        Random              random = new Random(1);
+
+        for(int round = 0; round < 8; ++round)
+        {
+            // Rounds alternately fill the namespace and empty it.
+            int             adds = round % 2 == 0 ? 3 : 1;
+
+            for(int change = 0; change < 4096; ++change)
+            {
+                Path        file = new Path("/d" + random.nextInt(DIRECTORIES) +
+                                            "/f" + random.nextInt(NAMES));
+
+                if(random.nextInt(adds + 1) != 0)
+                {
+                    namespace.add(new Path[] {file}, entry, path -> { });
+                    expected.add(file);
+                }
+                else
+                {
+                    namespace.remove(file);
+                    expected.remove(file);
+                }
+            }
+
+            checkFiles(namespace, expected);
+        }
+    }
+
+    /** Checks that every possible file is in the namespace if and only if it
+        is in <code>expected</code>, and that the directories list exactly the
+        expected files. */
+    private void checkFiles(Namespace namespace, Set<Path> expected)
+        throws TestFailed, FileNotFoundException
+    {
+        for(int directory = 0; directory < DIRECTORIES; ++directory)
+        {
+            Path            parent = new Path("/d" + directory);
+            Set<String>     names = new HashSet<>();
+
+            for(int name = 0; name < NAMES; ++name)
+            {
+                Path        file = new Path(parent, "f" + name);
+                boolean     present = expected.contains(file);
+
+                if(namespace.exists(file) != present)
+                {
+                    throw new TestFailed(file + (present ? " not found" :
+                                                 " found after removal"));
+                }
+
+                if(present)
+                    names.add(file.last());
+            }
+
+            if(!namespace.exists(parent))
+            {
+                if(!names.isEmpty())
+                    throw new TestFailed(parent + " not found");
+                continue;
+            }
+
+            Set<String>     listed =
+                new HashSet<>(Arrays.asList(namespace.list(parent)));
+            if(!listed.equals(names))
+            {
+                throw new TestFailed(parent + " lists " + listed +
+                                     " instead of " + names);
+            }
+        }
+    }
+
+    /** Adds long paths and deletes most of them, so that the paths of the
+        remaining entries are compacted, then checks the remaining entries. */
+    private void checkCompaction() throws Exception
+    {
+        OffHeapNamespace    namespace = new OffHeapNamespace(Journal.NONE);
+        Node.FileEntry      entry = new Node.FileEntry(server());
+
+        char[]              padding = new char[200];
+        Arrays.fill(padding, 'x');
+        String              suffix = new String(padding);
+
+        // Enough paths to fill two buffers of paths, mixed with paths that
+        // are kept.
+        List<Path>          removed = new ArrayList<>();
+        List<Path>          kept = new ArrayList<>();
+        for(int file = 0; file < 120000; ++file)
+        {
+            if(file % 64 == 0)
+                kept.add(new Path("/keep/" + file + suffix));
+            removed.add(new Path("/remove/" + file + suffix));
+        }
+
+        namespace.add(removed.toArray(new Path[removed.size()]), entry,
+                      path -> { });
+        namespace.add(kept.toArray(new Path[kept.size()]), entry, path -> { });
+
+        if(chunks(namespace) < 2)
+            throw new TestFailed("paths added fit in one buffer");
+
+        namespace.remove(new Path("/remove"));
+
+        if(chunks(namespace) != 1)
+        {
+            throw new TestFailed("paths not compacted after removal: " +
+                                 chunks(namespace) + " buffers in use");
+        }
+
+        if(namespace.exists(new Path("/remove")) ||
+           namespace.exists(removed.get(0)))
+        {
+            throw new TestFailed("removed directory found after compaction");
+        }
+
+        Set<String>         names = new HashSet<>();
+        for(Path file : kept)
+        {
+            if(!namespace.exists(file))
+                throw new TestFailed(file + " not found after compaction");
+            names.add(file.last());
+        }
+
+        if(!names.equals(new HashSet<>(Arrays.asList(
+                namespace.list(new Path("/keep"))))))
+        {
+            throw new TestFailed("directory lists wrong names after " +
+                                 "compaction");
+        }
+
+        // Paths stored after compaction must not overwrite the moved ones.
+        Path                added = new Path("/remove/again" + suffix);
+        namespace.add(new Path[] {added}, entry, path -> { });
+        if(!namespace.exists(added) || !namespace.exists(kept.get(0)))
+            throw new TestFailed("path added after compaction not found");
+    }
+
+    /** Creates a storage server record for the entries of files. The
+        server is never contacted. */
+    private static RegisteredServer server()
+    {
+        return new RegisteredServer(0,
+            Stub.create(Storage.class, new InetSocketAddress("127.0.0.1", 7000)),
+            Stub.create(Command.class, new InetSocketAddress("127.0.0.1", 7001)),
+            false);
+    }
+
+    /** Returns the number of buffers holding paths in a namespace. */
+    private static int chunks(OffHeapNamespace namespace) throws Exception
+    {
+        Field   field = OffHeapNamespace.class.getDeclaredField("chunks");
+        field.setAccessible(true);
+        return ((ByteBuffer[])field.get(namespace)).length;
+    }
+}
@@ -0,0 +1,160 @@
+package rmi;
+
+import java.util.*;
+
+import test.*;
+
+/** Tests the skeleton's per-client rate limit.
+
+    <p>
+    The test checks that a client is admitted at once up to its burst and
+    delayed after that, even when it makes each call through a new stub; that
+    stubs given another client name have a bucket of their own; that a call
+    interrupted while throttled is rejected with <code>RMIException</code> and
+    not counted; and that the statistics name each client.
+ */
+public class RateLimitTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking skeleton rate limiting";
+
+    /** Calls each client may make at once. */
+    private static final int    BURST = 3;
+
+    /** Skeleton under test. */
+    private Skeleton<Counter>   skeleton = null;
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        try
+        {
+            skeleton = new Skeleton<Counter>(Counter.class, new CounterServer());
+            skeleton.start();
+
+            // Two calls per second: a call made just after the burst waits
+            // about half a second.
+            skeleton.setRateLimit(2, BURST);
+
+            // The burst, each call through a new stub.
+            for(int call = 0; call < BURST; ++call)
+                Stub.create(Counter.class, skeleton).next();
+
+            checkStatistics(Stub.DEFAULT_CLIENT, BURST, 0);
+
+            long                start = System.nanoTime();
+            Stub.create(Counter.class, skeleton).next();
+            long                waited = System.nanoTime() - start;
+
+            checkStatistics(Stub.DEFAULT_CLIENT, BURST + 1, 1);
+
+            if(waited < 300000000L)
+            {
+                throw new TestFailed("call after the burst waited only " +
+                                     waited / 1000000 + " ms");
+            }
+
+            // Another client has a full bucket of its own.
+            Counter             other = Stub.withClient(
+                Stub.create(Counter.class, skeleton), "other");
+            for(int call = 0; call < BURST; ++call)
+                other.next();
+
+            checkStatistics("other", BURST, 0);
+
+            // The first client's bucket is empty; a call interrupted while it
+            // waits is rejected and not counted.
+            Thread.currentThread().interrupt();
+            try
+            {
+                Stub.create(Counter.class, skeleton).next();
+                throw new TestFailed("throttled call not rejected when " +
+                                     "interrupted");
+            }
+            catch(RMIException e) { }
+            finally
+            {
+                Thread.interrupted();
+            }
+
+            checkStatistics(Stub.DEFAULT_CLIENT, BURST + 1, 1);
+
+            if(skeleton.getThrottleStatistics().size() != 2)
+                throw new TestFailed("statistics do not list two clients");
+
+            // Without a limit, calls are not counted.
+            skeleton.clearRateLimit();
+            Stub.create(Counter.class, skeleton).next();
+            if(!skeleton.getThrottleStatistics().isEmpty())
+                throw new TestFailed("statistics kept after limit removed");
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unexpected exception", t);
+        }
+    }
+
+    /** Stops the skeleton. */
+    @Override
+    protected void clean()
+    {
+        if(skeleton != null)
+        {
+            skeleton.stop();
+            skeleton = null;
+        }
+    }
+
+    /** Checks the statistics of one client.
+
+        @param client Name of the client.
+        @param admitted Expected number of calls admitted.
+        @param delayed Expected number of calls delayed.
+        @throws TestFailed If the statistics differ.
+     */
+    private void checkStatistics(String client, long admitted, long delayed)
+        throws TestFailed
+    {
+        for(ThrottleStatistics statistics : skeleton.getThrottleStatistics())
+        {
+            if(!statistics.getClient().equals(client))
+                continue;
+
+            if(statistics.getAdmitted() != admitted ||
+               statistics.getDelayed() != delayed)
+            {
+                throw new TestFailed("client " + client + " has statistics " +
+                                     statistics + " instead of " + admitted +
+                                     " admitted and " + delayed + " delayed");
+            }
+
+            return;
+        }
+
+        throw new TestFailed("no statistics for client " + client);
+    }
+
+    /** Remote interface called by the test. */
+    public interface Counter
+    {
+        /** Returns the number of calls made so far. */
+        int next() throws RMIException;
+    }
+
+    /** Server counting its calls. */
+    private static class CounterServer implements Counter
+    {
+        private int     calls = 0;
+
+        @Override
+        public synchronized int next()
+        {
+            return ++calls;
+        }
+    }
+}
@@ -0,0 +1,370 @@
+package storage;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+import test.*;
+import common.*;
+import naming.*;
+import rmi.*;
+
+/** Tests that a storage server with many files registers them in parts, and
+    that a storage server with a manifest registers again by reporting only
+    the files added and removed since.
+
+    <p>
+    The test starts a storage server with more files than are sent in one
+    call against a naming server that records its calls. It checks that the
+    files arrive in parts of bounded size, each exactly once, and that a
+    duplicate the naming server returns is deleted. It then changes files
+    through the storage server and behind its back, starts a second storage
+    server on the same directory and manifest, and checks that it registers
+    again with the generation of the first registration and reports exactly
+    the files changed behind its back. Finally it checks that a storage
+    server whose generation has been replaced registers with every file.
+ */
+public class ManifestRegistrationTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice =
+        "checking chunked registration and reregistration from a manifest";
+
+    /** Number of paths the storage servers are made to send in one call. */
+    private static final int    CHUNK = 16;
+    /** Number of files in the storage server's directory: enough for
+        several parts. */
+    private static final int    FILES = 3 * CHUNK + 5;
+
+    /** Directory served by the storage servers. */
+    private TemporaryDirectory  directory = null;
+    /** Directory holding the manifest. */
+    private TemporaryDirectory  state = null;
+    /** Naming server the storage servers register with. */
+    private RecordingNamingServer
+                                naming = null;
+    /** Skeleton for the naming server. */
+    private Skeleton<Registration>
+                                skeleton = null;
+    /** Storage server currently running, if any. */
+    private StorageServer       server = null;
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        try
+        {
+            directory = new TemporaryDirectory();
+            state = new TemporaryDirectory();
+
+            Set<Path>           files = new HashSet<>();
+            for(int file = 0; file < FILES; ++file)
+            {
+                String[]        path = new String[] {"d" + file % 8,
+                                                     "f" + file};
+                directory.add(path);
+                files.add(new Path("/" + path[0] + "/" + path[1]));
+            }
+
+            naming = new RecordingNamingServer();
+            skeleton = new Skeleton<Registration>(Registration.class, naming);
+            skeleton.start();
+
+            checkChunkedRegistration(files);
+            checkReregistration(files);
+            checkReplacedGeneration(files);
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unexpected exception", t);
+        }
+    }
+
+    /** Stops the servers and removes the temporary directories. */
+    @Override
+    protected void clean()
+    {
+        stopServer();
+
+        if(skeleton != null)
+        {
+            skeleton.stop();
+            skeleton = null;
+        }
+
+        if(directory != null)
+        {
+            directory.remove();
+            directory = null;
+        }
+
+        if(state != null)
+        {
+            state.remove();
+            state = null;
+        }
+    }
+
+    /** Checks that the first registration sends every file in parts, and
+        deletes the duplicate the naming server returns. */
+    private void checkChunkedRegistration(Set<Path> files)
+        throws Exception
+    {
+        Path                duplicate = new Path("/d0/f0");
+        naming.duplicate = duplicate;
+
+        startServer();
+
+        if(naming.registered.size() != 1)
+            throw new TestFailed("register not called exactly once");
+
+        if(naming.added.size() < 1)
+            throw new TestFailed("addFiles not called for the later parts");
+
+        if(naming.finished.get() != 1)
+            throw new TestFailed("registration not finished exactly once");
+
+        List<Path[]>        parts = new ArrayList<>(naming.registered);
+        parts.addAll(naming.added);
+
+        List<Path>          reported = new ArrayList<>();
+        for(Path[] part : parts)
+        {
+            if(part.length > CHUNK)
+            {
+                throw new TestFailed("part of " + part.length +
+                                     " paths sent in one call");
+            }
+
+            reported.addAll(Arrays.asList(part));
+        }
+
+        if(reported.size() != files.size() ||
+           !new HashSet<>(reported).equals(files))
+        {
+            throw new TestFailed("registration reported " + reported.size() +
+                                 " paths instead of the " + files.size() +
+                                 " files");
+        }
+
+        if(duplicate.toFile(directory.root()).exists())
+            throw new TestFailed("duplicate file not deleted");
+
+        files.remove(duplicate);
+        naming.duplicate = null;
+
+        if(!manifest().isFile())
+            throw new TestFailed("manifest not written");
+    }
+
+    /** Changes files through the storage server and behind its back, and
+        checks that a new storage server reports only the latter. */
+    private void checkReregistration(Set<Path> files) throws Exception
+    {
+        // Recorded in the manifest's change log.
+        Path                created = new Path("/d1/created");
+        Path                deleted = new Path("/d2/f2");
+        if(!server.create(created) || !server.delete(deleted))
+            throw new TestFailed("storage server cannot change files");
+        files.add(created);
+        files.remove(deleted);
+
+        stopServer();
+
+        // Not known to the storage server.
+        Path                added = new Path("/d3/added");
+        directory.add(new String[] {"d3", "added"});
+        Path                removed = new Path("/d4/f4");
+        if(!removed.toFile(directory.root()).delete())
+            throw new TestFailed("unable to delete file behind server");
+        files.add(added);
+        files.remove(removed);
+
+        naming.reset();
+        startServer();
+
+        if(naming.reregistered.size() != 1 ||
+           naming.reregistered.get(0) != naming.generation)
+        {
+            throw new TestFailed("server did not reregister with the " +
+                                 "generation of its registration");
+        }
+
+        if(!naming.registered.isEmpty() || naming.finished.get() != 0)
+            throw new TestFailed("server registered every file again");
+
+        checkReported(naming.added, Arrays.asList(added), "added");
+        checkReported(naming.removed, Arrays.asList(removed), "removed");
+
+        stopServer();
+    }
+
+    /** Checks that a storage server whose generation the naming server has
+        replaced registers with every file. */
+    private void checkReplacedGeneration(Set<Path> files) throws Exception
+    {
+        naming.reset();
+        naming.generation = naming.generation + 1;
+        startServer();
+
+        if(naming.reregistered.size() != 1 || naming.registered.size() != 1)
+        {
+            throw new TestFailed("server with a replaced generation did " +
+                                 "not register again");
+        }
+
+        if(naming.finished.get() != 1)
+            throw new TestFailed("registration not finished exactly once");
+
+        List<Path[]>        parts = new ArrayList<>(naming.registered);
+        parts.addAll(naming.added);
+        Set<Path>           reported = new HashSet<>();
+        for(Path[] part : parts)
+            reported.addAll(Arrays.asList(part));
+
+        if(!reported.equals(files))
+        {
+            throw new TestFailed("registration after a replaced generation " +
+                                 "reported " + reported.size() +
+                                 " files instead of " + files.size());
+        }
+    }
+
+    /** Checks that the paths in the calls of one kind are exactly the
+        expected ones. */
+    private void checkReported(List<Path[]> calls, List<Path> expected,
+                               String kind) throws TestFailed
+    {
+        Set<Path>           reported = new HashSet<>();
+        for(Path[] call : calls)
+            reported.addAll(Arrays.asList(call));
+
+        if(!reported.equals(new HashSet<>(expected)))
+        {
+            throw new TestFailed("reregistration reported " + reported +
+                                 " " + kind + " instead of " + expected);
+        }
+    }
+
+    /** Starts a storage server on the test directory and manifest. */
+    private void startServer() throws Exception
+    {
+        server = new StorageServer(directory.root(), manifest());
+        server.registrationChunk = CHUNK;
+        server.start("127.0.0.1", Stub.create(Registration.class, skeleton));
+    }
+
+    /** Stops the running storage server, if any. */
+    private void stopServer()
+    {
+        if(server != null)
+        {
+            server.stop();
+            server = null;
+        }
+    }
+
+    /** Returns the manifest file. */
+    private File manifest()
+    {
+        return new File(state.root(), "manifest");
+    }
+
+    /** Naming server recording the calls made to it. It knows one storage
+        server at a time, and never asks it to delete files, except for one
+        chosen duplicate. */
+    private static class RecordingNamingServer implements Registration
+    {
+        /** Files of each call to <code>register</code>. */
+        final List<Path[]>      registered =
+            Collections.synchronizedList(new ArrayList<Path[]>());
+        /** Generations of each call to <code>reregister</code>. */
+        final List<Long>        reregistered =
+            Collections.synchronizedList(new ArrayList<Long>());
+        /** Files of each call to <code>addFiles</code>. */
+        final List<Path[]>      added =
+            Collections.synchronizedList(new ArrayList<Path[]>());
+        /** Files of each call to <code>removeFiles</code>. */
+        final List<Path[]>      removed =
+            Collections.synchronizedList(new ArrayList<Path[]>());
+        /** Number of calls to <code>finishRegistration</code>. */
+        final AtomicInteger     finished = new AtomicInteger();
+        /** Generation given to the storage server. */
+        volatile long           generation = 77;
+        /** File returned as a duplicate by <code>register</code>, if
+            any. */
+        volatile Path           duplicate = null;
+
+        /** Forgets the calls made so far. */
+        void reset()
+        {
+            registered.clear();
+            reregistered.clear();
+            added.clear();
+            removed.clear();
+            finished.set(0);
+        }
+
+        @Override
+        public Path[] register(Storage client_stub, Command command_stub,
+                               Path[] files)
+        {
+            registered.add(files);
+            return duplicates(files);
+        }
+
+        @Override
+        public boolean reregister(Storage client_stub, Command command_stub,
+                                  long generation)
+        {
+            reregistered.add(generation);
+            return generation == this.generation;
+        }
+
+        @Override
+        public long generation(Storage client_stub)
+        {
+            return generation;
+        }
+
+        @Override
+        public Path[] addFiles(Storage client_stub, Path[] files)
+        {
+            added.add(files);
+            return duplicates(files);
+        }
+
+        /** Returns the duplicate, if it is among <code>files</code>. */
+        private Path[] duplicates(Path[] files)
+        {
+            Path                returned = duplicate;
+            if(returned != null && Arrays.asList(files).contains(returned))
+                return new Path[] {returned};
+
+            return new Path[0];
+        }
+
+        @Override
+        public void finishRegistration(Storage client_stub)
+        {
+            finished.incrementAndGet();
+        }
+
+        @Override
+        public void removeFiles(Storage client_stub, Path[] files)
+        {
+            removed.add(files);
+        }
+
+        @Override
+        public boolean heartbeat(Storage client_stub, LoadReport report)
+        {
+            return true;
+        }
+    }
+}